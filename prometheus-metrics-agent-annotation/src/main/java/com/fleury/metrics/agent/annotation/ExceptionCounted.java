@@ -22,4 +22,10 @@ public @interface ExceptionCounted {
     String doc() default "";
 
     String[] include() default {};
+
+    /**
+     * The most label value combinations recorded, others are recorded with the label values {@code __overflow__}.
+     * 0 for no limit.
+     */
+    int maxSeries() default 0;
 }
@@ -26,4 +26,10 @@ public @interface Gauged {
     String[] labels() default {};
 
     String doc() default "";
+
+    /**
+     * The most label value combinations recorded, others are recorded with the label values {@code __overflow__}.
+     * 0 for no limit.
+     */
+    int maxSeries() default 0;
 }
@@ -5,6 +5,7 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -20,4 +21,35 @@ public @interface Timed {
     String[] labels() default {};
 
     String doc() default "";
+
+    /**
+     * Only time one in this many calls. All calls are still counted by a {@code <name>_calls} counter.
+     */
+    int sampleRate() default 1;
+
+    /**
+     * The most label value combinations recorded, others are recorded with the label values {@code __overflow__}.
+     * 0 for no limit.
+     */
+    int maxSeries() default 0;
+
+    /**
+     * The unit the durations are recorded in, and the bucket bounds are given in.
+     */
+    TimeUnit unit() default TimeUnit.SECONDS;
+
+    /**
+     * The upper bounds of the buckets in increasing order. Defaults to buckets from 5 milliseconds to 10 seconds.
+     */
+    double[] buckets() default {};
+
+    /**
+     * {start, width, count} of evenly spaced buckets, instead of {@link #buckets()}.
+     */
+    double[] linearBuckets() default {};
+
+    /**
+     * {start, factor, count} of exponentially growing buckets, instead of {@link #buckets()}.
+     */
+    double[] exponentialBuckets() default {};
 }
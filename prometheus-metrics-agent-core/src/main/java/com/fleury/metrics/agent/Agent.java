@@ -1,12 +1,22 @@
 package com.fleury.metrics.agent;
 
 import static com.fleury.metrics.agent.config.LoggerUtil.initializeLogging;
+import static java.util.logging.Level.WARNING;
 
 import com.fleury.metrics.agent.config.ArgParser;
 import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.reload.ConfigurationEndpoint;
+import com.fleury.metrics.agent.reload.ConfigurationWatcher;
+import com.fleury.metrics.agent.reload.Retransformer;
+import com.fleury.metrics.agent.reporter.PrometheusMetricSystem;
 import com.fleury.metrics.agent.reporter.PrometheusMetricSystemFactory;
 import com.fleury.metrics.agent.transformer.AnnotatedMetricClassTransformer;
+import com.fleury.metrics.agent.transformer.TransformedClassCache;
+import com.fleury.metrics.agent.transformer.TransformerMetrics;
+import io.prometheus.client.CollectorRegistry;
+import java.io.File;
 import java.lang.instrument.Instrumentation;
+import java.util.logging.Logger;
 
 /**
  *
@@ -14,7 +24,11 @@ import java.lang.instrument.Instrumentation;
  */
 public class Agent {
 
-    public static void premain(String args, Instrumentation instrumentation) {
+    private static final Logger LOGGER = Logger.getLogger(Agent.class.getName());
+
+    private static Retransformer attached;
+
+    public static synchronized void premain(String args, Instrumentation instrumentation) {
 
         ArgParser argParser = new ArgParser(args);
 
@@ -22,9 +36,83 @@ public class Agent {
 
         Configuration config = Configuration.createConfig(argParser.getConfigFilename());
         PrometheusMetricSystemFactory.INSTANCE.init(config.getSystem());
+        PrometheusMetricSystem.setDisabledMetrics(config.getDisabledMetrics());
+        PrometheusMetricSystem.setLabelNormalizations(config.getLabelNormalizations());
+
+        // classes were instrumented at build time and register their own metrics when initialised
+        if (argParser.isPreInstrumented()) {
+            return;
+        }
+
+        AnnotatedMetricClassTransformer transformer = createTransformer(argParser, config);
+
+        instrumentation.addTransformer(transformer, instrumentation.isRetransformClassesSupported());
+
+        if (instrumentation.isRetransformClassesSupported()) {
+            attached = new Retransformer(instrumentation, transformer);
+            startReloading(argParser.getConfigFilename(), config, attached);
+        }
+    }
+
+    /**
+     * Entry point when attached to a running JVM. The classes already loaded are retransformed so the warmed up JIT
+     * state of all other classes is kept. Attaching again applies the new configuration to the running agent.
+     */
+    public static synchronized void agentmain(String args, Instrumentation instrumentation) {
+
+        ArgParser argParser = new ArgParser(args);
+
+        initializeLogging(argParser.getLogConfigFilename());
+
+        if (!instrumentation.isRetransformClassesSupported()) {
+            LOGGER.log(WARNING, "Unable to attach as the JVM does not support retransforming classes");
+            return;
+        }
+
+        Configuration config = Configuration.createConfig(argParser.getConfigFilename());
+
+        if (attached != null) {
+            attached.reconfigure(config);
+            return;
+        }
+
+        // the agent may also have been started with -javaagent using pre-instrumented classes
+        if (PrometheusMetricSystemFactory.INSTANCE.get() == null) {
+            PrometheusMetricSystemFactory.INSTANCE.init(config.getSystem());
+        }
+        PrometheusMetricSystem.setDisabledMetrics(config.getDisabledMetrics());
+        PrometheusMetricSystem.setLabelNormalizations(config.getLabelNormalizations());
+
+        AnnotatedMetricClassTransformer transformer = createTransformer(argParser, config);
+
+        instrumentation.addTransformer(transformer, true);
+
+        attached = new Retransformer(instrumentation, transformer);
+        attached.retransformLoaded();
+
+        startReloading(argParser.getConfigFilename(), config, attached);
+    }
+
+    private static AnnotatedMetricClassTransformer createTransformer(ArgParser argParser, Configuration config) {
+        TransformedClassCache cache = null;
+        if (argParser.getCacheDirectory() != null) {
+            cache = new TransformedClassCache(new File(argParser.getCacheDirectory()), config);
+            cache.persistOnShutdown();
+        }
+
+        TransformerMetrics metrics = new TransformerMetrics();
+        metrics.register(CollectorRegistry.defaultRegistry);
+
+        return new AnnotatedMetricClassTransformer(config, false, cache, metrics);
+    }
+
+    private static void startReloading(String configFilename, Configuration config, Retransformer retransformer) {
+        if (configFilename != null && config.getReloadIntervalSeconds() != null) {
+            new ConfigurationWatcher(new File(configFilename), retransformer).start(config.getReloadIntervalSeconds());
+        }
 
-        instrumentation.addTransformer(
-                new AnnotatedMetricClassTransformer(config),
-                instrumentation.isRetransformClassesSupported());
+        if (config.getAdminHttpPort() != null) {
+            new ConfigurationEndpoint(retransformer).start(config.getAdminHttpPort());
+        }
     }
 }
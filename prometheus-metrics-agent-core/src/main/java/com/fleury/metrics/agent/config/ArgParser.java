@@ -30,6 +30,22 @@ public class ArgParser {
         return resource == null ? "/logging.properties" : resource;
     }
 
+    public boolean isPreInstrumented() {
+        if (agentArgs.length == 0) {
+            return Boolean.getBoolean("pre-instrumented");
+        }
+
+        return Boolean.parseBoolean(getArg("pre-instrumented"));
+    }
+
+    public String getCacheDirectory() {
+        if (agentArgs.length == 0) {
+            return System.getProperty("cache-dir");
+        }
+
+        return getArg("cache-dir");
+    }
+
     public String getArg(String key) {
         for (String arg : agentArgs) {
             if (arg.startsWith(key)) {
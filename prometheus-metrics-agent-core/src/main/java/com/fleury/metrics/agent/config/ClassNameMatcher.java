@@ -0,0 +1,121 @@
+package com.fleury.metrics.agent.config;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Matches internal class names (e.g. com/fleury/Sample) against the white and black list patterns. Each pattern is a
+ * prefix of the class names it matches (com/fleury matches com/fleury/Sample and com/fleurys/Sample) and may contain
+ * globs. A single {@code *} matches any characters within a package name or class name and {@code **} matches any
+ * characters including package separators. For example com/*&#47;internal/ matches com/fleury/internal/Sample and
+ * com/**&#47;Test matches com/fleury/sample/TestSample.
+ *
+ * The patterns are compiled into a trie so a class name is matched against all the patterns in a single pass rather
+ * than against each pattern in turn.
+ *
+ * @author Will Fleury
+ */
+public class ClassNameMatcher {
+
+    private static final char SEPARATOR = '/';
+
+    private final Node root = new Node();
+    private final boolean empty;
+
+    public ClassNameMatcher(Collection<String> patterns) {
+        for (String pattern : patterns) {
+            add(pattern);
+        }
+
+        this.empty = patterns.isEmpty();
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public boolean matches(String className) {
+        return !empty && className != null && matches(root, className, 0);
+    }
+
+    private void add(String pattern) {
+        Node node = root;
+
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+
+            if (c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                if (node.anyChars == null) {
+                    node.anyChars = new Node();
+                }
+                node = node.anyChars;
+                i += 2;
+            } else if (c == '*') {
+                if (node.anyNameChars == null) {
+                    node.anyNameChars = new Node();
+                }
+                node = node.anyNameChars;
+                i++;
+            } else {
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+                i++;
+            }
+        }
+
+        node.terminal = true;
+    }
+
+    private static boolean matches(Node node, String className, int index) {
+        if (node.terminal) {
+            return true;
+        }
+
+        if (index < className.length()) {
+            Node child = node.children.get(className.charAt(index));
+            if (child != null && matches(child, className, index + 1)) {
+                return true;
+            }
+        }
+
+        if (node.anyNameChars != null) {
+            for (int i = index; i <= className.length(); i++) {
+                if (matches(node.anyNameChars, className, i)) {
+                    return true;
+                }
+
+                if (i < className.length() && className.charAt(i) == SEPARATOR) {
+                    break;
+                }
+            }
+        }
+
+        if (node.anyChars != null) {
+            for (int i = index; i <= className.length(); i++) {
+                if (matches(node.anyChars, className, i)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static class Node {
+
+        private final Map<Character, Node> children = new HashMap<Character, Node>(4);
+
+        // the node reached after a * or ** glob
+        private Node anyNameChars;
+        private Node anyChars;
+
+        // a pattern ends here so any class name with this prefix matches
+        private boolean terminal;
+    }
+}
@@ -4,6 +4,7 @@ import static java.util.logging.Level.FINE;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.DeserializationContext;
@@ -12,6 +13,8 @@ import com.fasterxml.jackson.databind.KeyDeserializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.fleury.metrics.agent.model.LabelNormalization;
+import com.fleury.metrics.agent.model.LabelUtil;
 import com.fleury.metrics.agent.model.Metric;
 
 
@@ -27,6 +30,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 import org.objectweb.asm.Type;
 
@@ -42,8 +48,12 @@ public class Configuration {
         return name.replaceAll("\\.", "/");
     }
 
+    public static final String STATIC_FIELD_PREFIX = "METRICS$";
+    public static final String OUTLINED_METHOD_PREFIX = "metrics$record$";
+    public static final String ACCESSOR_METHOD_PREFIX = "metrics$read$";
+
     public static String staticFinalFieldName(Metric metric) {
-        return ("metrics$" + metric.getName()+"$"+metric.getType()).toUpperCase();
+        return STATIC_FIELD_PREFIX + (metric.getName() + "$" + metric.getType()).toUpperCase();
     }
 
     public final static ObjectMapper YAML_MAPPER = new ObjectMapper(new YAMLFactory()) {
@@ -88,9 +98,25 @@ public class Configuration {
 
     private final Set<String> imports;
     private final Map<Key, List<Metric>> metrics;
+    private final Map<Key, List<Metric>> configured;
     private final Map<String, Object> system;
     private final List<String> whiteList;
     private final List<String> blackList;
+    private final ClassNameMatcher whiteListMatcher;
+    private final ClassNameMatcher blackListMatcher;
+    private final RejectPolicy rejectPolicy;
+    private final boolean lazyMetrics;
+    private final boolean outlineMetrics;
+    private final Set<String> disabledMetrics;
+    @JsonIgnore
+    private final MethodSelectors selectors;
+    // the classes named by the configured metrics and selectors, null if a selector has a class name glob
+    @JsonIgnore
+    private final Set<String> configuredClassNames;
+
+    // class name -> method name -> descriptor -> metrics. Shares the metric lists of the metrics map.
+    private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, List<Metric>>>> index =
+            new ConcurrentHashMap<String, ConcurrentMap<String, ConcurrentMap<String, List<Metric>>>>();
 
     private Configuration() {
         this(new HashMap<Key, List<Metric>>(),
@@ -100,29 +126,73 @@ public class Configuration {
                 Collections.<String>emptyList());
     }
 
+    public Configuration(Map<Key, List<Metric>> metrics, Set<String> imports, Map<String, Object> system,
+                         List<String> whiteList, List<String> blackList) {
+        this(metrics, imports, system, whiteList, blackList, null, null, null, null);
+    }
+
+    /**
+     * @param lazyMetrics create the collectors of a class when its methods first record them rather than when the class
+     * is initialized
+     * @param outlineMetrics record metrics in synthetic methods of the instrumented class rather than inline
+     * @param disabledMetrics names of the metrics which are not recorded by classes calling them via invokedynamic
+     */
     @JsonCreator
     public Configuration(
             @JsonProperty("metrics") Map<Key, List<Metric>> metrics,
             @JsonProperty("imports") Set<String> imports,
             @JsonProperty("system") Map<String, Object> system,
             @JsonProperty("whiteList") List<String> whiteList,
-            @JsonProperty("blackList") List<String> blackList) {
+            @JsonProperty("blackList") List<String> blackList,
+            @JsonProperty("reject") RejectPolicy rejectPolicy,
+            @JsonProperty("lazyMetrics") Boolean lazyMetrics,
+            @JsonProperty("outlineMetrics") Boolean outlineMetrics,
+            @JsonProperty("disabledMetrics") Set<String> disabledMetrics) {
 
         this.imports = imports == null ? Collections.<String>emptySet() : imports;
 
         this.metrics = metrics == null ?
-                new HashMap<Key, List<Metric>>() :
+                new ConcurrentHashMap<Key, List<Metric>>() :
                 processClassImports(metrics, this.imports); //ensure fqn expanded from imports
 
+        // the metrics found in annotations and the methods matched by selectors are added to the same lists later on
+        this.configured = new HashMap<Key, List<Metric>>();
+        Map<MethodSelector, List<Metric>> selected = new HashMap<MethodSelector, List<Metric>>();
+        Set<String> classNames = new HashSet<String>();
+        for (Map.Entry<Key, List<Metric>> entry : this.metrics.entrySet()) {
+            configured.put(entry.getKey(), new ArrayList<Metric>(entry.getValue()));
+
+            String className = entry.getKey().getClassName();
+            if (classNames != null && className.indexOf('*') < 0) {
+                classNames.add(className);
+            } else {
+                classNames = null;
+            }
+
+            if (entry.getKey() instanceof MethodSelector) {
+                selected.put((MethodSelector) entry.getKey(), entry.getValue());
+            } else {
+                index(entry.getKey(), entry.getValue());
+            }
+        }
+        this.selectors = new MethodSelectors(selected);
+        this.configuredClassNames = classNames == null ? null : Collections.unmodifiableSet(classNames);
+
         this.system = system == null ? Collections.<String, Object>emptyMap() : system;
         this.whiteList = whiteList == null ? Collections.<String>emptyList() : whiteList;
         this.blackList = blackList == null ? Collections.<String>emptyList() : blackList;
+        this.whiteListMatcher = new ClassNameMatcher(this.whiteList);
+        this.blackListMatcher = new ClassNameMatcher(this.blackList);
+        this.rejectPolicy = rejectPolicy == null ? RejectPolicy.defaultPolicy() : rejectPolicy;
+        this.lazyMetrics = lazyMetrics == null ? false : lazyMetrics;
+        this.outlineMetrics = outlineMetrics == null ? false : outlineMetrics;
+        this.disabledMetrics = disabledMetrics == null ? Collections.<String>emptySet() : disabledMetrics;
     }
 
     private static Map<Key, List<Metric>> processClassImports(Map<Key, List<Metric>> metrics, Set<String> imports) {
         Map<String, String> expandedKeys = fqnToMap(imports);
 
-        Map<Key, List<Metric>> processed = new HashMap<Key, List<Metric>>();
+        Map<Key, List<Metric>> processed = new ConcurrentHashMap<Key, List<Metric>>();
         for (Map.Entry<Key, List<Metric>> entry : metrics.entrySet()) {
             Key key = entry.getKey();
 
@@ -131,6 +201,12 @@ public class Configuration {
                 fqn = key.getClassName();
             }
 
+            // selector descriptors may contain globs so only the class name is expanded
+            if (key instanceof MethodSelector) {
+                processed.put(((MethodSelector) key).withClassName(fqn), entry.getValue());
+                continue;
+            }
+
             String descriptor = key.descriptor;
 
             Map<String, String> fqnMap = getMethodDescriptorFQNMap(descriptor);
@@ -150,22 +226,58 @@ public class Configuration {
 
 
     public boolean isMetric(String className) {
-        for (Key key : metrics.keySet()) {
-            if (key.className.equals(className)) {
-                return true;
-            }
-        }
+        return className != null && index.containsKey(className);
+    }
+
+    /**
+     * @return true if the configuration file has any metrics. Only then can classes inherit metrics configured on the
+     * interfaces they implement.
+     */
+    public boolean hasConfiguredMetrics() {
+        return !configured.isEmpty();
+    }
+
+    /**
+     * @return the classes named by the metrics and method selectors of the configuration file, empty if there are
+     * none. Only if one of them is an interface can classes inherit metrics from the interfaces they implement. Null
+     * if a selector has a class name glob, which may match any interface.
+     */
+    public Set<String> getConfiguredClassNames() {
+        return configuredClassNames;
+    }
 
-        return false;
+    /**
+     * @return true if a method selector matches the class. Its methods must be matched against the selectors, see
+     * {@link #findSelectors(String)}, before its metrics are found.
+     */
+    public boolean isSelected(String className) {
+        return selectors.matchesClass(className);
     }
 
+    /**
+     * @return the method selectors matching the class or null if there are none
+     */
+    public MethodSelectors.ClassSelectors findSelectors(String className) {
+        return selectors.select(className);
+    }
+
+    /**
+     * @return the metrics of all the methods of the class including the call counters of sampled Timed metrics
+     */
     public List<Metric> findMetrics(String className) {
-        if (metrics.isEmpty()) return Collections.emptyList();
+        Map<String, ConcurrentMap<String, List<Metric>>> methods = className == null ? null : index.get(className);
+        if (methods == null) return Collections.emptyList();
 
         List<Metric> found = new ArrayList<Metric>();
-        for (Key key : metrics.keySet()) {
-            if (key.className.equals(className)) {
-                found.addAll(metrics.get(key));
+        for (Map<String, List<Metric>> descriptors : methods.values()) {
+            for (List<Metric> keyMetrics : descriptors.values()) {
+                for (Metric metric : keyMetrics) {
+                    found.add(metric);
+
+                    if (metric.isSampled()) {
+                        found.add(metric.getSampledCalls());
+                    }
+                }
             }
         }
 
@@ -173,25 +285,153 @@ public class Configuration {
     }
 
     public List<Metric> findMetrics(String className, String method, String descriptor) {
-        Key key = new Key(className, method, descriptor);
-        return metrics.containsKey(key) ? metrics.get(key) : Collections.<Metric>emptyList();
+        List<Metric> keyMetrics = get(className, method, descriptor);
+        return keyMetrics == null ? Collections.<Metric>emptyList() : keyMetrics;
     }
 
     public void addMetric(Key key, Metric metric) {
-        List<Metric> keyMetrics = metrics.get(key);
+        List<Metric> keyMetrics = get(key.className, key.method, key.descriptor);
 
         if (keyMetrics == null) {
-            keyMetrics = new ArrayList<Metric>();
+            keyMetrics = index(key, new ArrayList<Metric>());
             metrics.put(key, keyMetrics);
         }
 
-        keyMetrics.add(metric);
+        // the annotations of a retransformed class are found again
+        if (!keyMetrics.contains(metric)) {
+            keyMetrics.add(metric);
+        }
+    }
+
+    /**
+     * @return the classes whose configured metrics differ in the given configuration. Metrics found in annotations are
+     * not compared as they cannot change while the class is loaded.
+     */
+    public Set<String> getChangedClasses(Configuration updated) {
+        Set<String> changed = new HashSet<String>();
+        addChangedClasses(configured, updated.configured, changed);
+        addChangedClasses(updated.configured, configured, changed);
+
+        return changed;
+    }
+
+    /**
+     * @return the method selectors which differ in the given configuration. The classes they match have changed.
+     */
+    public MethodSelectors getChangedSelectors(Configuration updated) {
+        Map<MethodSelector, List<Metric>> changed = new HashMap<MethodSelector, List<Metric>>();
+        addChangedSelectors(configured, updated.configured, changed);
+        addChangedSelectors(updated.configured, configured, changed);
+
+        return new MethodSelectors(changed);
+    }
+
+    private static void addChangedClasses(Map<Key, List<Metric>> metrics, Map<Key, List<Metric>> other,
+                                          Set<String> changed) {
+        for (Map.Entry<Key, List<Metric>> entry : metrics.entrySet()) {
+            if (!(entry.getKey() instanceof MethodSelector) && !entry.getValue().equals(other.get(entry.getKey()))) {
+                changed.add(entry.getKey().getClassName());
+            }
+        }
+    }
+
+    private static void addChangedSelectors(Map<Key, List<Metric>> metrics, Map<Key, List<Metric>> other,
+                                            Map<MethodSelector, List<Metric>> changed) {
+        for (Map.Entry<Key, List<Metric>> entry : metrics.entrySet()) {
+            if (entry.getKey() instanceof MethodSelector && !entry.getValue().equals(other.get(entry.getKey()))) {
+                changed.put((MethodSelector) entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private List<Metric> get(String className, String method, String descriptor) {
+        if (className == null || method == null || descriptor == null) {
+            return null;
+        }
+
+        Map<String, ConcurrentMap<String, List<Metric>>> methods = index.get(className);
+        if (methods == null) {
+            return null;
+        }
+
+        Map<String, List<Metric>> descriptors = methods.get(method);
+        return descriptors == null ? null : descriptors.get(descriptor);
+    }
+
+    /**
+     * @return the metrics indexed for the key which are the given metrics unless another thread indexed the key first
+     */
+    private List<Metric> index(Key key, List<Metric> keyMetrics) {
+        ConcurrentMap<String, ConcurrentMap<String, List<Metric>>> methods = index.get(key.className);
+        if (methods == null) {
+            ConcurrentMap<String, ConcurrentMap<String, List<Metric>>> created =
+                    new ConcurrentHashMap<String, ConcurrentMap<String, List<Metric>>>();
+
+            methods = index.putIfAbsent(key.className, created);
+            if (methods == null) {
+                methods = created;
+            }
+        }
+
+        ConcurrentMap<String, List<Metric>> descriptors = methods.get(key.method);
+        if (descriptors == null) {
+            ConcurrentMap<String, List<Metric>> created = new ConcurrentHashMap<String, List<Metric>>();
+
+            descriptors = methods.putIfAbsent(key.method, created);
+            if (descriptors == null) {
+                descriptors = created;
+            }
+        }
+
+        List<Metric> existing = descriptors.putIfAbsent(key.descriptor, keyMetrics);
+        return existing == null ? keyMetrics : existing;
     }
 
     public Map<String, Object> getSystem() {
         return system;
     }
 
+    /**
+     * @return true if stack map frames of rewritten classes should be fully recomputed rather than preserving the
+     * original frames. This is slower as it needs to resolve the class hierarchy of the types used in the class.
+     */
+    public boolean isComputeFrames() {
+        return getSystemBoolean("computeFrames", false);
+    }
+
+    /**
+     * @return true if classes at version 51 (Java 7) or later record metrics through invokedynamic call sites which
+     * can be switched off at runtime with {@link #getDisabledMetrics()}
+     */
+    public boolean isInvokeDynamic() {
+        return getSystemBoolean("invokeDynamic", true);
+    }
+
+    /**
+     * @return how often the configuration file is checked for changes which are then applied by retransforming the
+     * affected classes or null if it is not reloaded
+     */
+    public Integer getReloadIntervalSeconds() {
+        return getSystemInteger("reloadIntervalSeconds");
+    }
+
+    /**
+     * @return the port of the endpoint accepting configuration updates or null if it is not started
+     */
+    public Integer getAdminHttpPort() {
+        return getSystemInteger("adminHttpPort");
+    }
+
+    private boolean getSystemBoolean(String key, boolean defaultValue) {
+        Object value = system.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.toString());
+    }
+
+    private Integer getSystemInteger(String key) {
+        Object value = system.get(key);
+        return value == null ? null : Integer.valueOf(value.toString());
+    }
+
     public List<String> getWhiteList() {
         return whiteList;
     }
@@ -201,27 +441,85 @@ public class Configuration {
     }
 
     public boolean isWhiteListed(String className) {
-        if (whiteList.isEmpty()) return true;
+        return whiteListMatcher.isEmpty() || whiteListMatcher.matches(className);
+    }
+
+    public boolean isBlackListed(String className) {
+        return blackListMatcher.matches(className);
+    }
+
+    public RejectPolicy getRejectPolicy() {
+        return rejectPolicy;
+    }
+
+    /**
+     * @return true if the static metric fields of instrumented classes hold a
+     * {@link com.fleury.metrics.agent.reporter.LazyMetric} rather than the collector itself
+     */
+    public boolean isLazyMetrics() {
+        return lazyMetrics;
+    }
+
+    /**
+     * @return true if the code recording metrics is moved out of instrumented methods into synthetic methods so the
+     * instrumented methods stay small enough to be inlined
+     */
+    public boolean isOutlineMetrics() {
+        return outlineMetrics;
+    }
+
+    /**
+     * @return the names of the metrics whose invokedynamic call sites are linked to a no-op. Changing them does not
+     * need any class to be retransformed.
+     */
+    public Set<String> getDisabledMetrics() {
+        return disabledMetrics;
+    }
+
+    /**
+     * @return the normalization of the dynamic label values of the configured metrics, including the call counters of
+     * sampled Timed metrics, by {@link LabelUtil#normalizationKey(String, String)}
+     */
+    public Map<String, LabelNormalization> getLabelNormalizations() {
+        Map<String, LabelNormalization> normalizations = new HashMap<String, LabelNormalization>();
 
-        for (String white : whiteList) {
-            if (className.startsWith(white)) {
-                return true;
+        for (List<Metric> keyMetrics : configured.values()) {
+            for (Metric metric : keyMetrics) {
+                addLabelNormalizations(metric, normalizations);
+
+                if (metric.isSampled()) {
+                    addLabelNormalizations(metric.getSampledCalls(), normalizations);
+                }
             }
         }
 
-        return false;
+        return normalizations;
     }
 
-    public boolean isBlackListed(String className) {
-        if (blackList.isEmpty()) return false;
+    private static void addLabelNormalizations(Metric metric, Map<String, LabelNormalization> normalizations) {
+        for (Map.Entry<String, LabelNormalization> entry : metric.getNormalize().entrySet()) {
+            normalizations.put(LabelUtil.normalizationKey(metric.getName(), entry.getKey()), entry.getValue());
+        }
+    }
 
-        for (String black : blackList) {
-            if (className.startsWith(black)) {
-                return true;
-            }
+    /**
+     * @return a stable description of everything in this configuration which influences how classes are transformed.
+     * Unlike {@link #toString()} it does not depend on hash map iteration order so it can be used to key data which
+     * outlives the JVM such as the transformed class cache.
+     */
+    public String fingerprint() {
+        List<String> entries = new ArrayList<String>();
+        for (Map.Entry<Key, List<Metric>> entry : metrics.entrySet()) {
+            entries.add(entry.getKey() + "=" + entry.getValue());
         }
+        Collections.sort(entries);
 
-        return false;
+        return "metrics=" + entries +
+                ", system=" + new TreeMap<String, Object>(system) +
+                ", whiteList=" + whiteList +
+                ", blackList=" + blackList +
+                ", lazyMetrics=" + lazyMetrics +
+                ", outlineMetrics=" + outlineMetrics;
     }
 
     @Override
@@ -231,6 +529,10 @@ public class Configuration {
                 ", system=" + system +
                 ", whiteList=" + whiteList +
                 ", blackList=" + blackList +
+                ", rejectPolicy=" + rejectPolicy +
+                ", lazyMetrics=" + lazyMetrics +
+                ", outlineMetrics=" + outlineMetrics +
+                ", disabledMetrics=" + disabledMetrics +
                 '}';
     }
 
@@ -328,6 +630,10 @@ public class Configuration {
 
         @Override
         public Object deserializeKey(final String key, final DeserializationContext ctxt) throws IOException {
+            if (MethodSelector.isSelector(key)) {
+                return MethodSelector.parse(key);
+            }
+
             String className = dotToSlash(key.substring(0, key.lastIndexOf(".")));
             String methodName = key.substring(key.lastIndexOf(".") + 1, key.indexOf("("));
 
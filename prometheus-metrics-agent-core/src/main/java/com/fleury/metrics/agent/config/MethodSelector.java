@@ -0,0 +1,193 @@
+package com.fleury.metrics.agent.config;
+
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+import static org.objectweb.asm.Opcodes.ACC_BRIDGE;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_NATIVE;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PROTECTED;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SYNCHRONIZED;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A metrics configuration key which selects many methods rather than a single one. It has the same format as a
+ * regular key but the class name, method name and descriptor may contain {@code *} globs and it may be preceded by
+ * access modifiers (a modifier preceded by {@code !} excludes methods with that modifier). For example
+ *
+ * <pre>
+ * public !static com/acme/dao/*.find*(*)
+ * </pre>
+ *
+ * selects every public instance method starting with find of the classes directly in the com/acme/dao package. In the
+ * class name a single {@code *} does not match package separators while {@code **} does. The descriptor may be left
+ * out to select any descriptor and a descriptor ending with {@code )} selects any return type.
+ *
+ * Globs never select constructors or static initializers unless the method name starts with {@code <}, nor abstract,
+ * native, synthetic or bridge methods.
+ *
+ * @author Will Fleury
+ */
+public class MethodSelector extends Configuration.Key {
+
+    private static final char GLOB = '*';
+
+    private static final Map<String, Integer> MODIFIERS = new HashMap<String, Integer>();
+
+    static {
+        MODIFIERS.put("public", ACC_PUBLIC);
+        MODIFIERS.put("protected", ACC_PROTECTED);
+        MODIFIERS.put("private", ACC_PRIVATE);
+        MODIFIERS.put("static", ACC_STATIC);
+        MODIFIERS.put("final", ACC_FINAL);
+        MODIFIERS.put("synchronized", ACC_SYNCHRONIZED);
+    }
+
+    private static final int NEVER_SELECTED = ACC_ABSTRACT | ACC_NATIVE | ACC_SYNTHETIC | ACC_BRIDGE;
+
+    /**
+     * @return true if the metrics configuration key selects many methods rather than a single one
+     */
+    public static boolean isSelector(String key) {
+        return key.indexOf(GLOB) >= 0 || key.trim().indexOf(' ') >= 0 || key.indexOf('(') < 0 || key.endsWith(")");
+    }
+
+    public static MethodSelector parse(String key) {
+        String[] tokens = key.trim().split("\\s+");
+
+        int required = 0;
+        int excluded = 0;
+        for (int i = 0; i < tokens.length - 1; i++) {
+            boolean exclude = tokens[i].startsWith("!");
+            Integer modifier = MODIFIERS.get(exclude ? tokens[i].substring(1) : tokens[i]);
+
+            if (modifier == null) {
+                throw new IllegalArgumentException("Unknown modifier " + tokens[i] + " in " + key);
+            }
+
+            if (exclude) {
+                excluded |= modifier;
+            } else {
+                required |= modifier;
+            }
+        }
+
+        String method = tokens[tokens.length - 1];
+
+        String descriptor = "*";
+        int descriptorStart = method.indexOf('(');
+        if (descriptorStart >= 0) {
+            descriptor = method.substring(descriptorStart);
+            method = method.substring(0, descriptorStart);
+
+            if (descriptor.endsWith(")")) {
+                descriptor += GLOB;
+            }
+        }
+
+        int methodStart = method.lastIndexOf('.');
+        if (methodStart <= 0 || methodStart == method.length() - 1) {
+            throw new IllegalArgumentException("Expected {class name}.{method name} in " + key);
+        }
+
+        return new MethodSelector(Configuration.dotToSlash(method.substring(0, methodStart)),
+                method.substring(methodStart + 1), descriptor, required, excluded);
+    }
+
+    private final int required;
+    private final int excluded;
+
+    MethodSelector(String className, String method, String descriptor, int required, int excluded) {
+        super(className, method, descriptor);
+        this.required = required;
+        this.excluded = excluded;
+    }
+
+    MethodSelector withClassName(String className) {
+        return new MethodSelector(className, getMethod(), getDescriptor(), required, excluded);
+    }
+
+    /**
+     * @return true if the method name has no globs so selectors can be looked up by it
+     */
+    boolean isExactMethod() {
+        return getMethod().indexOf(GLOB) < 0;
+    }
+
+    /**
+     * The class name is matched separately by {@link MethodSelectors}.
+     */
+    public boolean matches(int access, String method, String descriptor) {
+        if ((access & NEVER_SELECTED) != 0 || (access & required) != required || (access & excluded) != 0) {
+            return false;
+        }
+
+        if (method.charAt(0) == '<' && getMethod().charAt(0) != '<') {
+            return false;
+        }
+
+        return glob(getMethod(), method) && glob(getDescriptor(), descriptor);
+    }
+
+    /**
+     * Matches the whole value where each {@code *} in the pattern matches any characters. Backtracks only to the last
+     * glob so it is linear for the patterns used in practice.
+     */
+    static boolean glob(String pattern, String value) {
+        int p = 0;
+        int v = 0;
+        int lastGlob = -1;
+        int lastGlobValue = 0;
+
+        while (v < value.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == GLOB) {
+                lastGlob = p++;
+                lastGlobValue = v;
+            } else if (p < pattern.length() && pattern.charAt(p) == value.charAt(v)) {
+                p++;
+                v++;
+            } else if (lastGlob >= 0) {
+                p = lastGlob + 1;
+                v = ++lastGlobValue;
+            } else {
+                return false;
+            }
+        }
+
+        while (p < pattern.length() && pattern.charAt(p) == GLOB) {
+            p++;
+        }
+
+        return p == pattern.length();
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * super.hashCode() + required) + excluded;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+
+        MethodSelector other = (MethodSelector) obj;
+        return required == other.required && excluded == other.excluded;
+    }
+
+    @Override
+    public String toString() {
+        return "MethodSelector{" +
+                "className='" + getClassName() + '\'' +
+                ", method='" + getMethod() + '\'' +
+                ", desc='" + getDescriptor() + '\'' +
+                ", required=" + required +
+                ", excluded=" + excluded +
+                '}';
+    }
+}
@@ -0,0 +1,225 @@
+package com.fleury.metrics.agent.config;
+
+import com.fleury.metrics.agent.model.Metric;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The {@link MethodSelector}s of a configuration compiled for matching. The class name patterns of all the selectors
+ * are compiled into a single trie (with the same glob semantics as the {@link ClassNameMatcher} except that the whole
+ * class name must match) so finding the selectors of a class is a single pass over its name however many selectors
+ * are configured. The selectors of a class are then indexed by method name so matching a method only evaluates the
+ * selectors with that exact method name and those with a method name glob.
+ *
+ * @author Will Fleury
+ */
+public class MethodSelectors {
+
+    private static final char SEPARATOR = '/';
+    private static final char GLOB = '*';
+
+    private final Node root = new Node();
+    private final Map<MethodSelector, List<Metric>> metrics;
+
+    public MethodSelectors(Map<MethodSelector, List<Metric>> metrics) {
+        this.metrics = metrics;
+
+        for (MethodSelector selector : metrics.keySet()) {
+            add(selector);
+        }
+    }
+
+    public boolean isEmpty() {
+        return metrics.isEmpty();
+    }
+
+    public boolean matchesClass(String className) {
+        if (isEmpty() || className == null) {
+            return false;
+        }
+
+        return matches(root, className, 0);
+    }
+
+    /**
+     * @return the selectors of the class or null if there are none
+     */
+    public ClassSelectors select(String className) {
+        if (isEmpty() || className == null) {
+            return null;
+        }
+
+        Set<MethodSelector> selected = new LinkedHashSet<MethodSelector>();
+        collect(root, className, 0, selected);
+
+        return selected.isEmpty() ? null : new ClassSelectors(selected);
+    }
+
+    private void add(MethodSelector selector) {
+        String pattern = selector.getClassName();
+        Node node = root;
+
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+
+            if (c == GLOB && i + 1 < pattern.length() && pattern.charAt(i + 1) == GLOB) {
+                if (node.anyChars == null) {
+                    node.anyChars = new Node();
+                }
+                node = node.anyChars;
+                i += 2;
+            } else if (c == GLOB) {
+                if (node.anyNameChars == null) {
+                    node.anyNameChars = new Node();
+                }
+                node = node.anyNameChars;
+                i++;
+            } else {
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+                i++;
+            }
+        }
+
+        if (node.selectors == null) {
+            node.selectors = new ArrayList<MethodSelector>(1);
+        }
+        node.selectors.add(selector);
+    }
+
+    private static boolean matches(Node node, String className, int index) {
+        if (index == className.length()) {
+            if (node.selectors != null) {
+                return true;
+            }
+        } else {
+            Node child = node.children.get(className.charAt(index));
+            if (child != null && matches(child, className, index + 1)) {
+                return true;
+            }
+        }
+
+        if (node.anyNameChars != null) {
+            for (int i = index; i <= className.length(); i++) {
+                if (matches(node.anyNameChars, className, i)) {
+                    return true;
+                }
+
+                if (i < className.length() && className.charAt(i) == SEPARATOR) {
+                    break;
+                }
+            }
+        }
+
+        if (node.anyChars != null) {
+            for (int i = index; i <= className.length(); i++) {
+                if (matches(node.anyChars, className, i)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static void collect(Node node, String className, int index, Set<MethodSelector> selected) {
+        if (index == className.length()) {
+            if (node.selectors != null) {
+                selected.addAll(node.selectors);
+            }
+        } else {
+            Node child = node.children.get(className.charAt(index));
+            if (child != null) {
+                collect(child, className, index + 1, selected);
+            }
+        }
+
+        if (node.anyNameChars != null) {
+            for (int i = index; i <= className.length(); i++) {
+                collect(node.anyNameChars, className, i, selected);
+
+                if (i < className.length() && className.charAt(i) == SEPARATOR) {
+                    break;
+                }
+            }
+        }
+
+        if (node.anyChars != null) {
+            for (int i = index; i <= className.length(); i++) {
+                collect(node.anyChars, className, i, selected);
+            }
+        }
+    }
+
+    /**
+     * The selectors matching a single class.
+     */
+    public class ClassSelectors {
+
+        private final Map<String, List<MethodSelector>> byMethod = new HashMap<String, List<MethodSelector>>();
+        private final List<MethodSelector> globMethods = new ArrayList<MethodSelector>();
+
+        private ClassSelectors(Set<MethodSelector> selected) {
+            for (MethodSelector selector : selected) {
+                if (selector.isExactMethod()) {
+                    List<MethodSelector> selectors = byMethod.get(selector.getMethod());
+                    if (selectors == null) {
+                        selectors = new ArrayList<MethodSelector>();
+                        byMethod.put(selector.getMethod(), selectors);
+                    }
+                    selectors.add(selector);
+                } else {
+                    globMethods.add(selector);
+                }
+            }
+        }
+
+        public List<Metric> findMetrics(int access, String method, String descriptor) {
+            List<Metric> found = null;
+            found = addMetrics(byMethod.get(method), access, method, descriptor, found);
+            found = addMetrics(globMethods, access, method, descriptor, found);
+
+            return found == null ? Collections.<Metric>emptyList() : found;
+        }
+
+        private List<Metric> addMetrics(List<MethodSelector> selectors, int access, String method, String descriptor,
+                                        List<Metric> found) {
+            if (selectors == null) {
+                return found;
+            }
+
+            for (MethodSelector selector : selectors) {
+                if (selector.matches(access, method, descriptor)) {
+                    if (found == null) {
+                        found = new ArrayList<Metric>();
+                    }
+                    found.addAll(metrics.get(selector));
+                }
+            }
+
+            return found;
+        }
+    }
+
+    private static class Node {
+
+        private final Map<Character, Node> children = new HashMap<Character, Node>(4);
+
+        // the node reached after a * or ** glob
+        private Node anyNameChars;
+        private Node anyChars;
+
+        // the selectors whose class name pattern ends here
+        private List<MethodSelector> selectors;
+    }
+}
@@ -0,0 +1,120 @@
+package com.fleury.metrics.agent.config;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decides which classes are not worth looking at based only on what the JVM tells us about them, i.e. before the
+ * class bytes are touched. Many of the classes loaded by a typical application are generated at runtime (proxies,
+ * lambdas, CGLIB and ByteBuddy subclasses, compiled JSPs) or belong to the JDK and they never carry metrics.
+ *
+ * Classes with configured metrics are never rejected by the transformer so a rejected class can still be instrumented
+ * by adding it to the configuration.
+ *
+ * @author Will Fleury
+ */
+public class RejectPolicy {
+
+    public static final String REJECTED_ANONYMOUS = "anonymous";
+    public static final String REJECTED_GENERATED = "generated";
+    public static final String REJECTED_BOOTSTRAP = "bootstrap";
+    public static final String REJECTED_NO_CODE_SOURCE = "no_code_source";
+
+    public static final List<String> DEFAULT_CLASSES = Collections.unmodifiableList(Arrays.asList(
+            "$Proxy",
+            "**/$Proxy",
+            "**$$Lambda",
+            "**$$EnhancerBy",
+            "**$$FastClassBy",
+            "**$$SpringCGLIB$$",
+            "**$ByteBuddy$",
+            "**$HibernateProxy$",
+            "**$$_jvst",
+            "**$MockitoMock$",
+            "org/apache/jsp/",
+            "jdk/internal/",
+            "sun/reflect/Generated",
+            "java/lang/invoke/LambdaForm$"
+    ));
+
+    public static RejectPolicy defaultPolicy() {
+        return new RejectPolicy(null, null, null);
+    }
+
+    private final List<String> classes;
+    private final boolean bootstrapClasses;
+    private final boolean withoutCodeSource;
+    private final ClassNameMatcher classMatcher;
+
+    /**
+     * @param classes patterns of class names to reject, in the same format as the black list
+     * @param bootstrapClasses reject classes loaded by the bootstrap class loader
+     * @param withoutCodeSource reject classes defined at runtime, i.e. which do not come from a jar or directory. Off
+     * by default as classes defined by containers and plugin loaders may carry metric annotations.
+     */
+    @JsonCreator
+    public RejectPolicy(
+            @JsonProperty("classes") List<String> classes,
+            @JsonProperty("bootstrapClasses") Boolean bootstrapClasses,
+            @JsonProperty("withoutCodeSource") Boolean withoutCodeSource) {
+        this.classes = classes == null ? DEFAULT_CLASSES : classes;
+        this.bootstrapClasses = bootstrapClasses == null ? true : bootstrapClasses;
+        this.withoutCodeSource = withoutCodeSource == null ? false : withoutCodeSource;
+        this.classMatcher = new ClassNameMatcher(this.classes);
+    }
+
+    /**
+     * @return the reason the class is rejected or null if it should be looked at
+     */
+    public String reject(String className, ClassLoader loader, ProtectionDomain protectionDomain) {
+        // hidden and VM anonymous classes cannot be referenced in the configuration nor retransformed
+        if (className == null) {
+            return REJECTED_ANONYMOUS;
+        }
+
+        if (bootstrapClasses && loader == null) {
+            return REJECTED_BOOTSTRAP;
+        }
+
+        if (classMatcher.matches(className)) {
+            return REJECTED_GENERATED;
+        }
+
+        // no protection domain tells us nothing. Classes defined without one get the loader's default domain.
+        if (withoutCodeSource && protectionDomain != null && !hasLocation(protectionDomain.getCodeSource())) {
+            return REJECTED_NO_CODE_SOURCE;
+        }
+
+        return null;
+    }
+
+    private static boolean hasLocation(CodeSource codeSource) {
+        return codeSource != null && codeSource.getLocation() != null;
+    }
+
+    public List<String> getClasses() {
+        return classes;
+    }
+
+    public boolean isBootstrapClasses() {
+        return bootstrapClasses;
+    }
+
+    public boolean isWithoutCodeSource() {
+        return withoutCodeSource;
+    }
+
+    @Override
+    public String toString() {
+        return "RejectPolicy{" +
+                "classes=" + classes +
+                ", bootstrapClasses=" + bootstrapClasses +
+                ", withoutCodeSource=" + withoutCodeSource +
+                '}';
+    }
+}
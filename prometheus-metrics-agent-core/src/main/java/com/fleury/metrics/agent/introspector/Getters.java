@@ -0,0 +1,44 @@
+package com.fleury.metrics.agent.introspector;
+
+/**
+ * The methods which read a nested property of a label value. Besides JavaBeans getters (getName() or isName() for a
+ * boolean) a property can be read by a method of the same name, e.g. name(), which gives better support for other JVM
+ * languages and for enums.
+ *
+ * @author Will Fleury
+ */
+public class Getters {
+
+    /**
+     * @return the names of the no argument methods which may read the property, in the order they are looked up
+     */
+    public static String[] getterNames(String property) {
+        String capitalized = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+
+        if (isPlainGetterName(property)) {
+            return new String[] {"get" + capitalized, "is" + capitalized, property};
+        }
+
+        return new String[] {"get" + capitalized, "is" + capitalized};
+    }
+
+    /**
+     * @param name one of the {@link #getterNames(String)} of the property
+     * @param returnType the name of the type returned by the method, as given by Class.getName()
+     * @return true if the no argument method reads the property. isName() only reads boolean properties.
+     */
+    public static boolean isGetter(String property, String name, String returnType) {
+        if (returnType.equals("void")) {
+            return false;
+        }
+
+        return name.equals(property) || !name.startsWith("is") || returnType.equals("boolean");
+    }
+
+    private static boolean isPlainGetterName(String property) {
+        return !property.startsWith("get") &&
+                !property.startsWith("wait") &&
+                !property.equals("hashCode") &&
+                !property.equals("toString");
+    }
+}
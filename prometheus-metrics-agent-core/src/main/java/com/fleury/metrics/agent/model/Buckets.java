@@ -0,0 +1,100 @@
+package com.fleury.metrics.agent.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The upper bounds of the histogram buckets of a Timed metric, given explicitly or generated from
+ * {start, width, count} for linear or {start, factor, count} for exponential buckets.
+ *
+ * @author Will Fleury
+ */
+public class Buckets {
+
+    /**
+     * @return the buckets of a Timed metric or null to use the default buckets
+     * @throws IllegalArgumentException if more than one is given or the buckets are not increasing
+     */
+    public static List<Double> resolve(String name, List<Double> buckets, List<Double> linear,
+                                       List<Double> exponential) {
+        int given = (isSet(buckets) ? 1 : 0) + (isSet(linear) ? 1 : 0) + (isSet(exponential) ? 1 : 0);
+        if (given > 1) {
+            throw new IllegalArgumentException(
+                    "Only one of buckets, linearBuckets and exponentialBuckets can be given for " + name);
+        }
+
+        List<Double> resolved = null;
+        if (isSet(buckets)) {
+            resolved = new ArrayList<Double>(buckets);
+        } else if (isSet(linear)) {
+            checkGenerator(name, "linearBuckets", linear);
+            resolved = linear(linear.get(0), linear.get(1), linear.get(2).intValue());
+        } else if (isSet(exponential)) {
+            checkGenerator(name, "exponentialBuckets", exponential);
+            resolved = exponential(exponential.get(0), exponential.get(1), exponential.get(2).intValue());
+        }
+
+        if (resolved != null) {
+            for (int i = 1; i < resolved.size(); i++) {
+                if (resolved.get(i - 1) >= resolved.get(i)) {
+                    throw new IllegalArgumentException("Buckets of " + name + " must be increasing: " + resolved);
+                }
+            }
+        }
+
+        return resolved;
+    }
+
+    public static List<Double> linear(double start, double width, int count) {
+        List<Double> buckets = new ArrayList<Double>(count);
+        for (int i = 0; i < count; i++) {
+            buckets.add(start + i * width);
+        }
+
+        return buckets;
+    }
+
+    public static List<Double> exponential(double start, double factor, int count) {
+        List<Double> buckets = new ArrayList<Double>(count);
+        for (int i = 0; i < count; i++) {
+            buckets.add(start * Math.pow(factor, i));
+        }
+
+        return buckets;
+    }
+
+    /**
+     * @return the buckets as a single constant which instrumented classes pass when registering their Timed metrics
+     */
+    public static String encode(List<Double> buckets) {
+        StringBuilder encoded = new StringBuilder();
+        for (Double bucket : buckets) {
+            encoded.append(encoded.length() == 0 ? "" : ",").append(bucket);
+        }
+
+        return encoded.toString();
+    }
+
+    public static double[] decode(String encoded) {
+        String[] values = encoded.split(",");
+
+        double[] buckets = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            buckets[i] = Double.parseDouble(values[i]);
+        }
+
+        return buckets;
+    }
+
+    private static boolean isSet(List<Double> values) {
+        return values != null && !values.isEmpty();
+    }
+
+    private static void checkGenerator(String name, String generator, List<Double> values) {
+        if (values.size() != 3 || values.get(2) < 1) {
+            throw new IllegalArgumentException(generator + " of " + name + " must be {start, " +
+                    (generator.startsWith("linear") ? "width" : "factor") + ", count} with count of at least 1 " +
+                    "but is " + values);
+        }
+    }
+}
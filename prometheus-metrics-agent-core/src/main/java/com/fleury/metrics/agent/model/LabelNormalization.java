@@ -0,0 +1,109 @@
+package com.fleury.metrics.agent.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * How the values of a dynamic label of a metric are normalized before they are recorded, e.g. to replace the ids in
+ * request paths so they do not create a series each. The value is lower cased first (if enabled), then each of the
+ * replace patterns is replaced in turn and finally it is truncated to the max length.
+ *
+ * @author Will Fleury
+ */
+public class LabelNormalization {
+
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+
+    // regex to replacement, in the order they are applied
+    private final Map<String, String> replace;
+    private final Integer maxLength;
+    private final boolean lowerCase;
+    private final Integer cacheSize;
+
+    @JsonCreator
+    public LabelNormalization(@JsonProperty("replace") Map<String, String> replace,
+                              @JsonProperty("maxLength") Integer maxLength,
+                              @JsonProperty("lowerCase") Boolean lowerCase,
+                              @JsonProperty("cacheSize") Integer cacheSize) {
+        if (maxLength != null && maxLength < 1) {
+            throw new IllegalArgumentException("maxLength must be at least 1 but is " + maxLength);
+        }
+        if (cacheSize != null && cacheSize < 1) {
+            throw new IllegalArgumentException("cacheSize must be at least 1 but is " + cacheSize);
+        }
+
+        this.replace = replace == null ?
+                Collections.<String, String>emptyMap() :
+                Collections.unmodifiableMap(new LinkedHashMap<String, String>(replace));
+        this.maxLength = maxLength;
+        this.lowerCase = lowerCase != null && lowerCase;
+        this.cacheSize = cacheSize;
+
+        // fail when the configuration is read rather than when the label is first recorded
+        for (String regex : this.replace.keySet()) {
+            Pattern.compile(regex);
+        }
+    }
+
+    public Map<String, String> getReplace() {
+        return replace;
+    }
+
+    /**
+     * @return the longest label value or null if values are not truncated
+     */
+    public Integer getMaxLength() {
+        return maxLength;
+    }
+
+    public boolean isLowerCase() {
+        return lowerCase;
+    }
+
+    /**
+     * @return the most raw values whose normalized value is remembered
+     */
+    public int getCacheSize() {
+        return cacheSize == null ? DEFAULT_CACHE_SIZE : cacheSize;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 53 * hash + replace.hashCode();
+        hash = 53 * hash + (maxLength != null ? maxLength.hashCode() : 0);
+        hash = 53 * hash + (lowerCase ? 1 : 0);
+        hash = 53 * hash + getCacheSize();
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof LabelNormalization)) {
+            return false;
+        }
+
+        LabelNormalization other = (LabelNormalization) obj;
+        // map equality ignores the order the patterns are applied in
+        return new ArrayList<Map.Entry<String, String>>(replace.entrySet())
+                .equals(new ArrayList<Map.Entry<String, String>>(other.replace.entrySet())) &&
+                (maxLength == null ? other.maxLength == null : maxLength.equals(other.maxLength)) &&
+                lowerCase == other.lowerCase &&
+                getCacheSize() == other.getCacheSize();
+    }
+
+    @Override
+    public String toString() {
+        return "LabelNormalization{" +
+                "replace=" + replace +
+                ", maxLength=" + maxLength +
+                ", lowerCase=" + lowerCase +
+                ", cacheSize=" + cacheSize +
+                '}';
+    }
+}
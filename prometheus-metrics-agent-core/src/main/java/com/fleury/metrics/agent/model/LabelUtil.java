@@ -26,6 +26,13 @@ public class LabelUtil {
         return names;
     }
     
+    /**
+     * @return the name the normalization of the values of a label of a metric is registered and looked up by
+     */
+    public static String normalizationKey(String metric, String label) {
+        return metric + "." + label;
+    }
+
     public static int getLabelVarIndex(String value) {
         if (isLabelVarNested(value)) {
             return Integer.valueOf(value.substring(1, value.indexOf('.')));
@@ -50,6 +57,16 @@ public class LabelUtil {
         return value.startsWith("$");
     }
 
+    public static boolean hasTemplatedLabelValues(List<String> labels) {
+        for (String value : getLabelValues(labels)) {
+            if (isTemplatedLabelValue(value)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     public static List<String> getLabelNames(List<String> labels) {
         return new ArrayList<String>(splitLabelNameAndValue(labels).keySet());
     }
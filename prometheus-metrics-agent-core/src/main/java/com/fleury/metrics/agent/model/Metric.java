@@ -2,9 +2,12 @@ package com.fleury.metrics.agent.model;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -27,19 +30,55 @@ public class Metric {
     private final String doc;
     private final List<String> labels;
     private final String mode;
-
+    private final Integer sampleRate;
+    private final Integer maxSeries;
+    private final Map<String, LabelNormalization> normalize;
+    private final List<Double> buckets;
+    private final TimeUnit unit;
 
     @JsonCreator
     Metric(@JsonProperty("type") MetricType type,
            @JsonProperty("name") String name,
            @JsonProperty("doc") String doc,
            @JsonProperty("labels") List<String> labels,
-           @JsonProperty("mode") String mode) {
+           @JsonProperty("mode") String mode,
+           @JsonProperty("sampleRate") Integer sampleRate,
+           @JsonProperty("maxSeries") Integer maxSeries,
+           @JsonProperty("normalize") Map<String, LabelNormalization> normalize,
+           @JsonProperty("buckets") List<Double> buckets,
+           @JsonProperty("linearBuckets") List<Double> linearBuckets,
+           @JsonProperty("exponentialBuckets") List<Double> exponentialBuckets,
+           @JsonProperty("unit") String unit) {
+        if (sampleRate != null && sampleRate < 1) {
+            throw new IllegalArgumentException("sampleRate of " + name + " must be at least 1 but is " + sampleRate);
+        }
+        if (maxSeries != null && maxSeries < 1) {
+            throw new IllegalArgumentException("maxSeries of " + name + " must be at least 1 but is " + maxSeries);
+        }
+
         this.type = type;
         this.name = name;
         this.doc = doc;
         this.labels = labels;
         this.mode = mode;
+        this.sampleRate = sampleRate;
+        this.maxSeries = maxSeries;
+        this.normalize = normalize == null ?
+                Collections.<String, LabelNormalization>emptyMap() :
+                Collections.unmodifiableMap(normalize);
+
+        for (String label : this.normalize.keySet()) {
+            if (!LabelUtil.getLabelNames(labels).contains(label)) {
+                throw new IllegalArgumentException("normalize of " + name + " refers to unknown label " + label);
+            }
+        }
+
+        this.buckets = Buckets.resolve(name, buckets, linearBuckets, exponentialBuckets);
+        this.unit = unit == null ? null : TimeUnit.valueOf(unit.toUpperCase(Locale.ROOT));
+
+        if (type != MetricType.Timed && (this.buckets != null || this.unit != null)) {
+            throw new IllegalArgumentException("Only Timed metrics have buckets and a unit but " + name + " is " + type);
+        }
     }
 
     public MetricType getType() {
@@ -58,6 +97,123 @@ public class Metric {
         return doc;
     }
 
+    /**
+     * @return one in how many calls a Timed metric records the duration of
+     */
+    public int getSampleRate() {
+        return sampleRate == null ? 1 : sampleRate;
+    }
+
+    /**
+     * @return the most label value combinations recorded or null if there is no limit
+     */
+    public Integer getMaxSeries() {
+        return maxSeries;
+    }
+
+    /**
+     * @return how the values of the dynamic labels are normalized by label name, empty if they are recorded as read
+     */
+    public Map<String, LabelNormalization> getNormalize() {
+        return normalize;
+    }
+
+    /**
+     * @return the upper bounds of the buckets of a Timed metric in its unit or null for the default buckets
+     */
+    public List<Double> getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * @return the unit the durations of a Timed metric are recorded in
+     */
+    public TimeUnit getUnit() {
+        return unit == null ? TimeUnit.SECONDS : unit;
+    }
+
+    /**
+     * @return true if the buckets or unit of a Timed metric are not the defaults
+     */
+    public boolean hasTimerOptions() {
+        return buckets != null || getUnit() != TimeUnit.SECONDS;
+    }
+
+    public boolean isSampled() {
+        return type == MetricType.Timed && getSampleRate() > 1;
+    }
+
+    /**
+     * @return the counter of all calls of a sampled Timed metric as its histogram only counts the sampled calls, null
+     * if the metric is not sampled
+     */
+    public Metric getSampledCalls() {
+        if (!isSampled()) {
+            return null;
+        }
+
+        return builder().type(MetricType.Counted).name(name + "_calls").doc(doc).labels(labels)
+                .maxSeries(maxSeries).normalize(normalize).createMetric();
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 53 * hash + (this.type != null ? this.type.hashCode() : 0);
+        hash = 53 * hash + (this.name != null ? this.name.hashCode() : 0);
+        hash = 53 * hash + (this.doc != null ? this.doc.hashCode() : 0);
+        hash = 53 * hash + (this.labels != null ? this.labels.hashCode() : 0);
+        hash = 53 * hash + (this.mode != null ? this.mode.hashCode() : 0);
+        hash = 53 * hash + getSampleRate();
+        hash = 53 * hash + (this.maxSeries != null ? this.maxSeries.hashCode() : 0);
+        hash = 53 * hash + this.normalize.hashCode();
+        hash = 53 * hash + (this.buckets != null ? this.buckets.hashCode() : 0);
+        hash = 53 * hash + getUnit().hashCode();
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final Metric other = (Metric) obj;
+        if (this.type != other.type) {
+            return false;
+        }
+        if ((this.name == null) ? (other.name != null) : !this.name.equals(other.name)) {
+            return false;
+        }
+        if ((this.doc == null) ? (other.doc != null) : !this.doc.equals(other.doc)) {
+            return false;
+        }
+        if ((this.labels == null) ? (other.labels != null) : !this.labels.equals(other.labels)) {
+            return false;
+        }
+        if ((this.mode == null) ? (other.mode != null) : !this.mode.equals(other.mode)) {
+            return false;
+        }
+        if (getSampleRate() != other.getSampleRate()) {
+            return false;
+        }
+        if ((this.maxSeries == null) ? (other.maxSeries != null) : !this.maxSeries.equals(other.maxSeries)) {
+            return false;
+        }
+        if (!this.normalize.equals(other.normalize)) {
+            return false;
+        }
+        if ((this.buckets == null) ? (other.buckets != null) : !this.buckets.equals(other.buckets)) {
+            return false;
+        }
+        if (getUnit() != other.getUnit()) {
+            return false;
+        }
+        return true;
+    }
+
     @Override
     public String toString() {
         return "Metric{" +
@@ -66,6 +222,11 @@ public class Metric {
                 ", doc='" + doc + '\'' +
                 ", labels=" + labels +
                 ", mode=" + mode +
+                ", sampleRate=" + sampleRate +
+                ", maxSeries=" + maxSeries +
+                ", normalize=" + normalize +
+                ", buckets=" + buckets +
+                ", unit=" + unit +
                 '}';
     }
 
@@ -79,6 +240,13 @@ public class Metric {
         private String doc;
         private List<String> labels;
         private String mode;
+        private Integer sampleRate;
+        private Integer maxSeries;
+        private Map<String, LabelNormalization> normalize;
+        private List<Double> buckets;
+        private List<Double> linearBuckets;
+        private List<Double> exponentialBuckets;
+        private String unit;
 
         public MetricBuilder type(MetricType type) {
             this.type = type;
@@ -105,8 +273,44 @@ public class Metric {
             return this;
         }
 
+        public MetricBuilder sampleRate(Integer sampleRate) {
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        public MetricBuilder maxSeries(Integer maxSeries) {
+            this.maxSeries = maxSeries;
+            return this;
+        }
+
+        public MetricBuilder normalize(Map<String, LabelNormalization> normalize) {
+            this.normalize = normalize;
+            return this;
+        }
+
+        public MetricBuilder buckets(List<Double> buckets) {
+            this.buckets = buckets;
+            return this;
+        }
+
+        public MetricBuilder linearBuckets(List<Double> linearBuckets) {
+            this.linearBuckets = linearBuckets;
+            return this;
+        }
+
+        public MetricBuilder exponentialBuckets(List<Double> exponentialBuckets) {
+            this.exponentialBuckets = exponentialBuckets;
+            return this;
+        }
+
+        public MetricBuilder unit(String unit) {
+            this.unit = unit;
+            return this;
+        }
+
         public Metric createMetric() {
-            return new Metric(type, name, doc, labels, mode);
+            return new Metric(type, name, doc, labels, mode, sampleRate, maxSeries, normalize,
+                    buckets, linearBuckets, exponentialBuckets, unit);
         }
     }
 
@@ -4,9 +4,9 @@ import com.fleury.metrics.agent.annotation.Counted;
 import com.fleury.metrics.agent.annotation.ExceptionCounted;
 import com.fleury.metrics.agent.annotation.Gauged;
 import com.fleury.metrics.agent.annotation.Timed;
+import com.fleury.metrics.agent.reporter.TimerHistogram;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
-import io.prometheus.client.Histogram;
 import org.objectweb.asm.Type;
 
 /**
@@ -15,18 +15,20 @@ import org.objectweb.asm.Type;
  */
 public enum MetricType {
 
-    Counted(Counted.class, Counter.class),
-    Gauged(Gauged.class, Gauge.class),
-    Timed(Timed.class, Histogram.class),
-    ExceptionCounted(ExceptionCounted.class, Counter.class);
+    Counted(Counted.class, Counter.class, Counter.Child.class),
+    Gauged(Gauged.class, Gauge.class, Gauge.Child.class),
+    Timed(Timed.class, TimerHistogram.class, TimerHistogram.Child.class),
+    ExceptionCounted(ExceptionCounted.class, Counter.class, Counter.Child.class);
 
     private final Class annotation;
     private final Class coreType;
+    private final Class childType;
     private final String desc;
 
-    MetricType(Class annotation, Class coreType) {
+    MetricType(Class annotation, Class coreType, Class childType) {
         this.annotation = annotation;
         this.coreType = coreType;
+        this.childType = childType;
         this.desc = Type.getDescriptor(annotation);
     }
 
@@ -37,6 +39,13 @@ public enum MetricType {
     public Class getCoreType() {
         return coreType;
     }
+
+    /**
+     * @return the type holding the value of the core type for a single set of label values
+     */
+    public Class getChildType() {
+        return childType;
+    }
     
     public String getDesc() {
         return desc;
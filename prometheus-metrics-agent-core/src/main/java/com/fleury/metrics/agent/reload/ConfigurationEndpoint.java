@@ -0,0 +1,87 @@
+package com.fleury.metrics.agent.reload;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Accepts a complete configuration yaml POSTed to /config and applies it. The response lists the retransformed
+ * classes. It only listens on the loopback interface as it allows changing the bytecode of the application.
+ *
+ * <pre>
+ * curl --data-binary @config.yaml http://localhost:9900/config
+ * </pre>
+ *
+ * @author Will Fleury
+ */
+public class ConfigurationEndpoint implements HttpHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigurationEndpoint.class.getName());
+
+    private final Retransformer retransformer;
+
+    public ConfigurationEndpoint(Retransformer retransformer) {
+        this.retransformer = retransformer;
+    }
+
+    public void start(int port) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+            server.createContext("/config", this);
+            server.start();
+
+            LOGGER.log(FINE, "Started configuration endpoint on port {0}", port);
+        } catch (Exception e) { //widen scope in case of ClassNotFoundException on non oracle/sun JVM
+            LOGGER.log(WARNING, "Unable to start configuration endpoint on port " + port, e);
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Only POST is supported\n");
+                return;
+            }
+
+            Configuration updated;
+            try {
+                updated = Configuration.createConfig(exchange.getRequestBody());
+            } catch (Exception e) {
+                respond(exchange, 400, "Invalid configuration: " + e.getMessage() + "\n");
+                return;
+            }
+
+            List<String> retransformed = retransformer.reconfigure(updated);
+
+            StringBuilder sb = new StringBuilder();
+            for (String className : retransformed) {
+                sb.append(className).append('\n');
+            }
+
+            respond(exchange, 200, sb.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
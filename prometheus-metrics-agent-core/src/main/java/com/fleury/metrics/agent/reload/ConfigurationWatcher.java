@@ -0,0 +1,70 @@
+package com.fleury.metrics.agent.reload;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import com.fleury.metrics.agent.config.Configuration;
+import java.io.File;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+/**
+ * Polls the configuration file and applies it whenever it changes. A file which cannot be parsed is logged and
+ * ignored so a half written file never removes all the metrics. It is read again at each poll until it is applied, as
+ * the rest of a half written file may be written without changing its modification time or length.
+ *
+ * @author Will Fleury
+ */
+public class ConfigurationWatcher extends TimerTask {
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigurationWatcher.class.getName());
+
+    private final File file;
+    private final Retransformer retransformer;
+
+    private long lastModified;
+    private long length;
+
+    private long failedModified = -1;
+    private long failedLength = -1;
+
+    public ConfigurationWatcher(File file, Retransformer retransformer) {
+        this.file = file;
+        this.retransformer = retransformer;
+        this.lastModified = file.lastModified();
+        this.length = file.length();
+    }
+
+    public void start(int intervalSeconds) {
+        LOGGER.log(FINE, "Watching {0} for configuration changes", file);
+
+        long interval = intervalSeconds * 1000L;
+        new Timer("metrics-agent-config-watcher", true).schedule(this, interval, interval);
+    }
+
+    @Override
+    public void run() {
+        long modified = file.lastModified();
+        long size = file.length();
+
+        if (modified == lastModified && size == length) {
+            return;
+        }
+
+        try {
+            retransformer.reconfigure(Configuration.createConfig(file.getPath()));
+        } catch (Exception e) {
+            // warns once for each version of the file rather than at every poll
+            boolean failedBefore = modified == failedModified && size == failedLength;
+            failedModified = modified;
+            failedLength = size;
+
+            LOGGER.log(failedBefore ? FINE : WARNING, "Unable to apply updated configuration " + file, e);
+            return;
+        }
+
+        lastModified = modified;
+        length = size;
+    }
+}
@@ -0,0 +1,224 @@
+package com.fleury.metrics.agent.reload;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.config.MethodSelectors;
+import com.fleury.metrics.agent.model.MetricType;
+import com.fleury.metrics.agent.reporter.PrometheusMetricSystem;
+import com.fleury.metrics.agent.transformer.AnnotatedMetricClassTransformer;
+import java.lang.annotation.Annotation;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.AccessibleObject;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Applies an updated configuration to a running JVM. Only the loaded classes whose metrics (or white and black list
+ * status) changed are retransformed. Fields cannot be added to a retransformed class so metrics added at runtime are
+ * looked up by name when recorded rather than held in a static field.
+ *
+ * @author Will Fleury
+ */
+public class Retransformer {
+
+    private static final Logger LOGGER = Logger.getLogger(Retransformer.class.getName());
+
+    private static final Set<String> ANNOTATIONS = new HashSet<String>();
+
+    static {
+        for (MetricType type : MetricType.values()) {
+            ANNOTATIONS.add(type.getAnnotation().getName());
+        }
+    }
+
+    private final Instrumentation instrumentation;
+    private final AnnotatedMetricClassTransformer transformer;
+
+    /**
+     * @param transformer must be registered with the instrumentation as able to retransform classes
+     */
+    public Retransformer(Instrumentation instrumentation, AnnotatedMetricClassTransformer transformer) {
+        this.instrumentation = instrumentation;
+        this.transformer = transformer;
+    }
+
+    /**
+     * @return the names of the classes which were retransformed
+     */
+    public synchronized List<String> reconfigure(Configuration updated) {
+        Configuration current = transformer.getConfiguration();
+
+        Set<String> changed = current.getChangedClasses(updated);
+        MethodSelectors changedSelectors = current.getChangedSelectors(updated);
+        boolean listsChanged = !current.getWhiteList().equals(updated.getWhiteList()) ||
+                !current.getBlackList().equals(updated.getBlackList());
+
+        transformer.setConfiguration(updated);
+
+        // switching metrics on and off relinks their call sites so it does not need any class to be retransformed
+        PrometheusMetricSystem.setDisabledMetrics(updated.getDisabledMetrics());
+
+        // before any class is retransformed so they find the normalizations of the labels they now normalize
+        PrometheusMetricSystem.setLabelNormalizations(updated.getLabelNormalizations());
+
+        if (changed.isEmpty() && changedSelectors.isEmpty() && !listsChanged) {
+            return new ArrayList<String>();
+        }
+
+        List<String> retransformed = new ArrayList<String>();
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (!instrumentation.isModifiableClass(clazz)) {
+                continue;
+            }
+
+            String className = clazz.getName().replace('.', '/');
+
+            if (changed.contains(className) || changedSelectors.matchesClass(className) ||
+                    implementsChanged(clazz, changed, changedSelectors) ||
+                    (listsChanged && isListed(current, className) != isListed(updated, className))) {
+
+                if (retransform(clazz)) {
+                    retransformed.add(className);
+                }
+            }
+        }
+
+        LOGGER.log(INFO, "Retransformed {0} classes for the updated configuration", retransformed.size());
+
+        return retransformed;
+    }
+
+    /**
+     * Retransforms the classes loaded before the agent was attached which have configured or annotated metrics.
+     *
+     * @return the names of the classes which were retransformed
+     */
+    public synchronized List<String> retransformLoaded() {
+        Configuration config = transformer.getConfiguration();
+
+        List<String> retransformed = new ArrayList<String>();
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (!instrumentation.isModifiableClass(clazz)) {
+                continue;
+            }
+
+            String className = clazz.getName().replace('.', '/');
+
+            if (isListed(config, className) && (config.isMetric(className) || implementsConfigured(config, clazz) ||
+                    isSelectedOrAnnotated(config, clazz))) {
+                if (retransform(clazz)) {
+                    retransformed.add(className);
+                }
+            }
+        }
+
+        LOGGER.log(INFO, "Retransformed {0} loaded classes", retransformed.size());
+
+        return retransformed;
+    }
+
+    private boolean retransform(Class<?> clazz) {
+        try {
+            instrumentation.retransformClasses(clazz);
+            return true;
+        } catch (Exception e) {
+            LOGGER.log(WARNING, "Unable to retransform " + clazz.getName(), e);
+        } catch (LinkageError e) { // e.g. VerifyError
+            LOGGER.log(WARNING, "Unable to retransform " + clazz.getName(), e);
+        }
+
+        return false;
+    }
+
+    private static boolean implementsChanged(Class<?> clazz, Set<String> changed, MethodSelectors changedSelectors) {
+        for (String name : getAllInterfaces(clazz)) {
+            if (changed.contains(name) || changedSelectors.matchesClass(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean implementsConfigured(Configuration config, Class<?> clazz) {
+        if (!config.hasConfiguredMetrics()) {
+            return false;
+        }
+
+        for (String name : getAllInterfaces(clazz)) {
+            if (config.isMetric(name) || config.isSelected(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the internal names of the interfaces implemented by the class or its super classes. Empty for
+     * interfaces as only classes implement the methods of their interfaces.
+     */
+    private static Set<String> getAllInterfaces(Class<?> clazz) {
+        Set<String> interfaces = new HashSet<String>();
+        if (clazz.isInterface()) {
+            return interfaces;
+        }
+
+        for (Class<?> type = clazz; type != null; type = type.getSuperclass()) {
+            addInterfaces(type, interfaces);
+        }
+
+        return interfaces;
+    }
+
+    private static void addInterfaces(Class<?> type, Set<String> interfaces) {
+        for (Class<?> i : type.getInterfaces()) {
+            if (interfaces.add(i.getName().replace('.', '/'))) {
+                addInterfaces(i, interfaces);
+            }
+        }
+    }
+
+    private static boolean isSelectedOrAnnotated(Configuration config, Class<?> clazz) {
+        String className = clazz.getName().replace('.', '/');
+
+        // the transformer would not scan the class anyway
+        if (config.getRejectPolicy().reject(className, clazz.getClassLoader(), clazz.getProtectionDomain()) != null) {
+            return false;
+        }
+
+        if (config.isSelected(className)) {
+            return true;
+        }
+
+        try {
+            return isAnnotated(clazz.getDeclaredMethods()) || isAnnotated(clazz.getDeclaredConstructors());
+        } catch (LinkageError e) { // a class referenced in a signature cannot be loaded
+            LOGGER.log(FINE, "Unable to check " + clazz.getName() + " for metric annotations", e);
+            return false;
+        }
+    }
+
+    private static boolean isAnnotated(AccessibleObject[] members) {
+        for (AccessibleObject member : members) {
+            for (Annotation annotation : member.getDeclaredAnnotations()) {
+                // compare names as the application may load the annotations with a different loader than the agent
+                if (ANNOTATIONS.contains(annotation.annotationType().getName())) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isListed(Configuration config, String className) {
+        return config.isWhiteListed(className) && !config.isBlackListed(className);
+    }
+}
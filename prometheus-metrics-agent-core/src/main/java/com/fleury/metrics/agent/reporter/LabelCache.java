@@ -0,0 +1,136 @@
+package com.fleury.metrics.agent.reporter;
+
+import io.prometheus.client.SimpleCollector;
+
+/**
+ * Held in the static metric field of an instrumented class instead of the collector when the label values of the
+ * metric are read from the method arguments. Recording a collector with label values builds an array of them which
+ * the collector wraps in a list to look up the child in a map. Calls usually repeat a few label values so the last
+ * children found are kept in a small direct mapped table and only the label values are compared when one of them is
+ * recorded again.
+ *
+ * The table is read and written without locking. Its entries never change once created so a thread sees either a
+ * complete entry or a different one, in which case it looks up the child in the collector.
+ *
+ * @author Will Fleury
+ */
+public final class LabelCache {
+
+    // metrics rarely have more than a few label values which are hot at the same time
+    private static final int SIZE = 4;
+    private static final int MASK = SIZE - 1;
+
+    private final SimpleCollector<?> collector;
+    private final Entry[] entries = new Entry[SIZE];
+
+    LabelCache(SimpleCollector<?> collector) {
+        this.collector = collector;
+    }
+
+    public Object labels(String v0) {
+        int hash = v0.hashCode();
+
+        Entry entry = entries[index(hash)];
+        if (entry != null && entry.matches(v0)) {
+            return entry.child;
+        }
+
+        return miss(hash, v0);
+    }
+
+    public Object labels(String v0, String v1) {
+        int hash = 31 * v0.hashCode() + v1.hashCode();
+
+        Entry entry = entries[index(hash)];
+        if (entry != null && entry.matches(v0, v1)) {
+            return entry.child;
+        }
+
+        return miss(hash, v0, v1);
+    }
+
+    public Object labels(String v0, String v1, String v2) {
+        int hash = 31 * (31 * v0.hashCode() + v1.hashCode()) + v2.hashCode();
+
+        Entry entry = entries[index(hash)];
+        if (entry != null && entry.matches(v0, v1, v2)) {
+            return entry.child;
+        }
+
+        return miss(hash, v0, v1, v2);
+    }
+
+    public Object labels(String v0, String v1, String v2, String v3) {
+        int hash = 31 * (31 * (31 * v0.hashCode() + v1.hashCode()) + v2.hashCode()) + v3.hashCode();
+
+        Entry entry = entries[index(hash)];
+        if (entry != null && entry.matches(v0, v1, v2, v3)) {
+            return entry.child;
+        }
+
+        return miss(hash, v0, v1, v2, v3);
+    }
+
+    public Object labels(String v0, String v1, String v2, String v3, String v4) {
+        int hash = 31 * (31 * (31 * (31 * v0.hashCode() + v1.hashCode()) + v2.hashCode()) + v3.hashCode()) +
+                v4.hashCode();
+
+        Entry entry = entries[index(hash)];
+        if (entry != null && entry.matches(v0, v1, v2, v3, v4)) {
+            return entry.child;
+        }
+
+        return miss(hash, v0, v1, v2, v3, v4);
+    }
+
+    /**
+     * The overflow child of a metric over its series limit is not cached so each recording of it is counted as dropped.
+     */
+    private Object miss(int hash, String... values) {
+        SeriesLimit limit = PrometheusMetricSystem.getSeriesLimit(collector);
+
+        Object child = limit == null ? collector.labels(values) : limit.labels(values);
+        if (limit == null || !limit.isOverflow(child)) {
+            entries[index(hash)] = new Entry(values, child);
+        }
+
+        return child;
+    }
+
+    private static int index(int hash) {
+        return (hash ^ (hash >>> 16)) & MASK;
+    }
+
+    private static final class Entry {
+
+        private final String[] values;
+        private final Object child;
+
+        private Entry(String[] values, Object child) {
+            this.values = values;
+            this.child = child;
+        }
+
+        private boolean matches(String v0) {
+            return values.length == 1 && values[0].equals(v0);
+        }
+
+        private boolean matches(String v0, String v1) {
+            return values.length == 2 && values[0].equals(v0) && values[1].equals(v1);
+        }
+
+        private boolean matches(String v0, String v1, String v2) {
+            return values.length == 3 && values[0].equals(v0) && values[1].equals(v1) && values[2].equals(v2);
+        }
+
+        private boolean matches(String v0, String v1, String v2, String v3) {
+            return values.length == 4 && values[0].equals(v0) && values[1].equals(v1) && values[2].equals(v2) &&
+                    values[3].equals(v3);
+        }
+
+        private boolean matches(String v0, String v1, String v2, String v3, String v4) {
+            return values.length == 5 && values[0].equals(v0) && values[1].equals(v1) && values[2].equals(v2) &&
+                    values[3].equals(v3) && values[4].equals(v4);
+        }
+    }
+}
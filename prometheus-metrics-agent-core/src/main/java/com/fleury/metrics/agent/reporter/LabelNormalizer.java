@@ -0,0 +1,76 @@
+package com.fleury.metrics.agent.reporter;
+
+import com.fleury.metrics.agent.model.LabelNormalization;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizes the values of a dynamic label as configured by its {@link LabelNormalization}. The patterns are compiled
+ * once and the normalized value of each raw value is remembered so a value seen before costs a map lookup rather than
+ * running the patterns again.
+ *
+ * The cache is cleared once it holds cacheSize values, so the raw values seen since are remembered again, which keeps
+ * its memory bounded however many distinct raw values there are, e.g. request paths containing ids.
+ *
+ * @author Will Fleury
+ */
+final class LabelNormalizer {
+
+    private final LabelNormalization normalization;
+    private final Pattern[] patterns;
+    private final String[] replacements;
+    private final ConcurrentMap<String, String> normalized = new ConcurrentHashMap<String, String>();
+
+    LabelNormalizer(LabelNormalization normalization) {
+        this.normalization = normalization;
+
+        Map<String, String> replace = normalization.getReplace();
+        this.patterns = new Pattern[replace.size()];
+        this.replacements = new String[replace.size()];
+
+        int i = 0;
+        for (Map.Entry<String, String> entry : replace.entrySet()) {
+            patterns[i] = Pattern.compile(entry.getKey());
+            replacements[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    LabelNormalization getNormalization() {
+        return normalization;
+    }
+
+    String normalize(String value) {
+        String result = normalized.get(value);
+        if (result != null) {
+            return result;
+        }
+
+        result = apply(value);
+
+        if (normalized.size() >= normalization.getCacheSize()) {
+            normalized.clear();
+        }
+        normalized.put(value, result);
+
+        return result;
+    }
+
+    private String apply(String value) {
+        String result = normalization.isLowerCase() ? value.toLowerCase(Locale.ROOT) : value;
+
+        for (int i = 0; i < patterns.length; i++) {
+            result = patterns[i].matcher(result).replaceAll(replacements[i]);
+        }
+
+        Integer maxLength = normalization.getMaxLength();
+        if (maxLength != null && result.length() > maxLength) {
+            result = result.substring(0, maxLength);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,56 @@
+package com.fleury.metrics.agent.reporter;
+
+import com.fleury.metrics.agent.model.MetricType;
+import io.prometheus.client.Collector;
+
+/**
+ * Held in the static metric field of an instrumented class instead of the collector when the configuration has
+ * lazyMetrics set. Creating it in the static initializer is cheap and the collector is only created and registered
+ * when an instrumented method first records it, so metrics of methods which never run do not show up empty when
+ * scraped. Once created the collector is a single volatile read away, i.e. a plain load on most platforms.
+ *
+ * @author Will Fleury
+ */
+public final class LazyMetric {
+
+    private final MetricType type;
+    private final String name;
+    private final String[] labels;
+    private final String doc;
+
+    private volatile Collector collector;
+
+    LazyMetric(MetricType type, String name, String[] labels, String doc) {
+        this.type = type;
+        this.name = name;
+        this.labels = labels;
+        this.doc = doc;
+    }
+
+    public Collector get() {
+        Collector result = collector;
+        if (result == null) {
+            result = create();
+        }
+
+        return result;
+    }
+
+    private synchronized Collector create() {
+        if (collector == null) {
+            // another class may already have created the metric as it is created lazily
+            collector = PrometheusMetricSystem.getOrCreate(type, name, labels, doc);
+        }
+
+        return collector;
+    }
+
+    @Override
+    public String toString() {
+        return "LazyMetric{" +
+                "type=" + type +
+                ", name='" + name + '\'' +
+                ", created=" + (collector != null) +
+                '}';
+    }
+}
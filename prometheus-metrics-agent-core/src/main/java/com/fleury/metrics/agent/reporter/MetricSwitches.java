@@ -0,0 +1,120 @@
+package com.fleury.metrics.agent.reporter;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bootstraps the invokedynamic call sites through which classes at version 51 (Java 7) or later record metrics. Each
+ * call site is linked to the PrometheusMetricSystem method it replaces, or to a method which does nothing while its
+ * metric is disabled. The JIT treats the target of a call site as a constant so a disabled metric costs nothing more
+ * than evaluating the arguments, unlike a flag checked on every call, and switching it back on needs no
+ * retransformation.
+ *
+ * The call sites are kept for the life of the JVM, one per injected call.
+ *
+ * @author Will Fleury
+ */
+public final class MetricSwitches {
+
+    private static final MethodHandle NOOP;
+
+    static {
+        try {
+            NOOP = MethodHandles.lookup().findStatic(MetricSwitches.class, "noop", MethodType.methodType(void.class));
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+
+        PrometheusMetricSystem.callSitesLinked();
+    }
+
+    // guarded by itself so a call site is either linked with the latest disabled metrics or relinked with them
+    private static final Map<String, List<Switch>> SWITCHES = new HashMap<String, List<Switch>>();
+
+    private MetricSwitches() {
+    }
+
+    /**
+     * @param method the name of the PrometheusMetricSystem method recording the metric
+     * @param type the type of the PrometheusMetricSystem method
+     * @param metricName the name of the recorded metric
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String method, MethodType type, String metricName)
+            throws NoSuchMethodException, IllegalAccessException {
+        MethodHandle target = MethodHandles.lookup().findStatic(PrometheusMetricSystem.class, method, type);
+        Switch callSite = new Switch(target, MethodHandles.dropArguments(NOOP, 0, type.parameterList()));
+
+        synchronized (SWITCHES) {
+            callSite.link(PrometheusMetricSystem.isDisabled(metricName));
+
+            List<Switch> callSites = SWITCHES.get(metricName);
+            if (callSites == null) {
+                callSites = new ArrayList<Switch>();
+                SWITCHES.put(metricName, callSites);
+            }
+            callSites.add(callSite);
+        }
+
+        return callSite.site;
+    }
+
+    static void relink() {
+        synchronized (SWITCHES) {
+            List<MutableCallSite> relinked = new ArrayList<MutableCallSite>();
+
+            for (Map.Entry<String, List<Switch>> entry : SWITCHES.entrySet()) {
+                boolean disabled = PrometheusMetricSystem.isDisabled(entry.getKey());
+
+                for (Switch callSite : entry.getValue()) {
+                    if (callSite.link(disabled)) {
+                        relinked.add(callSite.site);
+                    }
+                }
+            }
+
+            // make the new targets visible to threads which already run the old ones
+            if (!relinked.isEmpty()) {
+                MutableCallSite.syncAll(relinked.toArray(new MutableCallSite[relinked.size()]));
+            }
+        }
+    }
+
+    private static void noop() {
+    }
+
+    private static class Switch {
+
+        private final MutableCallSite site;
+        private final MethodHandle target;
+        private final MethodHandle disabledTarget;
+
+        private Boolean disabled;
+
+        private Switch(MethodHandle target, MethodHandle disabledTarget) {
+            this.site = new MutableCallSite(target.type());
+            this.target = target;
+            this.disabledTarget = disabledTarget;
+        }
+
+        /**
+         * @return true if the target of the call site changed
+         */
+        private boolean link(boolean disabled) {
+            if (this.disabled != null && this.disabled == disabled) {
+                return false;
+            }
+
+            this.disabled = disabled;
+            site.setTarget(disabled ? disabledTarget : target);
+
+            return true;
+        }
+    }
+}
@@ -3,9 +3,14 @@ package com.fleury.metrics.agent.reporter;
 import static com.fleury.metrics.agent.config.Configuration.YAML_MAPPER;
 import static java.util.logging.Level.WARNING;
 
+import com.fleury.metrics.agent.model.Buckets;
+import com.fleury.metrics.agent.model.LabelNormalization;
+import com.fleury.metrics.agent.model.MetricType;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
-import io.prometheus.client.Histogram;
+import io.prometheus.client.SimpleCollector;
 import io.prometheus.client.exporter.HTTPServer;
 import io.prometheus.client.hotspot.ClassLoadingExports;
 import io.prometheus.client.hotspot.GarbageCollectorExports;
@@ -13,10 +18,15 @@ import io.prometheus.client.hotspot.MemoryPoolsExports;
 import io.prometheus.client.hotspot.StandardExports;
 import io.prometheus.client.hotspot.ThreadExports;
 import io.prometheus.jmx.JmxCollector;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -31,13 +41,47 @@ public class PrometheusMetricSystem {
 
     private static final int DEFAULT_HTTP_PORT = 9899;
 
+    // System.nanoTime() may be negative but will not be this in practice
+    public static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    // Collectors created by instrumented classes by name. Classes rewritten at runtime cannot add the static fields
+    // which normally hold them so they look them up here instead.
+    private static final ConcurrentMap<String, Collector> COLLECTORS = new ConcurrentHashMap<String, Collector>();
+
+    // The names of the metrics whose invokedynamic call sites are linked to a no-op. MetricSwitches needs Java 7 so it
+    // is only loaded when the first call site is bootstrapped and this class must not load it before then.
+    private static volatile Set<String> disabledMetrics = Collections.emptySet();
+    private static volatile boolean callSitesLinked;
+
+    // The maxSeries of metrics by name and the limits of their collectors. Only looked up when recording label values
+    // once a limit is set so metrics are not slowed down unless limited.
+    private static final ConcurrentMap<String, Integer> MAX_SERIES = new ConcurrentHashMap<String, Integer>();
+    private static final ConcurrentMap<Collector, SeriesLimit> SERIES_LIMITS =
+            new ConcurrentHashMap<Collector, SeriesLimit>();
+    private static volatile boolean seriesLimited;
+
+    // The normalizers of dynamic label values by LabelUtil.normalizationKey. Replaced as a whole when the configuration
+    // changes, keeping the normalizers, and so the values they remember, of the labels whose normalization is unchanged.
+    private static volatile Map<String, LabelNormalizer> labelNormalizers = Collections.emptyMap();
+
+    // The encoded buckets and unit of the Timed metrics which do not use the defaults by name, read when their
+    // histograms are created
+    private static final ConcurrentMap<String, String[]> TIMER_OPTIONS = new ConcurrentHashMap<String, String[]>();
+
+    private static final Counter SERIES_DROPPED = Counter.build()
+            .name("metrics_agent_series_dropped_total")
+            .help("Recordings of new label values of metrics which reached their maxSeries, recorded as " +
+                    SeriesLimit.OVERFLOW_LABEL_VALUE + " instead")
+            .labelNames("metric")
+            .create();
+
     public static Counter createAndRegisterCounted(String name, String[] labels, String doc) {
         Counter.Builder builder = Counter.build().name(name).help(doc);
         if (labels != null) {
             builder.labelNames(labels);
         }
 
-        return builder.register();
+        return created(name, builder.register());
     }
 
     public static Counter createAndRegisterExceptionCounted(String name, String[] labels, String doc) {
@@ -46,7 +90,7 @@ public class PrometheusMetricSystem {
             builder.labelNames(labels);
         }
 
-        return builder.register();
+        return created(name, builder.register());
     }
 
     public static Gauge createAndRegisterGauged(String name, String[] labels, String doc) {
@@ -55,21 +99,269 @@ public class PrometheusMetricSystem {
             builder.labelNames(labels);
         }
 
-        return builder.register();
+        return created(name, builder.register());
     }
 
-    public static Histogram createAndRegisterTimed(String name, String[] labels, String doc) {
-        Histogram.Builder builder = Histogram.build().name(name).help(doc);
+    public static TimerHistogram createAndRegisterTimed(String name, String[] labels, String doc) {
+        TimerHistogram.Builder builder = TimerHistogram.build().name(name).help(doc);
         if (labels != null) {
             builder.labelNames(labels);
         }
 
-        return builder.register();
+        String[] options = TIMER_OPTIONS.get(name);
+        if (options != null) {
+            if (options[0] != null) {
+                builder.buckets(Buckets.decode(options[0]));
+            }
+            builder.unit(TimeUnit.valueOf(options[1]));
+        }
+
+        return created(name, builder.register());
+    }
+
+    public static Counter getOrCreateCounted(String name, String[] labels, String doc) {
+        Collector collector = COLLECTORS.get(name);
+        if (collector == null) {
+            synchronized (COLLECTORS) {
+                collector = COLLECTORS.get(name);
+                if (collector == null) {
+                    collector = createAndRegisterCounted(name, labels, doc);
+                }
+            }
+        }
+
+        return (Counter) collector;
+    }
+
+    public static Counter getOrCreateExceptionCounted(String name, String[] labels, String doc) {
+        Collector collector = COLLECTORS.get(name);
+        if (collector == null) {
+            synchronized (COLLECTORS) {
+                collector = COLLECTORS.get(name);
+                if (collector == null) {
+                    collector = createAndRegisterExceptionCounted(name, labels, doc);
+                }
+            }
+        }
+
+        return (Counter) collector;
+    }
+
+    public static Gauge getOrCreateGauged(String name, String[] labels, String doc) {
+        Collector collector = COLLECTORS.get(name);
+        if (collector == null) {
+            synchronized (COLLECTORS) {
+                collector = COLLECTORS.get(name);
+                if (collector == null) {
+                    collector = createAndRegisterGauged(name, labels, doc);
+                }
+            }
+        }
+
+        return (Gauge) collector;
+    }
+
+    public static TimerHistogram getOrCreateTimed(String name, String[] labels, String doc) {
+        Collector collector = COLLECTORS.get(name);
+        if (collector == null) {
+            synchronized (COLLECTORS) {
+                collector = COLLECTORS.get(name);
+                if (collector == null) {
+                    collector = createAndRegisterTimed(name, labels, doc);
+                }
+            }
+        }
+
+        return (TimerHistogram) collector;
+    }
+
+    public static LazyMetric createLazyCounted(String name, String[] labels, String doc) {
+        return new LazyMetric(MetricType.Counted, name, labels, doc);
+    }
+
+    public static LazyMetric createLazyExceptionCounted(String name, String[] labels, String doc) {
+        return new LazyMetric(MetricType.ExceptionCounted, name, labels, doc);
+    }
+
+    public static LazyMetric createLazyGauged(String name, String[] labels, String doc) {
+        return new LazyMetric(MetricType.Gauged, name, labels, doc);
+    }
+
+    public static LazyMetric createLazyTimed(String name, String[] labels, String doc) {
+        return new LazyMetric(MetricType.Timed, name, labels, doc);
+    }
+
+    static Collector getOrCreate(MetricType type, String name, String[] labels, String doc) {
+        switch (type) {
+            case Counted:
+                return getOrCreateCounted(name, labels, doc);
+            case ExceptionCounted:
+                return getOrCreateExceptionCounted(name, labels, doc);
+            case Gauged:
+                return getOrCreateGauged(name, labels, doc);
+            case Timed:
+                return getOrCreateTimed(name, labels, doc);
+            default:
+                throw new IllegalStateException("unknown metric type: " + type);
+        }
+    }
+
+    /**
+     * Relinks the invokedynamic call sites of the metrics which are enabled or disabled by the change.
+     */
+    public static synchronized void setDisabledMetrics(Set<String> names) {
+        disabledMetrics = new HashSet<String>(names);
+
+        if (callSitesLinked) {
+            MetricSwitches.relink();
+        }
+    }
+
+    public static synchronized void setLabelNormalizations(Map<String, LabelNormalization> normalizations) {
+        Map<String, LabelNormalizer> current = labelNormalizers;
+        Map<String, LabelNormalizer> updated = new HashMap<String, LabelNormalizer>();
+
+        for (Map.Entry<String, LabelNormalization> entry : normalizations.entrySet()) {
+            LabelNormalizer normalizer = current.get(entry.getKey());
+            if (normalizer == null || !normalizer.getNormalization().equals(entry.getValue())) {
+                normalizer = new LabelNormalizer(entry.getValue());
+            }
+
+            updated.put(entry.getKey(), normalizer);
+        }
+
+        labelNormalizers = updated;
+    }
+
+    /**
+     * Called by instrumented classes with each value read for a label whose values are normalized.
+     *
+     * @param key the {@link com.fleury.metrics.agent.model.LabelUtil#normalizationKey(String, String)} of the label
+     * @return the normalized value or the value itself if the label has no normalization configured
+     */
+    public static String normalizeLabel(String value, String key) {
+        LabelNormalizer normalizer = labelNormalizers.get(key);
+        return normalizer == null ? value : normalizer.normalize(value);
+    }
+
+    static boolean isDisabled(String name) {
+        return disabledMetrics.contains(name);
+    }
+
+    static void callSitesLinked() {
+        callSitesLinked = true;
+    }
+
+    private static <T extends Collector> T created(String name, T collector) {
+        COLLECTORS.put(name, collector);
+
+        Integer maxSeries = MAX_SERIES.get(name);
+        if (maxSeries != null) {
+            limitSeries(name, collector, maxSeries);
+        }
+
+        return collector;
+    }
+
+    /**
+     * Sets the buckets and unit of the histogram of a Timed metric before it is created. They do not change a histogram
+     * which is already created. Cheap when unchanged as it is called each time a metric added at runtime is looked up.
+     *
+     * @param buckets the {@link Buckets#encode(List) encoded} upper bounds or null for the default buckets
+     * @param unit the name of the TimeUnit the durations are recorded in
+     */
+    public static void timerOptions(String name, String buckets, String unit) {
+        String[] current = TIMER_OPTIONS.get(name);
+        if (current != null && (buckets == null ? current[0] == null : buckets.equals(current[0])) &&
+                unit.equals(current[1])) {
+            return;
+        }
+
+        TIMER_OPTIONS.put(name, new String[] {buckets, unit});
+    }
+
+    /**
+     * Limits the number of label value combinations of the metric, whether or not its collector has been created yet.
+     * Cheap when the limit is unchanged as it is called each time a metric added at runtime is looked up.
+     */
+    public static void limitSeries(String name, int maxSeries) {
+        Integer current = MAX_SERIES.get(name);
+        if (current != null && current == maxSeries) {
+            return;
+        }
+
+        synchronized (MAX_SERIES) {
+            MAX_SERIES.put(name, maxSeries);
+
+            Collector collector = COLLECTORS.get(name);
+            if (collector != null) {
+                limitSeries(name, collector, maxSeries);
+            }
+        }
+    }
+
+    private static void limitSeries(String name, Collector collector, int maxSeries) {
+        if (!(collector instanceof SimpleCollector)) {
+            return;
+        }
+
+        SeriesLimit limit = SERIES_LIMITS.get(collector);
+        if (limit != null) {
+            limit.setMaxSeries(maxSeries);
+            return;
+        }
+
+        limit = SeriesLimit.create(name, (SimpleCollector<?>) collector, maxSeries, SERIES_DROPPED.labels(name));
+        if (limit != null) {
+            SERIES_LIMITS.put(collector, limit);
+            seriesLimited = true;
+
+            try {
+                CollectorRegistry.defaultRegistry.register(SERIES_DROPPED);
+            } catch (IllegalArgumentException alreadyRegistered) {
+            }
+        }
+    }
+
+    /**
+     * @return the series limit of the collector or null if it has none
+     */
+    static SeriesLimit getSeriesLimit(SimpleCollector<?> collector) {
+        return seriesLimited ? SERIES_LIMITS.get(collector) : null;
+    }
+
+    /**
+     * @return the child of the collector for the label values or its overflow child if they are over its series limit
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T child(SimpleCollector<T> collector, String[] labels) {
+        SeriesLimit limit = getSeriesLimit(collector);
+        if (limit != null) {
+            return (T) limit.labels(labels);
+        }
+
+        return collector.labels(labels);
+    }
+
+    public static LabelCache cacheLabels(SimpleCollector<?> collector) {
+        return new LabelCache(collector);
+    }
+
+    public static Counter.Child labels(Counter counter, String[] labels) {
+        return child(counter, labels);
+    }
+
+    public static Gauge.Child labels(Gauge gauge, String[] labels) {
+        return child(gauge, labels);
+    }
+
+    public static TimerHistogram.Child labels(TimerHistogram histogram, String[] labels) {
+        return child(histogram, labels);
     }
 
     public static void recordCount(Counter counter, String[] labels) {
         if (labels != null) {
-            counter.labels(labels).inc();
+            child(counter, labels).inc();
         } else {
             counter.inc();
         }
@@ -77,15 +369,19 @@ public class PrometheusMetricSystem {
 
     public static void recordCount(Counter counter, String[] labels, long n) {
         if (labels != null) {
-            counter.labels(labels).inc(n);
+            child(counter, labels).inc(n);
         } else {
             counter.inc(n);
         }
     }
 
+    public static void recordCount(Counter.Child counter) {
+        counter.inc();
+    }
+
     public static void recordGaugeInc(Gauge gauge, String[] labelValues) {
         if (labelValues != null) {
-            gauge.labels(labelValues).inc();
+            child(gauge, labelValues).inc();
         } else {
             gauge.inc();
         }
@@ -93,17 +389,48 @@ public class PrometheusMetricSystem {
 
     public static void recordGaugeDec(Gauge gauge, String[] labelValues) {
         if (labelValues != null) {
-            gauge.labels(labelValues).dec();
+            child(gauge, labelValues).dec();
         } else {
             gauge.dec();
         }
     }
 
-    public static void recordTime(Histogram histogram, String[] labels, long duration) {
+    public static void recordGaugeInc(Gauge.Child gauge) {
+        gauge.inc();
+    }
+
+    public static void recordGaugeDec(Gauge.Child gauge) {
+        gauge.dec();
+    }
+
+    public static void recordTime(TimerHistogram histogram, String[] labels, long duration) {
         if (labels != null) {
-            histogram.labels(labels).observe(duration);
+            child(histogram, labels).observeNanos(duration);
         } else {
-            histogram.observe(duration);
+            histogram.observeNanos(duration);
+        }
+    }
+
+    /**
+     * @return the start time of a sampled call or {@link #NOT_SAMPLED}
+     */
+    public static long startSampledTime(int sampleRate) {
+        return Sampler.sample(sampleRate) ? System.nanoTime() : NOT_SAMPLED;
+    }
+
+    public static void recordSampledTime(TimerHistogram histogram, String[] labels, long startTime) {
+        if (startTime != NOT_SAMPLED) {
+            recordTime(histogram, labels, System.nanoTime() - startTime);
+        }
+    }
+
+    public static void recordTime(TimerHistogram.Child histogram, long duration) {
+        histogram.observeNanos(duration);
+    }
+
+    public static void recordSampledTime(TimerHistogram.Child histogram, long startTime) {
+        if (startTime != NOT_SAMPLED) {
+            histogram.observeNanos(System.nanoTime() - startTime);
         }
     }
 
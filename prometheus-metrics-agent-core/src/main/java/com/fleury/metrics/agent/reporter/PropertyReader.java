@@ -0,0 +1,133 @@
+package com.fleury.metrics.agent.reporter;
+
+import com.fleury.metrics.agent.introspector.Getters;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads the nested properties of label values which could not be resolved to getters of the declared types when the
+ * class was transformed, e.g. properties of a sub type or of a generic type. Each property of a path remembers the
+ * getter of the last type it was read from so a call site which always sees the same type only compares the type of
+ * the value with it. Other types look up their getter again.
+ *
+ * @author Will Fleury
+ */
+public final class PropertyReader {
+
+    private static final ConcurrentMap<String, Property[]> PATHS = new ConcurrentHashMap<String, Property[]>();
+
+    private PropertyReader() {
+    }
+
+    /**
+     * @param path the dot separated properties to read from the value
+     * @return the value of the last property or null if the value or one of the properties read on the way is null
+     */
+    public static Object read(Object value, String path) {
+        Property[] properties = PATHS.get(path);
+
+        if (properties == null) {
+            properties = parse(path);
+
+            Property[] existing = PATHS.putIfAbsent(path, properties);
+            if (existing != null) {
+                properties = existing;
+            }
+        }
+
+        for (Property property : properties) {
+            if (value == null) {
+                return null;
+            }
+
+            value = property.read(value);
+        }
+
+        return value;
+    }
+
+    private static Property[] parse(String path) {
+        String[] names = path.split("\\.");
+
+        Property[] properties = new Property[names.length];
+        for (int i = 0; i < names.length; i++) {
+            properties[i] = new Property(names[i]);
+        }
+
+        return properties;
+    }
+
+    private static final class Property {
+
+        private final String name;
+
+        // the getter of the type last read, replaced as a whole so the type and getter always match
+        private volatile Getter last;
+
+        private Property(String name) {
+            this.name = name;
+        }
+
+        private Object read(Object value) {
+            Getter getter = last;
+
+            if (getter == null || getter.type != value.getClass()) {
+                getter = new Getter(value.getClass(), findGetter(value.getClass()));
+                last = getter;
+            }
+
+            try {
+                return getter.method.invoke(value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Unable to read property " + name + " of " + value.getClass(), e);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+
+                throw new IllegalStateException("Unable to read property " + name + " of " + value.getClass(), cause);
+            }
+        }
+
+        private Method findGetter(Class<?> type) {
+            for (String getterName : Getters.getterNames(name)) {
+                Method method;
+                try {
+                    method = type.getMethod(getterName);
+                } catch (NoSuchMethodException e) {
+                    continue;
+                }
+
+                if (Getters.isGetter(name, getterName, method.getReturnType().getName())) {
+                    // public methods of non public classes, e.g. an anonymous implementation of an interface
+                    try {
+                        method.setAccessible(true);
+                    } catch (RuntimeException ignored) {
+                        // not permitted, the method may still be accessible
+                    }
+
+                    return method;
+                }
+            }
+
+            throw new IllegalArgumentException("No property " + name + " on " + type.getName());
+        }
+    }
+
+    private static final class Getter {
+
+        private final Class<?> type;
+        private final Method method;
+
+        private Getter(Class<?> type, Method method) {
+            this.type = type;
+            this.method = method;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.fleury.metrics.agent.reporter;
+
+/**
+ * Picks the calls of sampled Timed metrics to record. Each thread has its own xorshift generator so sampling does not
+ * contend on shared state between threads, and picking calls at random rather than every Nth call keeps a method
+ * whose calls interleave with others on the same thread from being sampled in lock step with them.
+ *
+ * @author Will Fleury
+ */
+final class Sampler {
+
+    private static final ThreadLocal<int[]> STATE = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            // xorshift never leaves a zero state
+            int seed = (int) System.nanoTime() ^ System.identityHashCode(Thread.currentThread());
+            return new int[] {seed == 0 ? 1 : seed};
+        }
+    };
+
+    private Sampler() {
+    }
+
+    /**
+     * @return true for one in sampleRate calls on average
+     */
+    static boolean sample(int sampleRate) {
+        int[] state = STATE.get();
+
+        int x = state[0];
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        state[0] = x;
+
+        return (x & Integer.MAX_VALUE) % sampleRate == 0;
+    }
+}
@@ -0,0 +1,135 @@
+package com.fleury.metrics.agent.reporter;
+
+import static java.util.logging.Level.WARNING;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.SimpleCollector;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Caps the number of series, i.e. label value combinations, of a metric whose label values are read from the
+ * arguments such as request paths containing ids. Once the collector has maxSeries children the label values it has
+ * not seen are all recorded by one overflow child whose label values are {@link #OVERFLOW_LABEL_VALUE} and each of
+ * these recordings is counted as dropped.
+ *
+ * The series are counted by the size of the children map of the collector. It is only read for label values which
+ * are not yet recorded and never again once the limit is reached, so label values already seen cost the same single
+ * map lookup as without a limit. The count is approximate as threads recording new label values at the same time may
+ * all be under the limit.
+ *
+ * @author Will Fleury
+ */
+final class SeriesLimit {
+
+    private static final Logger LOGGER = Logger.getLogger(SeriesLimit.class.getName());
+
+    static final String OVERFLOW_LABEL_VALUE = "__overflow__";
+
+    private static final Field CHILDREN = childrenField();
+
+    private final String name;
+    private final SimpleCollector<?> collector;
+    private final ConcurrentMap<List<String>, ?> children;
+    private final Counter.Child dropped;
+
+    private volatile int maxSeries;
+    private volatile boolean full;
+    private volatile Object overflow;
+
+    private SeriesLimit(String name, SimpleCollector<?> collector, ConcurrentMap<List<String>, ?> children,
+                        int maxSeries, Counter.Child dropped) {
+        this.name = name;
+        this.collector = collector;
+        this.children = children;
+        this.maxSeries = maxSeries;
+        this.dropped = dropped;
+    }
+
+    /**
+     * @return the limit or null if the children of the collector cannot be read, in which case it is not limited
+     */
+    static SeriesLimit create(String name, SimpleCollector<?> collector, int maxSeries, Counter.Child dropped) {
+        ConcurrentMap<List<String>, ?> children = children(collector);
+        if (children == null) {
+            return null;
+        }
+
+        return new SeriesLimit(name, collector, children, maxSeries, dropped);
+    }
+
+    /**
+     * @return the child of the collector for the label values or the overflow child if they are not recorded yet and
+     * the limit has been reached
+     */
+    Object labels(String... values) {
+        Object child = children.get(Arrays.asList(values));
+        if (child != null) {
+            return child;
+        }
+
+        if (!full) {
+            if (children.size() < maxSeries) {
+                return collector.labels(values);
+            }
+
+            full = true;
+            LOGGER.log(WARNING, "{0} reached its limit of {1} series, new label values are recorded as {2}",
+                    new Object[] {name, maxSeries, OVERFLOW_LABEL_VALUE});
+        }
+
+        dropped.inc();
+        return overflow(values.length);
+    }
+
+    boolean isOverflow(Object child) {
+        return child == overflow;
+    }
+
+    void setMaxSeries(int maxSeries) {
+        this.maxSeries = maxSeries;
+        this.full = false;
+    }
+
+    private Object overflow(int labelCount) {
+        Object result = overflow;
+
+        if (result == null) {
+            String[] values = new String[labelCount];
+            Arrays.fill(values, OVERFLOW_LABEL_VALUE);
+
+            result = collector.labels(values);
+            overflow = result;
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentMap<List<String>, ?> children(SimpleCollector<?> collector) {
+        if (CHILDREN == null) {
+            return null;
+        }
+
+        try {
+            return (ConcurrentMap<List<String>, ?>) CHILDREN.get(collector);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static Field childrenField() {
+        try {
+            Field field = SimpleCollector.class.getDeclaredField("children");
+            field.setAccessible(true);
+
+            return field;
+        } catch (Exception e) {
+            LOGGER.log(WARNING, "Unable to read the children of collectors, maxSeries is ignored", e);
+            return null;
+        }
+    }
+}
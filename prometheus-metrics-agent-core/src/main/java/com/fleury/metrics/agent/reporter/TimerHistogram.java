@@ -0,0 +1,220 @@
+package com.fleury.metrics.agent.reporter;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.DoubleAdder;
+import io.prometheus.client.SimpleCollector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The histogram of a Timed metric. It is exported the same way as a Prometheus Histogram but records the nanosecond
+ * durations measured by instrumented methods in the unit of the metric, converting each with a single multiplication,
+ * and finds the bucket of a duration by binary search so metrics with many buckets are recorded as fast as those with
+ * a few.
+ *
+ * @author Will Fleury
+ */
+public class TimerHistogram extends SimpleCollector<TimerHistogram.Child> implements Collector.Describable {
+
+    // the Prometheus client defaults, in seconds
+    static final double[] DEFAULT_BUCKETS = {.005, .01, .025, .05, .075, .1, .25, .5, .75, 1, 2.5, 5, 7.5, 10};
+
+    private final double[] upperBounds;
+    private final double unitsPerNano;
+
+    private TimerHistogram(Builder b) {
+        super(b);
+
+        if (labelNames.contains("le")) {
+            throw new IllegalStateException("Histogram cannot have a label named 'le'.");
+        }
+
+        this.upperBounds = b.upperBounds();
+        this.unitsPerNano = 1.0 / b.unit.toNanos(1);
+
+        // replaces the no labels child created by the super constructor before the bounds were set
+        clear();
+    }
+
+    public static Builder build() {
+        return new Builder();
+    }
+
+    @Override
+    protected Child newChild() {
+        if (upperBounds == null) {
+            return new Child(new double[] {Double.POSITIVE_INFINITY}, 1);
+        }
+
+        return new Child(upperBounds, unitsPerNano);
+    }
+
+    public void observeNanos(long duration) {
+        noLabelsChild.observeNanos(duration);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+
+        List<String> labelNamesWithLe = new ArrayList<String>(labelNames);
+        labelNamesWithLe.add("le");
+
+        for (Map.Entry<List<String>, Child> child : children.entrySet()) {
+            double[] counts = child.getValue().getCumulativeCounts();
+
+            for (int i = 0; i < counts.length; i++) {
+                List<String> labelValuesWithLe = new ArrayList<String>(child.getKey());
+                labelValuesWithLe.add(doubleToGoString(upperBounds[i]));
+
+                samples.add(new MetricFamilySamples.Sample(fullname + "_bucket", labelNamesWithLe, labelValuesWithLe,
+                        counts[i]));
+            }
+
+            samples.add(new MetricFamilySamples.Sample(fullname + "_count", labelNames, child.getKey(),
+                    counts[counts.length - 1]));
+            samples.add(new MetricFamilySamples.Sample(fullname + "_sum", labelNames, child.getKey(),
+                    child.getValue().getSum()));
+        }
+
+        return familySamplesList(Type.HISTOGRAM, samples);
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return Collections.singletonList(new MetricFamilySamples(fullname, Type.HISTOGRAM, help,
+                Collections.<MetricFamilySamples.Sample>emptyList()));
+    }
+
+    double[] getUpperBounds() {
+        return upperBounds;
+    }
+
+    public static class Builder extends SimpleCollector.Builder<Builder, TimerHistogram> {
+
+        private double[] buckets;
+        private TimeUnit unit = TimeUnit.SECONDS;
+
+        /**
+         * @param buckets the upper bounds in the unit, in increasing order
+         */
+        public Builder buckets(double... buckets) {
+            this.buckets = buckets;
+            return this;
+        }
+
+        public Builder unit(TimeUnit unit) {
+            this.unit = unit;
+            return this;
+        }
+
+        @Override
+        public TimerHistogram create() {
+            return new TimerHistogram(this);
+        }
+
+        /**
+         * @return the buckets followed by +Inf, the default buckets being converted to the unit
+         */
+        private double[] upperBounds() {
+            double[] bounds = buckets;
+            if (bounds == null || bounds.length == 0) {
+                double unitsPerSecond = (double) TimeUnit.SECONDS.toNanos(1) / unit.toNanos(1);
+
+                bounds = new double[DEFAULT_BUCKETS.length];
+                for (int i = 0; i < bounds.length; i++) {
+                    bounds[i] = DEFAULT_BUCKETS[i] * unitsPerSecond;
+                }
+            }
+
+            for (int i = 1; i < bounds.length; i++) {
+                if (bounds[i - 1] >= bounds[i]) {
+                    throw new IllegalStateException("Histogram buckets must be in increasing order: " +
+                            bounds[i - 1] + " >= " + bounds[i]);
+                }
+            }
+
+            if (bounds[bounds.length - 1] == Double.POSITIVE_INFINITY) {
+                return bounds.clone();
+            }
+
+            double[] withInf = new double[bounds.length + 1];
+            System.arraycopy(bounds, 0, withInf, 0, bounds.length);
+            withInf[bounds.length] = Double.POSITIVE_INFINITY;
+
+            return withInf;
+        }
+    }
+
+    /**
+     * The histogram of a single set of label values. The counts are of each bucket rather than cumulative so a
+     * recording adds to a single counter.
+     */
+    public static class Child {
+
+        private final double[] upperBounds;
+        private final double unitsPerNano;
+        private final DoubleAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Child(double[] upperBounds, double unitsPerNano) {
+            this.upperBounds = upperBounds;
+            this.unitsPerNano = unitsPerNano;
+            this.counts = new DoubleAdder[upperBounds.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new DoubleAdder();
+            }
+        }
+
+        public void observeNanos(long duration) {
+            observe(duration * unitsPerNano);
+        }
+
+        /**
+         * @param value the duration in the unit of the histogram
+         */
+        public void observe(double value) {
+            counts[bucket(value)].add(1);
+            sum.add(value);
+        }
+
+        /**
+         * @return the index of the first bucket whose upper bound is at least the value, the last bound being +Inf
+         */
+        int bucket(double value) {
+            int low = 0;
+            int high = upperBounds.length - 1;
+
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+
+                if (value <= upperBounds[mid]) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+
+            return low;
+        }
+
+        double[] getCumulativeCounts() {
+            double[] cumulative = new double[counts.length];
+
+            double total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i].sum();
+                cumulative[i] = total;
+            }
+
+            return cumulative;
+        }
+
+        double getSum() {
+            return sum.sum();
+        }
+    }
+}
@@ -2,14 +2,12 @@ package com.fleury.metrics.agent.transformer;
 
 import static java.util.logging.Level.FINER;
 
-import java.io.IOException;
-import java.io.InputStream;
+import com.fleury.metrics.agent.transformer.ClassHierarchyCache.TypeInfo;
+import com.fleury.metrics.agent.transformer.ClassHierarchyCache.Types;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.logging.Logger;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.Opcodes;
 
 /**
  * We need to override the getCommonSuperClass method of ClassWriter as the default implementation (don't know why)
@@ -19,6 +17,9 @@ import org.objectweb.asm.Opcodes;
  *
  * The solution is taken from
  * https://github.com/naver/pinpoint/blob/master/profiler/src/main/java/com/navercorp/pinpoint/profiler/instrument/ASMClassWriter.java
+ *
+ * The hierarchy information is shared across all transformations via the {@link ClassHierarchyCache} rather than
+ * reading the class files again for every lookup.
  */
 
 public final class ASMClassWriter extends ClassWriter {
@@ -27,11 +28,11 @@ public final class ASMClassWriter extends ClassWriter {
 
     private static final String OBJECT_CLASS_INTERNAL_NAME = "java/lang/Object";
 
-    private ClassLoader classLoader;
+    private final Types types;
 
     public ASMClassWriter(final int flags, final ClassLoader classLoader) {
         super(flags);
-        this.classLoader = classLoader;
+        this.types = ClassHierarchyCache.INSTANCE.forLoader(classLoader);
     }
 
     @Override
@@ -52,69 +53,69 @@ public final class ASMClassWriter extends ClassWriter {
             return classInternalName1;
         }
 
-        final ClassReader classReader1 = getClassReader(classInternalName1);
-        if (classReader1 == null) {
+        final TypeInfo type1 = getTypeInfo(classInternalName1);
+        if (type1 == null) {
             LOGGER.log(FINER, "Skip getCommonSuperClass(). not found class {0}", classInternalName1);
             return OBJECT_CLASS_INTERNAL_NAME;
         }
 
-        final ClassReader classReader2 = getClassReader(classInternalName2);
-        if (classReader2 == null) {
+        final TypeInfo type2 = getTypeInfo(classInternalName2);
+        if (type2 == null) {
             LOGGER.log(FINER, "Skip getCommonSuperClass(). not found class {0}", classInternalName2);
             return OBJECT_CLASS_INTERNAL_NAME;
         }
 
         // interface.
-        if (isInterface(classReader1)) {
+        if (isInterface(type1)) {
             // <interface, class> or <interface, interface>
-            return getCommonInterface(classReader1, classReader2);
+            return getCommonInterface(type1, type2);
         }
 
         // interface.
-        if (isInterface(classReader2)) {
+        if (isInterface(type2)) {
             // <class, interface>
-            return getCommonInterface(classReader2, classReader1);
+            return getCommonInterface(type2, type1);
         }
 
         // class.
         // <class, class>
-        return getCommonClass(classReader1, classReader2);
+        return getCommonClass(type1, type2);
     }
 
-    private boolean isInterface(final ClassReader classReader) {
-        return (classReader.getAccess() & Opcodes.ACC_INTERFACE) != 0;
+    private boolean isInterface(final TypeInfo type) {
+        return type.isInterface();
     }
 
     // <interface, interface> or <interface, class>
-    private String getCommonInterface(final ClassReader classReader1, final ClassReader classReader2) {
+    private String getCommonInterface(final TypeInfo type1, final TypeInfo type2) {
         final Set<String> interfaceHierarchy = new HashSet<String>();
-        traversalInterfaceHierarchy(interfaceHierarchy, classReader1);
+        traversalInterfaceHierarchy(interfaceHierarchy, type1);
 
-        if (isInterface(classReader2)) {
-            if (interfaceHierarchy.contains(classReader2.getClassName())) {
-                return classReader2.getClassName();
+        if (isInterface(type2)) {
+            if (interfaceHierarchy.contains(type2.getName())) {
+                return type2.getName();
             }
         }
 
-        final String interfaceInternalName = getImplementedInterface(interfaceHierarchy, classReader2);
+        final String interfaceInternalName = getImplementedInterface(interfaceHierarchy, type2);
         if (interfaceInternalName != null) {
             return interfaceInternalName;
         }
         return OBJECT_CLASS_INTERNAL_NAME;
     }
 
-    private void traversalInterfaceHierarchy(final Set<String> interfaceHierarchy, final ClassReader classReader) {
-        if (classReader != null && interfaceHierarchy.add(classReader.getClassName())) {
-            for (String interfaceInternalName : classReader.getInterfaces()) {
-                traversalInterfaceHierarchy(interfaceHierarchy, getClassReader(interfaceInternalName));
+    private void traversalInterfaceHierarchy(final Set<String> interfaceHierarchy, final TypeInfo type) {
+        if (type != null && interfaceHierarchy.add(type.getName())) {
+            for (String interfaceInternalName : type.getInterfaces()) {
+                traversalInterfaceHierarchy(interfaceHierarchy, getTypeInfo(interfaceInternalName));
             }
         }
     }
 
-    private String getImplementedInterface(final Set<String> interfaceHierarchy, final ClassReader classReader) {
-        ClassReader cr = classReader;
-        while (cr != null) {
-            final String[] interfaceInternalNames = cr.getInterfaces();
+    private String getImplementedInterface(final Set<String> interfaceHierarchy, final TypeInfo type) {
+        TypeInfo current = type;
+        while (current != null) {
+            final String[] interfaceInternalNames = current.getInterfaces();
             for (String name : interfaceInternalNames) {
                 if (name != null && interfaceHierarchy.contains(name)) {
                     return name;
@@ -122,34 +123,34 @@ public final class ASMClassWriter extends ClassWriter {
             }
 
             for (String name : interfaceInternalNames) {
-                final String interfaceInternalName = getImplementedInterface(interfaceHierarchy, getClassReader(name));
+                final String interfaceInternalName = getImplementedInterface(interfaceHierarchy, getTypeInfo(name));
                 if (interfaceInternalName != null) {
                     return interfaceInternalName;
                 }
             }
 
-            final String superClassInternalName = cr.getSuperName();
+            final String superClassInternalName = current.getSuperName();
             if (superClassInternalName == null || superClassInternalName.equals(OBJECT_CLASS_INTERNAL_NAME)) {
                 break;
             }
-            cr = getClassReader(superClassInternalName);
+            current = getTypeInfo(superClassInternalName);
         }
 
         return null;
     }
 
-    private String getCommonClass(final ClassReader classReader1, final ClassReader classReader2) {
+    private String getCommonClass(final TypeInfo type1, final TypeInfo type2) {
         final Set<String> classHierarchy = new HashSet<String>();
-        classHierarchy.add(classReader1.getClassName());
-        classHierarchy.add(classReader2.getClassName());
+        classHierarchy.add(type1.getName());
+        classHierarchy.add(type2.getName());
 
-        String superClassInternalName1 = classReader1.getSuperName();
+        String superClassInternalName1 = type1.getSuperName();
         if (!classHierarchy.add(superClassInternalName1)) {
             // find common super class.
             return superClassInternalName1;
         }
 
-        String superClassInternalName2 = classReader2.getSuperName();
+        String superClassInternalName2 = type2.getSuperName();
         if (!classHierarchy.add(superClassInternalName2)) {
             // find common super class.
             return superClassInternalName2;
@@ -180,36 +181,15 @@ public final class ASMClassWriter extends ClassWriter {
 
 
     private String getSuperClassInternalName(final String classInternalName) {
-        final ClassReader classReader = getClassReader(classInternalName);
-        if (classReader == null) {
+        final TypeInfo type = getTypeInfo(classInternalName);
+        if (type == null) {
             return null;
         }
 
-        return classReader.getSuperName();
+        return type.getSuperName();
     }
 
-    private ClassReader getClassReader(final String classInternalName) {
-        if (classInternalName == null || classLoader == null) {
-            return null;
-        }
-
-        InputStream in = null;
-        try {
-            in = classLoader.getResourceAsStream(classInternalName + ".class");
-            if (in != null) {
-                return new ClassReader(in);
-            }
-        } catch (IOException ignored) {
-            // not found class.
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException ignored) {
-                }
-            }
-        }
-
-        return null;
+    private TypeInfo getTypeInfo(final String classInternalName) {
+        return types.get(classInternalName);
     }
-}
\ No newline at end of file
+}
@@ -1,20 +1,33 @@
 package com.fleury.metrics.agent.transformer;
 
+import static com.fleury.metrics.agent.transformer.util.ConstantPoolScanner.containsMetricAnnotation;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static org.objectweb.asm.ClassReader.EXPAND_FRAMES;
 import static org.objectweb.asm.ClassWriter.COMPUTE_FRAMES;
 import static org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
 
 import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.transformer.ClassHierarchyCache.TypeInfo;
+import com.fleury.metrics.agent.transformer.ClassHierarchyCache.Types;
+import com.fleury.metrics.agent.transformer.MethodSizes.MethodGrowth;
 import com.fleury.metrics.agent.transformer.visitors.AnnotationClassVisitor;
+import com.fleury.metrics.agent.transformer.visitors.InstrumentedClass;
 import com.fleury.metrics.agent.transformer.visitors.MetricClassVisitor;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.logging.Logger;
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
 
 /**
  *
@@ -24,16 +37,57 @@ public class AnnotatedMetricClassTransformer implements ClassFileTransformer {
 
     private static final Logger LOGGER = Logger.getLogger(AnnotatedMetricClassTransformer.class.getName());
 
-    private final Configuration config;
     private final boolean propagateExceptions;
+    private final PreInstrumentedClasses preInstrumented = new PreInstrumentedClasses();
+    private final InstrumentedClasses instrumentedClasses = new InstrumentedClasses();
+    private final TransformerMetrics metrics;
+
+    private volatile Configuration config;
+    private volatile InterfaceMetrics interfaceMetrics;
+    private volatile TransformedClassCache cache;
 
     public AnnotatedMetricClassTransformer(Configuration config) {
         this(config, false);
     }
 
     public AnnotatedMetricClassTransformer(Configuration config, boolean propagateExceptions) {
+        this(config, propagateExceptions, null);
+    }
+
+    /**
+     * @param cache optional persistent cache of transformation results. May be null.
+     */
+    public AnnotatedMetricClassTransformer(Configuration config, boolean propagateExceptions,
+                                           TransformedClassCache cache) {
+        this(config, propagateExceptions, cache, new TransformerMetrics());
+    }
+
+    /**
+     * @param cache optional persistent cache of transformation results. May be null.
+     * @param metrics where the cost of the transformations is recorded
+     */
+    public AnnotatedMetricClassTransformer(Configuration config, boolean propagateExceptions,
+                                           TransformedClassCache cache, TransformerMetrics metrics) {
+        this.interfaceMetrics = new InterfaceMetrics(config);
         this.config = config;
         this.propagateExceptions = propagateExceptions;
+        this.cache = cache;
+        this.metrics = metrics;
+    }
+
+    public Configuration getConfiguration() {
+        return config;
+    }
+
+    /**
+     * Classes loaded from now on are transformed with the given configuration. Classes which are already loaded only
+     * pick it up when they are retransformed. The transformed class cache no longer applies and is not used anymore.
+     */
+    public void setConfiguration(Configuration config) {
+        // set before the configuration so a transformation which sees the new configuration also sees its interfaces
+        this.interfaceMetrics = new InterfaceMetrics(config);
+        this.config = config;
+        this.cache = null;
     }
 
     @Override
@@ -41,24 +95,125 @@ public class AnnotatedMetricClassTransformer implements ClassFileTransformer {
                             Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
                             byte[] classfileBuffer) throws IllegalClassFormatException {
 
+        long start = System.nanoTime();
         try {
-            ClassReader cr = new ClassReader(classfileBuffer);
+            return doTransform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+        } finally {
+            metrics.recordTransformTime(start);
+        }
+    }
+
+    private byte[] doTransform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                               ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+
+        metrics.recordScanned();
+
+        Configuration config = this.config;
+        TransformedClassCache cache = this.cache;
+
+        // rejected only on what the JVM tells us about the class so the bytes are not even scanned
+        String rejected = reject(config, loader, className, classBeingRedefined, protectionDomain);
+        if (rejected != null) {
+            metrics.recordSkipped(rejected);
+            return classfileBuffer;
+        }
+
+        // A retransformed class is passed in with its original bytes. Whatever its metrics are now it must keep the
+        // fields it was loaded with. The cache only holds classes as they are first loaded.
+        InstrumentedClass loaded = null;
+        if (classBeingRedefined != null) {
+            loaded = instrumentedClasses.get(loader, className);
+            if (loaded == null) {
+                loaded = InstrumentedClass.of(classBeingRedefined);
+            }
+
+            cache = null;
+        }
+
+        // Whether the class implements an interface with metrics depends on the class files of its super types, which
+        // the cache cannot tell have changed, so nothing is cached when they are looked up.
+        boolean lookupInterfaces = hasInterfaceMetrics(config, loader);
+        if (lookupInterfaces) {
+            cache = null;
+        }
+
+        try {
+            // a previous run of the same deployment found nothing to do
+            if (cache != null && cache.isUninstrumented(protectionDomain, className)) {
+                return classfileBuffer;
+            }
+
+            // Fast rejection based on the raw constant pool. Nearly every class the JVM loads has neither a metric
+            // annotation nor a configured metric so we avoid decoding it at all.
+            boolean annotated = containsMetricAnnotation(classfileBuffer);
+            boolean selected = config.isSelected(className);
+
+            // only the class header is decoded to find the interfaces the class implements, and only if any of the
+            // configured classes is an interface the class could implement
+            ClassReader cr = null;
+            List<String> interfaces = Collections.emptyList();
+            if (lookupInterfaces) {
+                cr = new ClassReader(classfileBuffer);
+                interfaces = findConfiguredInterfaces(config, loader, cr);
+            }
+
+            if (!annotated && !selected && interfaces.isEmpty() && !config.isMetric(className)) {
+                return uninstrumented(cache, loader, protectionDomain, className, classfileBuffer, loaded);
+            }
 
-            // Scan for annotations in a pre-pass phase so we have all the metric information we need when performing
-            // the actual instrumentation. This allows us to e.g. add Class Fields if desired for metrics which cannot
-            // be done otherwise (as visitAnnotation happens after visitFieldInsn in ClassVisitor).
-            scanMetricAnnotations(loader, cr);
+            // the lists only apply to classes with metrics so they are not checked for every class
+            if (!config.isWhiteListed(className)) {
+                metrics.recordSkipped(TransformerMetrics.SKIPPED_WHITE_LIST);
+                return uninstrumented(cache, loader, protectionDomain, className, classfileBuffer, loaded);
+            }
+
+            if (config.isBlackListed(className)) {
+                metrics.recordSkipped(TransformerMetrics.SKIPPED_BLACK_LIST);
+                return uninstrumented(cache, loader, protectionDomain, className, classfileBuffer, loaded);
+            }
+
+            // already instrumented at build time
+            if (preInstrumented.contains(loader, className)) {
+                return classfileBuffer;
+            }
+
+            String cacheKey = null;
+            if (cache != null) {
+                cacheKey = cache.key(classfileBuffer);
+
+                byte[] cached = cache.get(cacheKey);
+                if (cached != null) {
+                    recordRewritten(className, classfileBuffer, cached);
+                    return cached;
+                }
+            }
 
-            // rewrite only if metric found & white listed or not blacklisted
-            if (config.isMetric(className) && config.isWhiteListed(className) && !config.isBlackListed(className)) {
-                ClassWriter cw = new ASMClassWriter(COMPUTE_FRAMES | COMPUTE_MAXS, loader);
-                ClassVisitor cv = new MetricClassVisitor(cw, config);
-                cr.accept(cv, EXPAND_FRAMES);
+            if (cr == null) {
+                cr = new ClassReader(classfileBuffer);
+            }
+
+            // Each class is decoded exactly once. If it carries metric annotations, its methods are matched by method
+            // selectors or it implements interfaces with metrics we buffer it in a tree while scanning them, so we
+            // have all the metric information we need before the rewrite starts. This allows us to e.g. add Class
+            // Fields for metrics which cannot be done otherwise (as visitAnnotation happens after visitFieldInsn in
+            // ClassVisitor). The rewrite then replays the tree instead of parsing the bytes again.
+            ClassNode annotatedClass = null;
+            if (annotated || selected || !interfaces.isEmpty()) {
+                annotatedClass = scanMetricAnnotations(config, cr, interfaces);
+            }
 
-                return cw.toByteArray();
+            // rewrite only if metric found
+            if (config.isMetric(className)) {
+                byte[] transformed = rewrite(config, cr, annotatedClass, loader, loaded, cache, cacheKey);
+                recordRewritten(className, classfileBuffer, transformed);
+                return transformed;
             }
 
+            return uninstrumented(cache, loader, protectionDomain, className, classfileBuffer, loaded);
+
         } catch (RuntimeException e) {
+            metrics.recordFailed();
+
             if (propagateExceptions) {
                 throw e; //useful for testing & fail fast setups
             }
@@ -70,7 +225,240 @@ public class AnnotatedMetricClassTransformer implements ClassFileTransformer {
         return classfileBuffer;
     }
 
-    private void scanMetricAnnotations(ClassLoader loader, ClassReader cr) {
-        cr.accept(new AnnotationClassVisitor(new ASMClassWriter(0, loader), config), 0);
+    /**
+     * Configured metrics override the reject policy. A class instrumented when it was loaded is never rejected when
+     * it is retransformed as it must keep its fields.
+     *
+     * @return the reason the class is rejected or null if it should be scanned
+     */
+    private String reject(Configuration config, ClassLoader loader, String className, Class<?> classBeingRedefined,
+                          ProtectionDomain protectionDomain) {
+        String rejected = config.getRejectPolicy().reject(className, loader, protectionDomain);
+
+        if (rejected == null || className == null) {
+            return rejected;
+        }
+
+        if (config.isMetric(className)) {
+            return null;
+        }
+
+        if (classBeingRedefined != null && instrumentedClasses.get(loader, className) != null) {
+            return null;
+        }
+
+        return rejected;
+    }
+
+    /**
+     * @param loaded the fields of the class when it was loaded if it is being retransformed, null otherwise
+     * @param cache where the rewritten class is stored under the cache key if it only depends on its own class file,
+     * null if it must not be stored
+     */
+    private byte[] rewrite(Configuration config, ClassReader cr, ClassNode annotatedClass, ClassLoader loader,
+                           InstrumentedClass loaded, TransformedClassCache cache, String cacheKey) {
+        byte[] transformed = config.isComputeFrames() ? null :
+                rewritePreservingFrames(config, cr, annotatedClass, loader, loaded);
+
+        // Frames computed from the class hierarchy and the getters called by accessors depend on the class files of
+        // other classes
+        if (transformed == null) {
+            return rewriteComputingFrames(config, cr, annotatedClass, loader, loaded);
+        }
+
+        if (cache != null && !instrumentedClasses.get(loader, cr.getClassName()).hasAccessors()) {
+            cache.put(cacheKey, transformed);
+        }
+
+        return transformed;
+    }
+
+    /**
+     * @return the rewritten class or null if its frames cannot be preserved
+     */
+    private byte[] rewritePreservingFrames(Configuration config, ClassReader cr, ClassNode annotatedClass,
+                                           ClassLoader loader, InstrumentedClass loaded) {
+        try {
+            return rewrite(config, cr, annotatedClass, new ClassWriter(cr, COMPUTE_MAXS), true, loader, loaded);
+        } catch (RuntimeException e) {
+            LOGGER.log(FINE, "Unable to preserve frames of " + cr.getClassName() + ", computing them instead", e);
+            return null;
+        }
+    }
+
+    private byte[] rewriteComputingFrames(Configuration config, ClassReader cr, ClassNode annotatedClass,
+                                          ClassLoader loader, InstrumentedClass loaded) {
+        return rewrite(config, cr, annotatedClass, new ASMClassWriter(COMPUTE_FRAMES | COMPUTE_MAXS, loader), false,
+                loader, loaded);
+    }
+
+    /**
+     * When preserving frames the original frames are kept and only the frames of the injected exception handlers are
+     * added. Methods without metrics are copied as is by the ClassWriter. Otherwise the frames of every method are
+     * recomputed which requires resolving the class hierarchy.
+     */
+    private byte[] rewrite(Configuration config, ClassReader cr, ClassNode annotatedClass, ClassWriter cw,
+                           boolean preserveFrames, ClassLoader loader, InstrumentedClass loaded) {
+        MetricClassVisitor cv = new MetricClassVisitor(cw, config, preserveFrames, loaded,
+                new PropertyGetters(loader));
+
+        if (annotatedClass != null) {
+            annotatedClass.accept(cv);
+        } else {
+            cr.accept(cv, EXPAND_FRAMES);
+        }
+
+        byte[] transformed = cw.toByteArray();
+
+        if (loaded == null) {
+            instrumentedClasses.put(loader, cr.getClassName(), cv.getInstrumentedClass());
+        }
+
+        return transformed;
+    }
+
+    /**
+     * Instrumenting a method can push it over the bytecode size limits the JIT uses to decide whether to inline or
+     * compile it, which can cost far more than the injected code itself, so such methods are logged.
+     */
+    private void recordRewritten(String className, byte[] original, byte[] transformed) {
+        metrics.recordRewritten(original, transformed);
+
+        for (MethodGrowth growth : MethodSizes.compare(original, transformed)) {
+            metrics.recordMethodInstrumented(growth);
+
+            List<String> crossed = growth.getLimitsCrossed();
+            if (crossed.contains(MethodSizes.LIMIT_HUGE_METHOD)) {
+                LOGGER.log(WARNING, "{0}.{1}, it will no longer be compiled by the JIT",
+                        new Object[] {className, growth});
+            } else if (crossed.contains(MethodSizes.LIMIT_FREQ_INLINE_SIZE)) {
+                LOGGER.log(INFO, "{0}.{1}, it will no longer be inlined by the JIT",
+                        new Object[] {className, growth});
+            } else if (crossed.contains(MethodSizes.LIMIT_MAX_INLINE_SIZE)) {
+                LOGGER.log(FINE, "{0}.{1}, it will only be inlined by the JIT when hot",
+                        new Object[] {className, growth});
+            } else {
+                LOGGER.log(FINE, "{0}.{1}", new Object[] {className, growth});
+            }
+        }
+    }
+
+    /**
+     * A retransformed class still needs the fields it was loaded with even if it no longer has any metrics.
+     */
+    private byte[] uninstrumented(TransformedClassCache cache, ClassLoader loader, ProtectionDomain protectionDomain,
+                                  String className, byte[] classfileBuffer, InstrumentedClass loaded) {
+        if (loaded != null && !loaded.isEmpty()) {
+            byte[] transformed = rewrite(Configuration.emptyConfiguration(), new ClassReader(classfileBuffer), null,
+                    loader, loaded, null, null);
+
+            recordRewritten(className, classfileBuffer, transformed);
+            return transformed;
+        }
+
+        if (cache != null) {
+            cache.markUninstrumented(protectionDomain, className);
+        }
+
+        return classfileBuffer;
+    }
+
+    private ClassNode scanMetricAnnotations(Configuration config, ClassReader cr, List<String> interfaces) {
+        ClassNode cn = new ClassNode();
+        // only called for classes which passed the white and black list checks
+        cr.accept(new AnnotationClassVisitor(cn, config, true, interfaces), EXPAND_FRAMES);
+
+        return cn;
+    }
+
+    /**
+     * The class is recorded in the class hierarchy cache as the JVM only loads its super types after it has been
+     * transformed. Its sub types (and the frame computation) then find it there rather than reading its class file.
+     *
+     * @return the interfaces implemented by the class (directly or by its super types) with configured metrics
+     */
+    private boolean hasInterfaceMetrics(Configuration config, ClassLoader loader) {
+        InterfaceMetrics interfaceMetrics = this.interfaceMetrics;
+
+        // the configuration was changed in between, this transformation still uses the previous one
+        if (interfaceMetrics.config != config) {
+            interfaceMetrics = new InterfaceMetrics(config);
+        }
+
+        return interfaceMetrics.isPresent(loader);
+    }
+
+    private static List<String> findConfiguredInterfaces(Configuration config, ClassLoader loader, ClassReader cr) {
+        Types types = ClassHierarchyCache.INSTANCE.forLoader(loader);
+        TypeInfo type = types.put(cr.getClassName(), cr.getSuperName(), cr.getInterfaces(), cr.getAccess());
+
+        if (type.isInterface()) {
+            return Collections.emptyList();
+        }
+
+        List<String> configured = null;
+        for (String name : types.getAllInterfaces(type)) {
+            if (config.isMetric(name) || config.isSelected(name)) {
+                if (configured == null) {
+                    configured = new ArrayList<String>();
+                }
+                configured.add(name);
+            }
+        }
+
+        return configured == null ? Collections.<String>emptyList() : configured;
+    }
+
+    /**
+     * Whether any of the classes named by a configuration is an interface. It is found once per class loader, as a
+     * name may be an interface for one loader and not visible to another, by looking the configured classes up in the
+     * {@link ClassHierarchyCache} which never loads them.
+     */
+    private static class InterfaceMetrics {
+
+        private final Configuration config;
+        private final Map<ClassLoader, Boolean> presentByLoader = new WeakHashMap<ClassLoader, Boolean>();
+
+        InterfaceMetrics(Configuration config) {
+            this.config = config;
+        }
+
+        boolean isPresent(ClassLoader loader) {
+            Set<String> classNames = config.getConfiguredClassNames();
+
+            // a selector with a class name glob may match any interface
+            if (classNames == null) {
+                return true;
+            }
+
+            if (classNames.isEmpty()) {
+                return false;
+            }
+
+            synchronized (presentByLoader) {
+                Boolean present = presentByLoader.get(loader);
+                if (present != null) {
+                    return present;
+                }
+            }
+
+            boolean present = false;
+
+            Types types = ClassHierarchyCache.INSTANCE.forLoader(loader);
+            for (String className : classNames) {
+                TypeInfo type = types.get(className);
+
+                if (type != null && type.isInterface()) {
+                    present = true;
+                    break;
+                }
+            }
+
+            synchronized (presentByLoader) {
+                presentByLoader.put(loader, present);
+            }
+
+            return present;
+        }
     }
 }
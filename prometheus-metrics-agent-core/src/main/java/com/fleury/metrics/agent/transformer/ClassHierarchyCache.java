@@ -0,0 +1,300 @@
+package com.fleury.metrics.agent.transformer;
+
+import static java.util.logging.Level.FINE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Caches the super class, interfaces and access flags of the types {@link ASMClassWriter} walks when computing frames
+ * and the transformer walks when matching metrics configured on interfaces. Without it every getCommonSuperClass call
+ * reads and parses the class files of the whole hierarchy again, for every method of every transformed class.
+ *
+ * Types are cached per class loader. Loaders are weakly referenced so the cache never keeps an undeployed application
+ * alive. Entries are recorded by the transformer as classes are loaded and are otherwise populated lazily, from the
+ * already loaded Class where the loader has one on Java 8 and earlier (this never triggers class loading) and from the
+ * class file resource otherwise.
+ *
+ * @author Will Fleury
+ */
+public class ClassHierarchyCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ClassHierarchyCache.class.getName());
+
+    public static final ClassHierarchyCache INSTANCE = new ClassHierarchyCache();
+
+    private static final TypeInfo MISSING = new TypeInfo(null, null, null, 0);
+
+    private static final Method FIND_LOADED_CLASS = findLoadedClassMethod();
+
+    private final Map<ClassLoader, Types> typesByLoader = new WeakHashMap<ClassLoader, Types>();
+    private final Types bootstrapTypes = new Types(null);
+
+    /**
+     * @return the types visible to the given class loader. The result should be held for the duration of a single
+     * transformation rather than looked up for every type.
+     */
+    public Types forLoader(ClassLoader loader) {
+        if (loader == null) {
+            return bootstrapTypes;
+        }
+
+        synchronized (typesByLoader) {
+            Types types = typesByLoader.get(loader);
+
+            if (types == null) {
+                types = new Types(loader);
+                typesByLoader.put(loader, types);
+            }
+
+            return types;
+        }
+    }
+
+    public static class Types {
+
+        private final WeakReference<ClassLoader> loader;
+        private final ConcurrentMap<String, TypeInfo> types = new ConcurrentHashMap<String, TypeInfo>();
+
+        private Types(ClassLoader loader) {
+            this.loader = loader == null ? null : new WeakReference<ClassLoader>(loader);
+        }
+
+        /**
+         * @return the type or null if it cannot be found by this class loader
+         */
+        public TypeInfo get(String internalName) {
+            if (internalName == null) {
+                return null;
+            }
+
+            TypeInfo info = types.get(internalName);
+
+            if (info == null) {
+                info = load(internalName);
+
+                TypeInfo existing = types.putIfAbsent(internalName, info);
+                if (existing != null) {
+                    info = existing;
+                }
+            }
+
+            return info == MISSING ? null : info;
+        }
+
+        /**
+         * @return true if the type has been recorded or looked up, without looking it up
+         */
+        boolean contains(String internalName) {
+            return types.containsKey(internalName);
+        }
+
+        /**
+         * Records a type as it is loaded. The JVM loads the super types of a class after it has been transformed so
+         * the sub types of the type which are loaded later on do not need to read its class file.
+         */
+        public TypeInfo put(String internalName, String superName, String[] interfaces, int access) {
+            TypeInfo existing = types.get(internalName);
+            if (existing != null && existing != MISSING) {
+                return existing;
+            }
+
+            TypeInfo info = new TypeInfo(internalName, superName, interfaces, access);
+            types.put(internalName, info);
+
+            return info;
+        }
+
+        /**
+         * @return the interfaces the type implements directly or through its super classes and super interfaces.
+         * Computed once per type from the interfaces of its super types.
+         */
+        public String[] getAllInterfaces(TypeInfo type) {
+            String[] all = type.allInterfaces;
+
+            if (all == null) {
+                Set<String> interfaces = new LinkedHashSet<String>();
+
+                for (String name : type.interfaces) {
+                    interfaces.add(name);
+                    addAllInterfaces(name, interfaces);
+                }
+                addAllInterfaces(type.superName, interfaces);
+
+                all = interfaces.toArray(new String[interfaces.size()]);
+                type.allInterfaces = all;
+            }
+
+            return all;
+        }
+
+        private void addAllInterfaces(String internalName, Set<String> interfaces) {
+            TypeInfo type = get(internalName);
+            if (type != null) {
+                interfaces.addAll(Arrays.asList(getAllInterfaces(type)));
+            }
+        }
+
+        private TypeInfo load(String internalName) {
+            ClassLoader classLoader = loader == null ? bootstrapResources() : loader.get();
+            if (classLoader == null) {
+                return MISSING;
+            }
+
+            if (loader != null) {
+                Class<?> loaded = findLoadedClass(classLoader, internalName);
+                if (loaded != null) {
+                    return TypeInfo.of(loaded);
+                }
+            }
+
+            return read(classLoader, internalName);
+        }
+    }
+
+    public static class TypeInfo {
+
+        private final String name;
+        private final String superName;
+        private final String[] interfaces;
+        private final int access;
+
+        // lazily computed by Types.getAllInterfaces
+        private volatile String[] allInterfaces;
+
+        TypeInfo(String name, String superName, String[] interfaces, int access) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.access = access;
+        }
+
+        static TypeInfo of(Class<?> clazz) {
+            Class<?>[] classInterfaces = clazz.getInterfaces();
+
+            String[] interfaces = new String[classInterfaces.length];
+            for (int i = 0; i < classInterfaces.length; i++) {
+                interfaces[i] = internalName(classInterfaces[i]);
+            }
+
+            Class<?> superClass = clazz.getSuperclass();
+
+            // Modifier.INTERFACE has the same value as ACC_INTERFACE
+            return new TypeInfo(internalName(clazz), superClass == null ? null : internalName(superClass),
+                    interfaces, clazz.getModifiers());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getSuperName() {
+            return superName;
+        }
+
+        public String[] getInterfaces() {
+            return interfaces;
+        }
+
+        public boolean isInterface() {
+            return (access & Opcodes.ACC_INTERFACE) != 0;
+        }
+    }
+
+    private static TypeInfo read(ClassLoader classLoader, String internalName) {
+        ClassReader cr = readClassFile(classLoader, internalName);
+        if (cr == null) {
+            return MISSING;
+        }
+
+        return new TypeInfo(cr.getClassName(), cr.getSuperName(), cr.getInterfaces(), cr.getAccess());
+    }
+
+    /**
+     * @param classLoader null for the bootstrap class loader
+     * @return the class file of the type or null if the class loader cannot find it
+     */
+    static ClassReader readClassFile(ClassLoader classLoader, String internalName) {
+        if (classLoader == null) {
+            classLoader = bootstrapResources();
+        }
+
+        InputStream in = null;
+        try {
+            in = classLoader.getResourceAsStream(internalName + ".class");
+            if (in != null) {
+                return new ClassReader(in);
+            }
+        } catch (IOException ignored) {
+            // not found class.
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static Class<?> findLoadedClass(ClassLoader classLoader, String internalName) {
+        if (FIND_LOADED_CLASS == null) {
+            return null;
+        }
+
+        try {
+            return (Class<?>) FIND_LOADED_CLASS.invoke(classLoader, internalName.replace('/', '.'));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Only used up to Java 8. From Java 9 opening ClassLoader prints an illegal reflective access warning on every
+     * start, or fails from Java 16, so the class files are read instead.
+     */
+    private static Method findLoadedClassMethod() {
+        if (!System.getProperty("java.specification.version", "").startsWith("1.")) {
+            LOGGER.log(FINE, "Loaded classes will not be used for class hierarchy lookups on Java 9 or later");
+            return null;
+        }
+
+        try {
+            Method method = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
+            method.setAccessible(true);
+
+            return method;
+        } catch (Exception e) {
+            // e.g. not permitted by a security manager. We fall back to reading class files.
+            LOGGER.log(FINE, "Loaded classes will not be used for class hierarchy lookups", e);
+            return null;
+        }
+    }
+
+    /**
+     * The bootstrap loader cannot be asked for resources directly. The loader above the system class loader (the
+     * extension or platform loader) delegates to it and sees little else.
+     */
+    private static ClassLoader bootstrapResources() {
+        ClassLoader system = ClassLoader.getSystemClassLoader();
+        return system.getParent() == null ? system : system.getParent();
+    }
+
+    private static String internalName(Class<?> clazz) {
+        return clazz.getName().replace('.', '/');
+    }
+}
@@ -0,0 +1,49 @@
+package com.fleury.metrics.agent.transformer;
+
+import com.fleury.metrics.agent.transformer.visitors.InstrumentedClass;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The classes rewritten when they were loaded by class loader, so they can be retransformed later on. Loaders are
+ * weakly referenced so an undeployed application is not kept alive.
+ *
+ * @author Will Fleury
+ */
+public class InstrumentedClasses {
+
+    private final Map<ClassLoader, ConcurrentMap<String, InstrumentedClass>> classesByLoader =
+            new WeakHashMap<ClassLoader, ConcurrentMap<String, InstrumentedClass>>();
+    private final ConcurrentMap<String, InstrumentedClass> bootstrapClasses =
+            new ConcurrentHashMap<String, InstrumentedClass>();
+
+    /**
+     * @return the class or null if it was not rewritten when it was loaded
+     */
+    public InstrumentedClass get(ClassLoader loader, String className) {
+        return classes(loader).get(className);
+    }
+
+    public void put(ClassLoader loader, String className, InstrumentedClass instrumented) {
+        classes(loader).put(className, instrumented);
+    }
+
+    private ConcurrentMap<String, InstrumentedClass> classes(ClassLoader loader) {
+        if (loader == null) {
+            return bootstrapClasses;
+        }
+
+        synchronized (classesByLoader) {
+            ConcurrentMap<String, InstrumentedClass> classes = classesByLoader.get(loader);
+
+            if (classes == null) {
+                classes = new ConcurrentHashMap<String, InstrumentedClass>();
+                classesByLoader.put(loader, classes);
+            }
+
+            return classes;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.fleury.metrics.agent.transformer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Compares the code of the methods of a class before and after it was rewritten. The JIT decides whether to inline or
+ * compile a method based on the length of its bytecode so instrumenting a method can stop it being inlined into its
+ * callers, or compiled at all, even though the injected code itself is cheap.
+ *
+ * The limits are the HotSpot defaults. Methods are inlined when they are at most MaxInlineSize bytes, or at most
+ * FreqInlineSize bytes when they are hot, and methods over HugeMethodLimit bytes are not compiled at all.
+ *
+ * Only the method table of the class files is read, see
+ * https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.7.3
+ *
+ * @author Will Fleury
+ */
+public class MethodSizes {
+
+    public static final String LIMIT_MAX_INLINE_SIZE = "max_inline_size";
+    public static final String LIMIT_FREQ_INLINE_SIZE = "freq_inline_size";
+    public static final String LIMIT_HUGE_METHOD = "huge_method";
+
+    public static final int MAX_INLINE_SIZE = 35;
+    public static final int FREQ_INLINE_SIZE = 325;
+    public static final int HUGE_METHOD_LIMIT = 8000;
+
+    /**
+     * @return the methods of the original class whose code was changed by the rewrite
+     */
+    public static List<MethodGrowth> compare(byte[] original, byte[] transformed) {
+        Map<String, CodeSize> before = read(original);
+        Map<String, CodeSize> after = read(transformed);
+
+        List<MethodGrowth> changed = new ArrayList<MethodGrowth>();
+        for (Map.Entry<String, CodeSize> entry : before.entrySet()) {
+            CodeSize rewritten = after.get(entry.getKey());
+
+            if (rewritten != null && !rewritten.equals(entry.getValue())) {
+                changed.add(new MethodGrowth(entry.getKey(), entry.getValue(), rewritten));
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * @return the code sizes of the methods with code by name and descriptor
+     */
+    static Map<String, CodeSize> read(byte[] classfile) {
+        ClassReader cr = new ClassReader(classfile);
+        char[] buf = new char[cr.getMaxStringLength()];
+
+        // skip access, this, super and the interfaces
+        int u = cr.header + 8 + 2 * cr.readUnsignedShort(cr.header + 6);
+
+        int fields = cr.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < fields; i++) {
+            u = skipAttributes(cr, u + 6);
+        }
+
+        Map<String, CodeSize> methods = new LinkedHashMap<String, CodeSize>();
+
+        int count = cr.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < count; i++) {
+            String method = cr.readUTF8(u + 2, buf) + cr.readUTF8(u + 4, buf);
+            int attributes = cr.readUnsignedShort(u + 6);
+            u += 8;
+
+            for (int j = 0; j < attributes; j++) {
+                if ("Code".equals(cr.readUTF8(u, buf))) {
+                    int maxLocals = cr.readUnsignedShort(u + 8);
+                    int codeLength = cr.readInt(u + 10);
+                    int handlers = cr.readUnsignedShort(u + 14 + codeLength);
+
+                    methods.put(method, new CodeSize(codeLength, handlers, maxLocals));
+                }
+                u += 6 + cr.readInt(u + 2);
+            }
+        }
+
+        return methods;
+    }
+
+    private static int skipAttributes(ClassReader cr, int u) {
+        int attributes = cr.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < attributes; i++) {
+            u += 6 + cr.readInt(u + 2);
+        }
+
+        return u;
+    }
+
+    static class CodeSize {
+
+        private final int codeLength;
+        private final int handlers;
+        private final int maxLocals;
+
+        CodeSize(int codeLength, int handlers, int maxLocals) {
+            this.codeLength = codeLength;
+            this.handlers = handlers;
+            this.maxLocals = maxLocals;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * codeLength + handlers) + maxLocals;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CodeSize)) {
+                return false;
+            }
+
+            CodeSize other = (CodeSize) obj;
+            return codeLength == other.codeLength && handlers == other.handlers && maxLocals == other.maxLocals;
+        }
+    }
+
+    /**
+     * The change in size of a rewritten method.
+     */
+    public static class MethodGrowth {
+
+        private final String method;
+        private final CodeSize original;
+        private final CodeSize rewritten;
+
+        MethodGrowth(String method, CodeSize original, CodeSize rewritten) {
+            this.method = method;
+            this.original = original;
+            this.rewritten = rewritten;
+        }
+
+        /**
+         * @return the method name and descriptor
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        public int getOriginalLength() {
+            return original.codeLength;
+        }
+
+        public int getLength() {
+            return rewritten.codeLength;
+        }
+
+        public int getAddedHandlers() {
+            return rewritten.handlers - original.handlers;
+        }
+
+        public int getAddedLocals() {
+            return rewritten.maxLocals - original.maxLocals;
+        }
+
+        /**
+         * @return the inlining and compilation limits the method was under before it was rewritten but is over now
+         */
+        public List<String> getLimitsCrossed() {
+            List<String> crossed = Collections.emptyList();
+
+            if (crosses(MAX_INLINE_SIZE)) {
+                crossed = add(crossed, LIMIT_MAX_INLINE_SIZE);
+            }
+            if (crosses(FREQ_INLINE_SIZE)) {
+                crossed = add(crossed, LIMIT_FREQ_INLINE_SIZE);
+            }
+            if (crosses(HUGE_METHOD_LIMIT)) {
+                crossed = add(crossed, LIMIT_HUGE_METHOD);
+            }
+
+            return crossed;
+        }
+
+        private boolean crosses(int limit) {
+            return original.codeLength <= limit && rewritten.codeLength > limit;
+        }
+
+        private static List<String> add(List<String> crossed, String limit) {
+            List<String> added = new ArrayList<String>(crossed);
+            added.add(limit);
+            return added;
+        }
+
+        @Override
+        public String toString() {
+            return method + " grew from " + original.codeLength + " to " + rewritten.codeLength +
+                    " bytes with " + getAddedHandlers() + " exception handlers and " + getAddedLocals() +
+                    " locals added";
+        }
+    }
+}
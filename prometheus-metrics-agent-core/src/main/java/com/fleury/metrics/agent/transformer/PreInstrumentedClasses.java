@@ -0,0 +1,113 @@
+package com.fleury.metrics.agent.transformer;
+
+import static java.util.logging.Level.WARNING;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Tracks classes which were instrumented at build time (see the metrics-agent-maven-plugin). Each instrumented jar or
+ * classes directory contains a manifest listing the internal names of the classes it rewrote. The agent must never
+ * instrument these classes a second time as that would add duplicate metric fields.
+ *
+ * Manifests are read lazily the first time a class loader delivers a candidate class and the result is cached per
+ * class loader.
+ *
+ * @author Will Fleury
+ */
+public class PreInstrumentedClasses {
+
+    private static final Logger LOGGER = Logger.getLogger(PreInstrumentedClasses.class.getName());
+
+    public static final String MANIFEST = "META-INF/metrics-agent/instrumented.list";
+
+    private static final String CHARSET = "UTF-8";
+
+    private final Map<ClassLoader, Set<String>> classesByLoader = new WeakHashMap<ClassLoader, Set<String>>();
+
+    public boolean contains(ClassLoader loader, String className) {
+        if (loader == null || className == null) {
+            return false;
+        }
+
+        return getClasses(loader).contains(className);
+    }
+
+    private synchronized Set<String> getClasses(ClassLoader loader) {
+        Set<String> classes = classesByLoader.get(loader);
+
+        if (classes == null) {
+            classes = readManifests(loader);
+            classesByLoader.put(loader, classes);
+        }
+
+        return classes;
+    }
+
+    private static Set<String> readManifests(ClassLoader loader) {
+        Set<String> classes = new HashSet<String>();
+
+        try {
+            Enumeration<URL> manifests = loader.getResources(MANIFEST);
+            while (manifests.hasMoreElements()) {
+                classes.addAll(read(manifests.nextElement().openStream()));
+            }
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Unable to read pre-instrumented class manifests", e);
+        }
+
+        return classes.isEmpty() ? Collections.<String>emptySet() : classes;
+    }
+
+    public static Set<String> read(InputStream in) throws IOException {
+        Set<String> classes = new HashSet<String>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, CHARSET));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    classes.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return classes;
+    }
+
+    public static void write(File outputDirectory, Collection<String> classes) throws IOException {
+        File manifest = new File(outputDirectory, MANIFEST);
+        if (!manifest.getParentFile().isDirectory() && !manifest.getParentFile().mkdirs()) {
+            throw new IOException("Unable to create directory for " + manifest);
+        }
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(manifest), CHARSET);
+        try {
+            for (String className : new TreeSet<String>(classes)) {
+                writer.write(className);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.fleury.metrics.agent.transformer;
+
+import static org.objectweb.asm.ClassReader.SKIP_CODE;
+import static org.objectweb.asm.ClassReader.SKIP_DEBUG;
+import static org.objectweb.asm.ClassReader.SKIP_FRAMES;
+import static org.objectweb.asm.Opcodes.ACC_BRIDGE;
+import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
+import static org.objectweb.asm.Opcodes.ASM5;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+
+import com.fleury.metrics.agent.introspector.Getters;
+import com.fleury.metrics.agent.reporter.PropertyReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+/**
+ * Resolves the nested properties of label values, e.g. $1.request.path, to the getters of the declared types when a
+ * class is transformed so the injected code calls them directly instead of looking them up on every call. The getters
+ * are found in the class files of the types and their super types so no class is loaded.
+ *
+ * A property is only resolved when its getter is public and the type declaring or inheriting it is accessible from the
+ * instrumented class. The properties of types only known at runtime, e.g. of a generic type or a sub type, are read by
+ * {@link PropertyReader}.
+ *
+ * Class files are read at most once per instance, which should be held for the duration of a single transformation.
+ *
+ * @author Will Fleury
+ */
+public class PropertyGetters {
+
+    private final ClassLoader loader;
+
+    // null values record the types which could not be read
+    private final Map<String, TypeMethods> types = new HashMap<String, TypeMethods>();
+
+    /**
+     * @param loader the class loader of the instrumented class, null for the bootstrap class loader
+     */
+    public PropertyGetters(ClassLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * @param caller the internal name of the class which calls the getters
+     * @param type the declared type of the value the properties are read from
+     * @param path the dot separated properties
+     * @return the getters of the leading properties of the path which could be resolved, in order. The getters of all
+     * but the last property of the path return an object.
+     */
+    public List<Getter> resolve(String caller, Type type, String path) {
+        String[] properties = path.split("\\.");
+
+        List<Getter> getters = new ArrayList<Getter>();
+        for (int i = 0; i < properties.length && type.getSort() == Type.OBJECT; i++) {
+            Getter getter = find(caller, type.getInternalName(), properties[i]);
+
+            boolean last = i == properties.length - 1;
+            if (getter == null || (!last && getter.getReturnType().getSort() != Type.OBJECT)) {
+                break;
+            }
+
+            getters.add(getter);
+            type = getter.getReturnType();
+        }
+
+        return getters;
+    }
+
+    private Getter find(String caller, String owner, String property) {
+        TypeMethods type = get(owner);
+        if (type == null || !type.isAccessibleFrom(caller)) {
+            return null;
+        }
+
+        for (String name : Getters.getterNames(property)) {
+            String descriptor = findMethod(owner, name, new ArrayList<String>());
+
+            if (descriptor != null &&
+                    Getters.isGetter(property, name, Type.getReturnType(descriptor).getClassName())) {
+                return new Getter(owner, name, descriptor, type.isInterface());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the descriptor of the public no argument method declared or inherited by the type or null if it has
+     * none or a super type cannot be read
+     */
+    private String findMethod(String owner, String name, List<String> visited) {
+        if (visited.contains(owner)) {
+            return null;
+        }
+        visited.add(owner);
+
+        TypeMethods type = get(owner);
+        if (type == null) {
+            return null;
+        }
+
+        String descriptor = type.methods.get(name);
+        if (descriptor != null) {
+            return descriptor;
+        }
+
+        if (type.superName != null) {
+            descriptor = findMethod(type.superName, name, visited);
+            if (descriptor != null) {
+                return descriptor;
+            }
+        }
+
+        for (String itf : type.interfaces) {
+            descriptor = findMethod(itf, name, visited);
+            if (descriptor != null) {
+                return descriptor;
+            }
+        }
+
+        return null;
+    }
+
+    private TypeMethods get(String internalName) {
+        if (types.containsKey(internalName)) {
+            return types.get(internalName);
+        }
+
+        TypeMethods type = null;
+
+        ClassReader cr = ClassHierarchyCache.readClassFile(loader, internalName);
+        if (cr != null) {
+            type = new TypeMethods(cr);
+        }
+
+        types.put(internalName, type);
+        return type;
+    }
+
+    /**
+     * A getter of a property and the type it is called on.
+     */
+    public static class Getter {
+
+        private final String owner;
+        private final String name;
+        private final String descriptor;
+        private final boolean isInterface;
+
+        Getter(String owner, String name, String descriptor, boolean isInterface) {
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.isInterface = isInterface;
+        }
+
+        public Type getReturnType() {
+            return Type.getReturnType(descriptor);
+        }
+
+        /**
+         * Calls the getter on the value on top of the stack.
+         */
+        public void invoke(MethodVisitor mv) {
+            mv.visitMethodInsn(isInterface ? INVOKEINTERFACE : INVOKEVIRTUAL, owner, name, descriptor, isInterface);
+        }
+
+        @Override
+        public String toString() {
+            return owner + "." + name + descriptor;
+        }
+    }
+
+    private static class TypeMethods {
+
+        private final String name;
+        private final int access;
+        private final String superName;
+        private final String[] interfaces;
+
+        // the public no argument instance methods by name
+        private final Map<String, String> methods = new HashMap<String, String>();
+
+        private TypeMethods(ClassReader cr) {
+            this.name = cr.getClassName();
+            this.access = cr.getAccess();
+            this.superName = cr.getSuperName();
+            this.interfaces = cr.getInterfaces();
+
+            cr.accept(new ClassVisitor(ASM5) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                                 String[] exceptions) {
+                    if ((access & ACC_PUBLIC) != 0 && (access & (ACC_STATIC | ACC_BRIDGE | ACC_SYNTHETIC)) == 0 &&
+                            desc.startsWith("()") && !methods.containsKey(name)) {
+                        methods.put(name, desc);
+                    }
+
+                    return null;
+                }
+            }, SKIP_CODE | SKIP_DEBUG | SKIP_FRAMES);
+        }
+
+        private boolean isInterface() {
+            return (access & ACC_INTERFACE) != 0;
+        }
+
+        private boolean isAccessibleFrom(String caller) {
+            return (access & ACC_PUBLIC) != 0 || packageOf(name).equals(packageOf(caller));
+        }
+
+        private static String packageOf(String internalName) {
+            int index = internalName.lastIndexOf('/');
+            return index < 0 ? "" : internalName.substring(0, index);
+        }
+    }
+}
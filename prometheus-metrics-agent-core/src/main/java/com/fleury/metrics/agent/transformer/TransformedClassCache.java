@@ -0,0 +1,330 @@
+package com.fleury.metrics.agent.transformer;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import com.fleury.metrics.agent.config.Configuration;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Persistent cache of transformation results which survives JVM restarts. It is split by a hash of the effective
+ * {@link Configuration} (see {@link Configuration#fingerprint()}) so changing the configuration starts a fresh cache.
+ *
+ * <ul>
+ *     <li>Rewritten classes are stored under {@code <dir>/<config hash>/classes/<class bytes hash>.class} and read
+ *     back through a memory mapped file. A hit skips ASM entirely.</li>
+ *     <li>Classes which were looked at but not rewritten are recorded per jar under
+ *     {@code <dir>/<config hash>/jars/}. A jar is identified by its location, size and modification time so a
+ *     redeployed jar never sees stale entries. These are written when the JVM shuts down.</li>
+ * </ul>
+ *
+ * The cache is also split by the build of the agent, identified by the jar it is loaded from, so an upgraded agent never
+ * reads the bytecode generated by the previous one.
+ *
+ * Entries are only keyed by the bytes of the class itself so results which depend on the class files of other classes
+ * are not cached: classes whose frames are computed from the class hierarchy, and all the classes of a class loader
+ * which may implement interfaces with metrics. Their super types, e.g. in another jar, may change while they do not.
+ *
+ * @author Will Fleury
+ */
+public class TransformedClassCache {
+
+    private static final Logger LOGGER = Logger.getLogger(TransformedClassCache.class.getName());
+
+    /**
+     * Must be bumped whenever a change to the agent changes the bytecode it generates. Builds of the agent packaged as
+     * a jar are told apart by the jar as well.
+     */
+    static final int VERSION = 7;
+
+    private static final String AGENT_BUILD = agentBuild();
+
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String JAR_SUFFIX = ".list";
+
+    private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final File classesDirectory;
+    private final File jarsDirectory;
+
+    private static final JarEntries NOT_A_JAR = new JarEntries(null);
+
+    private final ConcurrentMap<String, JarEntries> jars = new ConcurrentHashMap<String, JarEntries>();
+
+    public TransformedClassCache(File directory, Configuration config) {
+        File configDirectory = new File(directory, hash(toBytes(VERSION + ":" + AGENT_BUILD + ":" + config.fingerprint())));
+
+        this.classesDirectory = new File(configDirectory, "classes");
+        this.jarsDirectory = new File(configDirectory, "jars");
+
+        LOGGER.log(FINE, "Using transformed class cache {0}", configDirectory);
+    }
+
+    /**
+     * @return the key of the transformation result for the given original class bytes
+     */
+    public String key(byte[] classfileBuffer) {
+        return hash(classfileBuffer);
+    }
+
+    /**
+     * @return the cached transformed class or null if there is none
+     */
+    public byte[] get(String key) {
+        File file = new File(classesDirectory, key + CLASS_SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+
+                return bytes;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Unable to read cached class " + file, e);
+            return null;
+        }
+    }
+
+    public void put(String key, byte[] transformed) {
+        File file = new File(classesDirectory, key + CLASS_SUFFIX);
+
+        try {
+            write(file, transformed);
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Unable to write cached class " + file, e);
+        }
+    }
+
+    /**
+     * @return true if a previous run found nothing to instrument in this class. Only classes loaded from jar files
+     * are tracked as classes directories can change without any way for us to notice.
+     */
+    public boolean isUninstrumented(ProtectionDomain protectionDomain, String className) {
+        if (className == null) {
+            return false;
+        }
+
+        JarEntries entries = getJarEntries(protectionDomain);
+        return entries != null && entries.classes.contains(className);
+    }
+
+    public void markUninstrumented(ProtectionDomain protectionDomain, String className) {
+        if (className == null) {
+            return;
+        }
+
+        JarEntries entries = getJarEntries(protectionDomain);
+        if (entries != null && entries.classes.add(className)) {
+            entries.dirty = true;
+        }
+    }
+
+    /**
+     * Writes the uninstrumented classes recorded during this run.
+     */
+    public void persist() {
+        for (JarEntries entries : jars.values()) {
+            if (entries == NOT_A_JAR || !entries.dirty) {
+                continue;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (String className : entries.classes) {
+                sb.append(className).append('\n');
+            }
+
+            try {
+                write(entries.file, toBytes(sb.toString()));
+                entries.dirty = false;
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Unable to write cached jar entries " + entries.file, e);
+            }
+        }
+    }
+
+    public void persistOnShutdown() {
+        Runtime.getRuntime().addShutdownHook(new Thread("metrics-agent-cache") {
+            @Override
+            public void run() {
+                persist();
+            }
+        });
+    }
+
+    /**
+     * The jar is only looked up on the file system for the first class of each code source. Its identity is taken to
+     * be fixed for the lifetime of the JVM.
+     */
+    private JarEntries getJarEntries(ProtectionDomain protectionDomain) {
+        if (protectionDomain == null) {
+            return null;
+        }
+
+        CodeSource codeSource = protectionDomain.getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null) {
+            return null;
+        }
+
+        String location = codeSource.getLocation().toString();
+
+        JarEntries entries = jars.get(location);
+        if (entries == null) {
+            JarEntries loaded = loadJarEntries(getJar(codeSource.getLocation()));
+
+            entries = jars.putIfAbsent(location, loaded);
+            if (entries == null) {
+                entries = loaded;
+            }
+        }
+
+        return entries == NOT_A_JAR ? null : entries;
+    }
+
+    private static File getJar(URL location) {
+        if (!"file".equals(location.getProtocol()) || !location.getPath().endsWith(".jar")) {
+            return null;
+        }
+
+        try {
+            File file = new File(location.toURI());
+            return file.isFile() ? file : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private JarEntries loadJarEntries(File jar) {
+        if (jar == null) {
+            return NOT_A_JAR;
+        }
+
+        File file = new File(jarsDirectory, hash(toBytes(identity(jar))) + JAR_SUFFIX);
+
+        JarEntries entries = new JarEntries(file);
+
+        if (file.isFile()) {
+            try {
+                entries.classes.addAll(PreInstrumentedClasses.read(new FileInputStream(file)));
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Unable to read cached jar entries " + file, e);
+            }
+        }
+
+        return entries;
+    }
+
+    private static String identity(File jar) {
+        return jar.getAbsolutePath() + ":" + jar.length() + ":" + jar.lastModified();
+    }
+
+    /**
+     * @return the identity of the jar the agent is loaded from or an empty string if it is not loaded from a jar
+     */
+    private static String agentBuild() {
+        CodeSource codeSource = TransformedClassCache.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null) {
+            return "";
+        }
+
+        File jar = getJar(codeSource.getLocation());
+        return jar == null ? "" : identity(jar);
+    }
+
+    /**
+     * Writes to a temporary file first and renames it so concurrent JVMs sharing the cache never see partial files.
+     */
+    private static void write(File file, byte[] bytes) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+
+        File temp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                // another process may have won the race to write the same entry
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + temp + " to " + file);
+                }
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static String hash(byte[] bytes) {
+        MessageDigest digest = SHA1.get();
+        digest.reset();
+
+        byte[] hash = digest.digest(bytes);
+
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    private static byte[] toBytes(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class JarEntries {
+
+        private final File file;
+        private final Set<String> classes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private volatile boolean dirty;
+
+        private JarEntries(File file) {
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.fleury.metrics.agent.transformer;
+
+import com.fleury.metrics.agent.transformer.MethodSizes.MethodGrowth;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+/**
+ * Metrics about the agent itself so the cost of instrumentation (e.g. on startup) can be seen on the same endpoint as
+ * the application metrics. The collectors are only exported once registered which the agent does on startup.
+ *
+ * @author Will Fleury
+ */
+public class TransformerMetrics {
+
+    public static final String SKIPPED_WHITE_LIST = "white_list";
+    public static final String SKIPPED_BLACK_LIST = "black_list";
+
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    // most classes are rejected within microseconds while a rewrite can take milliseconds
+    private static final double[] TRANSFORM_BUCKETS = {
+        0.00001, 0.00005, 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1
+    };
+
+    private final Histogram transformTime = Histogram.build()
+            .name("metrics_agent_transform_seconds")
+            .help("Time spent by the metrics agent transforming classes")
+            .buckets(TRANSFORM_BUCKETS)
+            .create();
+
+    private final Counter scanned = Counter.build()
+            .name("metrics_agent_classes_scanned_total")
+            .help("Classes passed to the metrics agent for transformation")
+            .create();
+
+    private final Counter rewritten = Counter.build()
+            .name("metrics_agent_classes_rewritten_total")
+            .help("Classes rewritten by the metrics agent")
+            .create();
+
+    private final Counter skipped = Counter.build()
+            .name("metrics_agent_classes_skipped_total")
+            .help("Classes the metrics agent did not scan due to the reject policy or did not rewrite due to the white or black list")
+            .labelNames("reason")
+            .create();
+
+    private final Counter failed = Counter.build()
+            .name("metrics_agent_classes_failed_total")
+            .help("Classes the metrics agent failed to transform")
+            .create();
+
+    private final Counter bytesAdded = Counter.build()
+            .name("metrics_agent_bytecode_added_bytes_total")
+            .help("Bytes of bytecode added to classes by the metrics agent")
+            .create();
+
+    private final Counter methodsInstrumented = Counter.build()
+            .name("metrics_agent_methods_instrumented_total")
+            .help("Methods whose code was changed by the metrics agent")
+            .create();
+
+    private final Counter methodsOverLimit = Counter.build()
+            .name("metrics_agent_methods_over_limit_total")
+            .help("Methods pushed over a JIT inlining or compilation bytecode size limit by the metrics agent")
+            .labelNames("limit")
+            .create();
+
+    public void register(CollectorRegistry registry) {
+        registry.register(transformTime);
+        registry.register(scanned);
+        registry.register(rewritten);
+        registry.register(skipped);
+        registry.register(failed);
+        registry.register(bytesAdded);
+        registry.register(methodsInstrumented);
+        registry.register(methodsOverLimit);
+    }
+
+    /**
+     * @param startNanos the System.nanoTime() when the transformation started
+     */
+    public void recordTransformTime(long startNanos) {
+        transformTime.observe((System.nanoTime() - startNanos) / NANOS_PER_SECOND);
+    }
+
+    public void recordScanned() {
+        scanned.inc();
+    }
+
+    public void recordRewritten(byte[] original, byte[] transformed) {
+        rewritten.inc();
+
+        // counters cannot go down. Recomputed frames can occasionally make a class smaller.
+        int added = transformed.length - original.length;
+        if (added > 0) {
+            bytesAdded.inc(added);
+        }
+    }
+
+    public void recordMethodInstrumented(MethodGrowth growth) {
+        methodsInstrumented.inc();
+
+        for (String limit : growth.getLimitsCrossed()) {
+            methodsOverLimit.labels(limit).inc();
+        }
+    }
+
+    public void recordSkipped(String reason) {
+        skipped.labels(reason).inc();
+    }
+
+    public void recordFailed() {
+        failed.inc();
+    }
+}
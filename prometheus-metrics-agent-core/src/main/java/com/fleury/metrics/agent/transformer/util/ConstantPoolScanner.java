@@ -0,0 +1,160 @@
+package com.fleury.metrics.agent.transformer.util;
+
+import com.fleury.metrics.agent.model.MetricType;
+
+/**
+ * Walks the constant pool of a raw class file without decoding the rest of the class. This lets us reject the vast
+ * majority of loaded classes (which have nothing to do with metrics) before paying for a full ClassReader visit.
+ *
+ * An annotation applied to a method must have its descriptor in the constant pool as a CONSTANT_Utf8 entry, so if
+ * none of the metric annotation descriptors are present the class cannot carry any metric annotations.
+ *
+ * See https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.4
+ *
+ * @author Will Fleury
+ */
+public class ConstantPoolScanner {
+
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELD_REF = 9;
+    private static final int METHOD_REF = 10;
+    private static final int INTERFACE_METHOD_REF = 11;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    private static final byte[][] METRIC_ANNOTATION_DESCS = metricAnnotationDescs();
+
+    public static boolean containsMetricAnnotation(byte[] classfileBuffer) {
+        return containsAnyUtf8(classfileBuffer, METRIC_ANNOTATION_DESCS);
+    }
+
+    /**
+     * @return true if any of the given (ASCII) values is a CONSTANT_Utf8 entry in the constant pool. If the class file
+     * cannot be parsed we return true so the caller falls back to the full ASM parse and its error reporting.
+     */
+    public static boolean containsAnyUtf8(byte[] b, byte[][] values) {
+        return scan(b, values, false);
+    }
+
+    /**
+     * @return true if any CONSTANT_Utf8 entry in the constant pool starts with the given (ASCII) prefix. As with
+     * {@link #containsAnyUtf8(byte[], byte[][])} an unparseable class file returns true.
+     */
+    public static boolean containsUtf8StartingWith(byte[] b, String prefix) {
+        return scan(b, new byte[][] {toAscii(prefix)}, true);
+    }
+
+    private static boolean scan(byte[] b, byte[][] values, boolean prefix) {
+        try {
+            int count = readUnsignedShort(b, 8);
+            int offset = 10;
+
+            for (int i = 1; i < count; i++) {
+                int tag = b[offset];
+
+                switch (tag) {
+                    case UTF8:
+                        int length = readUnsignedShort(b, offset + 1);
+                        if (matchesAny(b, offset + 3, length, values, prefix)) {
+                            return true;
+                        }
+                        offset += 3 + length;
+                        break;
+
+                    case CLASS:
+                    case STRING:
+                    case METHOD_TYPE:
+                    case MODULE:
+                    case PACKAGE:
+                        offset += 3;
+                        break;
+
+                    case METHOD_HANDLE:
+                        offset += 4;
+                        break;
+
+                    case INTEGER:
+                    case FLOAT:
+                    case FIELD_REF:
+                    case METHOD_REF:
+                    case INTERFACE_METHOD_REF:
+                    case NAME_AND_TYPE:
+                    case DYNAMIC:
+                    case INVOKE_DYNAMIC:
+                        offset += 5;
+                        break;
+
+                    case LONG:
+                    case DOUBLE:
+                        offset += 9;
+                        i++; // 8 byte constants take up two entries
+                        break;
+
+                    default:
+                        return true;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return true;
+        }
+
+        return false;
+    }
+
+    private static boolean matchesAny(byte[] b, int offset, int length, byte[][] values, boolean prefix) {
+        for (byte[] value : values) {
+            boolean lengthMatches = prefix ? value.length <= length : value.length == length;
+
+            if (lengthMatches && regionMatches(b, offset, value)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean regionMatches(byte[] b, int offset, byte[] value) {
+        for (int i = 0; i < value.length; i++) {
+            if (b[offset + i] != value[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int readUnsignedShort(byte[] b, int index) {
+        return ((b[index] & 0xFF) << 8) | (b[index + 1] & 0xFF);
+    }
+
+    private static byte[][] metricAnnotationDescs() {
+        MetricType[] types = MetricType.values();
+
+        byte[][] descs = new byte[types.length][];
+        for (int i = 0; i < types.length; i++) {
+            descs[i] = toAscii(types[i].getDesc());
+        }
+
+        return descs;
+    }
+
+    private static byte[] toAscii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < value.length(); i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+
+        return bytes;
+    }
+}
@@ -1,34 +1,85 @@
 package com.fleury.metrics.agent.transformer.visitors;
 
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+import static org.objectweb.asm.Opcodes.ACC_BRIDGE;
 import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
+import static org.objectweb.asm.Opcodes.ACC_NATIVE;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
 import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
 import static org.objectweb.asm.Opcodes.ASM5;
 
 import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.config.MethodSelectors;
+import com.fleury.metrics.agent.model.Metric;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 
 
 /**
+ * Finds the metrics of a class before it is rewritten, i.e. the metric annotations of its methods, the methods
+ * matched by method selectors and the methods implementing interface methods with configured metrics, and adds them
+ * to the configuration.
  *
  * @author Will Fleury
  */
 public class AnnotationClassVisitor extends ClassVisitor {
 
     private boolean isInterface;
+    private boolean isListed;
     private String className;
     private Configuration config;
+    private Boolean listed;
+    private MethodSelectors.ClassSelectors selectors;
+    private List<String> interfaces = Collections.emptyList();
+    private final List<MethodSelectors.ClassSelectors> interfaceSelectors = new ArrayList<MethodSelectors.ClassSelectors>();
+
+    // only methods with a body implement an interface method
+    private static final int NOT_IMPLEMENTING = ACC_STATIC | ACC_ABSTRACT | ACC_NATIVE | ACC_SYNTHETIC | ACC_BRIDGE;
 
     public AnnotationClassVisitor(ClassVisitor cv, Configuration config) {
         super(ASM5, cv);
         this.config = config;
     }
 
+    /**
+     * @param listed the result of the white and black list checks for the class if the caller already has it
+     */
+    public AnnotationClassVisitor(ClassVisitor cv, Configuration config, boolean listed) {
+        this(cv, config);
+        this.listed = listed;
+    }
+
+    /**
+     * @param interfaces the interfaces implemented by the class (directly or by its super types) which have configured
+     * metrics. Methods implementing their methods get the same metrics.
+     */
+    public AnnotationClassVisitor(ClassVisitor cv, Configuration config, boolean listed, List<String> interfaces) {
+        this(cv, config, listed);
+        this.interfaces = interfaces;
+    }
+
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         super.visit(version, access, name, signature, superName, interfaces);
         this.className = name;
         this.isInterface = (access & ACC_INTERFACE) != 0;
+        this.isListed = listed != null ? listed : config.isWhiteListed(name) && !config.isBlackListed(name);
+
+        if (isListed && !isInterface) {
+            this.selectors = config.findSelectors(name);
+
+            for (String type : this.interfaces) {
+                MethodSelectors.ClassSelectors typeSelectors = config.findSelectors(type);
+                if (typeSelectors != null) {
+                    interfaceSelectors.add(typeSelectors);
+                }
+            }
+        } else {
+            this.interfaces = Collections.emptyList();
+        }
     }
 
     @Override
@@ -37,11 +88,30 @@ public class AnnotationClassVisitor extends ClassVisitor {
 
         boolean isSyntheticMethod = (access & ACC_SYNTHETIC) != 0;
 
-        if (!isInterface && !isSyntheticMethod && mv != null &&
-                config.isWhiteListed(className) && !config.isBlackListed(className)) {
+        if (!isInterface && !isSyntheticMethod && mv != null && isListed) {
             mv = new AnnotationMethodVisitor(mv, config, className, name, desc);
         }
 
+        if (selectors != null) {
+            addMetrics(selectors.findMetrics(access, name, desc), name, desc);
+        }
+
+        if ((access & NOT_IMPLEMENTING) == 0 && name.charAt(0) != '<') {
+            for (String type : interfaces) {
+                addMetrics(config.findMetrics(type, name, desc), name, desc);
+            }
+
+            for (MethodSelectors.ClassSelectors typeSelectors : interfaceSelectors) {
+                addMetrics(typeSelectors.findMetrics(access, name, desc), name, desc);
+            }
+        }
+
         return mv;
     }
+
+    private void addMetrics(List<Metric> metrics, String name, String desc) {
+        for (Metric metric : metrics) {
+            config.addMetric(new Configuration.Key(className, name, desc), metric);
+        }
+    }
 }
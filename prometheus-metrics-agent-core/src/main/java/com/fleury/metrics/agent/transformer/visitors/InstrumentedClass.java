@@ -0,0 +1,177 @@
+package com.fleury.metrics.agent.transformer.visitors;
+
+import static com.fleury.metrics.agent.config.Configuration.ACCESSOR_METHOD_PREFIX;
+import static com.fleury.metrics.agent.config.Configuration.OUTLINED_METHOD_PREFIX;
+import static com.fleury.metrics.agent.config.Configuration.STATIC_FIELD_PREFIX;
+import static com.fleury.metrics.agent.model.LabelUtil.hasTemplatedLabelValues;
+import static com.fleury.metrics.agent.transformer.util.CollectionUtil.isNotEmpty;
+
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.reporter.LabelCache;
+import com.fleury.metrics.agent.reporter.LazyMetric;
+import com.fleury.metrics.agent.transformer.visitors.MetricMembers.Accessor;
+import com.fleury.metrics.agent.transformer.visitors.MetricMembers.Outlined;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.objectweb.asm.Type;
+
+/**
+ * The static metric fields, outlined and accessor methods {@link MetricClassVisitor} added to a class when it was loaded. A
+ * retransformed class must have exactly the same fields and methods as the loaded class so these are declared again
+ * whatever the metrics of the class are when it is retransformed.
+ *
+ * @author Will Fleury
+ */
+public class InstrumentedClass {
+
+    public static final String LAZY_FIELD_DESCRIPTOR = Type.getDescriptor(LazyMetric.class);
+    public static final String LABEL_CACHE_FIELD_DESCRIPTOR = Type.getDescriptor(LabelCache.class);
+
+    /**
+     * @return the descriptor of the static field holding the metric. A metric whose label values are all constant
+     * holds the child of its collector for those values so recording it neither builds the label values nor looks up
+     * the child. A metric whose label values are read from the arguments holds a {@link LabelCache} of its collector.
+     */
+    public static String fieldDescriptor(Metric metric, boolean lazy) {
+        if (lazy) {
+            return LAZY_FIELD_DESCRIPTOR;
+        }
+
+        if (isNotEmpty(metric.getLabels())) {
+            return hasTemplatedLabelValues(metric.getLabels()) ?
+                    LABEL_CACHE_FIELD_DESCRIPTOR :
+                    Type.getDescriptor(metric.getType().getChildType());
+        }
+
+        return Type.getDescriptor(metric.getType().getCoreType());
+    }
+
+    /**
+     * @return true if the field holds the child of the collector of the metric for its constant label values
+     */
+    public static boolean isChildField(Metric metric, String descriptor) {
+        return Type.getDescriptor(metric.getType().getChildType()).equals(descriptor);
+    }
+
+    /**
+     * @return the descriptors of the static fields holding the collectors of the metrics themselves
+     */
+    public static Map<Metric, String> fieldDescriptors(Collection<Metric> metrics) {
+        Map<Metric, String> descriptors = new HashMap<Metric, String>();
+        for (Metric metric : metrics) {
+            descriptors.put(metric, fieldDescriptor(metric, false));
+
+            if (metric.isSampled()) {
+                descriptors.put(metric.getSampledCalls(), fieldDescriptor(metric.getSampledCalls(), false));
+            }
+        }
+
+        return descriptors;
+    }
+
+    private final Map<String, String> fields = new LinkedHashMap<String, String>();
+    private final Map<String, Metric> fieldMetrics = new HashMap<String, Metric>();
+    private final Map<String, String> methods = new LinkedHashMap<String, String>();
+    private final Map<String, Outlined> outlined = new HashMap<String, Outlined>();
+    private final Map<String, Accessor> accessors = new HashMap<String, Accessor>();
+
+    /**
+     * For classes whose transformation was not recorded (e.g. served from the transformed class cache). The fields and
+     * outlined methods are known but not the metrics they hold so they are not used by the retransformed class.
+     */
+    public static InstrumentedClass of(Class<?> loadedClass) {
+        InstrumentedClass instrumented = new InstrumentedClass();
+
+        for (Field field : loadedClass.getDeclaredFields()) {
+            if (field.getName().startsWith(STATIC_FIELD_PREFIX)) {
+                instrumented.addField(field.getName(), Type.getDescriptor(field.getType()), null);
+            }
+        }
+
+        for (Method method : loadedClass.getDeclaredMethods()) {
+            if (method.getName().startsWith(OUTLINED_METHOD_PREFIX) ||
+                    method.getName().startsWith(ACCESSOR_METHOD_PREFIX)) {
+                instrumented.addMethod(method.getName(), Type.getMethodDescriptor(method), (Outlined) null);
+            }
+        }
+
+        return instrumented;
+    }
+
+    /**
+     * @return the descriptors of the static metric fields by name
+     */
+    public Map<String, String> getFields() {
+        return Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * @return the metric the field was initialized with or null if it is not known
+     */
+    public Metric getMetric(String field) {
+        return fieldMetrics.get(field);
+    }
+
+    /**
+     * @return the descriptors of the outlined and accessor methods by name
+     */
+    public Map<String, String> getMethods() {
+        return Collections.unmodifiableMap(methods);
+    }
+
+    /**
+     * @return what the outlined method records or null if it is not known
+     */
+    public Outlined getOutlined(String method) {
+        return outlined.get(method);
+    }
+
+    /**
+     * @return what the accessor method reads or null if it is not known or the method is not an accessor
+     */
+    public Accessor getAccessor(String method) {
+        return accessors.get(method);
+    }
+
+    /**
+     * @return true if the class has accessor methods, which call getters resolved from the class files of other classes
+     */
+    public boolean hasAccessors() {
+        return !accessors.isEmpty();
+    }
+
+    public boolean isEmpty() {
+        return fields.isEmpty() && methods.isEmpty();
+    }
+
+    /**
+     * The first metric wins if metrics of different methods share a field name
+     */
+    void addField(String name, String descriptor, Metric metric) {
+        if (!fields.containsKey(name)) {
+            fields.put(name, descriptor);
+
+            if (metric != null) {
+                fieldMetrics.put(name, metric);
+            }
+        }
+    }
+
+    void addMethod(String name, String descriptor, Outlined recording) {
+        methods.put(name, descriptor);
+
+        if (recording != null) {
+            outlined.put(name, recording);
+        }
+    }
+
+    void addMethod(String name, String descriptor, Accessor accessor) {
+        methods.put(name, descriptor);
+        accessors.put(name, accessor);
+    }
+}
@@ -1,5 +1,6 @@
 package com.fleury.metrics.agent.transformer.visitors;
 
+import static com.fleury.metrics.agent.model.LabelUtil.hasTemplatedLabelValues;
 import static com.fleury.metrics.agent.model.LabelUtil.validateLabelValues;
 import static com.fleury.metrics.agent.model.Metric.mapByType;
 import static java.util.logging.Level.FINE;
@@ -8,15 +9,27 @@ import com.fleury.metrics.agent.model.Metric;
 import com.fleury.metrics.agent.model.MetricType;
 import com.fleury.metrics.agent.transformer.visitors.injectors.Injector;
 import com.fleury.metrics.agent.transformer.visitors.injectors.InjectorFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
 
 /**
+ * When frames are preserved (the class is read with EXPAND_FRAMES and written without COMPUTE_FRAMES) the original
+ * frames pass through the LocalVariablesSorter which adds the locals created by the injectors. The only new branch
+ * targets are the exception handlers the injectors add, so this adapter emits the frames for those itself.
+ *
+ * The handler frames declare this and the arguments at their declared types, except the slots the original code may
+ * store a value of another type in or whose original frames give them another type or TOP. If the injected code reads
+ * one of those the frames cannot be preserved and the transformer computes them instead.
  *
  * @author Will Fleury
  */
@@ -24,15 +37,55 @@ public class MetricAdapter extends AdviceAdapter {
 
     private static final Logger LOGGER = Logger.getLogger(AdviceAdapter.class.getName());
 
+    private static final Object[] HANDLER_STACK = {"java/lang/Throwable"};
+
     private final Map<MetricType, Metric> metrics;
     private final Type[] argTypes;
     private final String className;
     private final String methodName;
     private final int access;
-    
+    private final boolean emitFrames;
+    private final MetricMembers members;
+
     private List<Injector> injectors;
 
+    // locals created by the injectors (new local indexes) and the number created by each injector
+    private final List<Integer> injectedLocals = new ArrayList<Integer>();
+    private final List<Type> injectedLocalTypes = new ArrayList<Type>();
+    private final List<Integer> injectedLocalCounts = new ArrayList<Integer>();
+
+    // this and the arguments at their declared types
+    private final Object[] declaredArgs;
+    // this and the arguments as declared in the handler frames, known once the original code has been visited
+    private Object[] handlerFrameLocals;
+
+    // the slots of this and the arguments the original code or frames may give another type and those the injected
+    // code reads
+    private final boolean[] reassignedArgs;
+    private final boolean[] injectedArgLoads;
+    private boolean injecting;
+
+    private final Map<Label, Integer> handlers = new HashMap<Label, Integer>();
+    private int currentHandlerLocals = -1;
+
     public MetricAdapter(MethodVisitor mv, String className, int access, String name, String desc, List<Metric> metadata) {
+        this(mv, className, access, name, desc, metadata, false);
+    }
+
+    /**
+     * @param emitFrames true if the stack map frames for the injected exception handlers must be emitted as the class
+     * is written without COMPUTE_FRAMES
+     */
+    public MetricAdapter(MethodVisitor mv, String className, int access, String name, String desc, List<Metric> metadata,
+                         boolean emitFrames) {
+        this(mv, className, access, name, desc, metadata, emitFrames, new MetricMembers(InstrumentedClass.fieldDescriptors(metadata)));
+    }
+
+    /**
+     * @param members the static metric fields and outlined methods of the class
+     */
+    public MetricAdapter(MethodVisitor mv, String className, int access, String name, String desc, List<Metric> metadata,
+                         boolean emitFrames, MetricMembers members) {
         super(ASM5, mv, access, name, desc);
 
         this.className = className;
@@ -40,6 +93,12 @@ public class MetricAdapter extends AdviceAdapter {
         this.argTypes = Type.getArgumentTypes(desc);
         this.access = access;
         this.metrics = mapByType(metadata);
+        this.emitFrames = emitFrames;
+        this.members = members;
+
+        this.declaredArgs = declaredArgs();
+        this.reassignedArgs = new boolean[declaredArgs.length];
+        this.injectedArgLoads = new boolean[declaredArgs.length];
     }
 
     @Override
@@ -51,28 +110,125 @@ public class MetricAdapter extends AdviceAdapter {
 
         LOGGER.log(FINE, "Metrics found on : {0}.{1}", new Object[] {className, methodName});
 
-        injectors = InjectorFactory.createInjectors(metrics, this, className, argTypes, access);
+        // before creating the injectors as the factory consumes the combined metrics
         validateLabels();
 
+        injectors = InjectorFactory.createInjectors(metrics, this, className, argTypes, access, members);
+
+        injecting = true;
         for (Injector injector : injectors) {
             injector.injectAtMethodEnter();
+            injectedLocalCounts.add(injectedLocals.size());
         }
+        injecting = false;
+    }
+
+    @Override
+    public int newLocal(Type type) {
+        int local = super.newLocal(type);
+
+        injectedLocals.add(local);
+        injectedLocalTypes.add(type);
+
+        return local;
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        if (var < declaredArgs.length) {
+            if (injecting) {
+                injectedArgLoads[var] |= opcode >= ILOAD && opcode <= ALOAD;
+            } else if (opcode >= ISTORE && opcode <= ASTORE) {
+                storeArg(var, storedType(opcode));
+            }
+        }
+
+        super.visitVarInsn(opcode, var);
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        if (!injecting && var < declaredArgs.length) {
+            storeArg(var, INTEGER);
+        }
+
+        super.visitIincInsn(var, increment);
+    }
+
+    /**
+     * The original frames may mark an argument which is never stored to as TOP once it is dead, as some bytecode tools
+     * do, so the handler frames cannot declare it either.
+     */
+    @Override
+    public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+        if (!injecting && type == F_NEW) {
+            int slot = 0;
+            for (int i = 0; i < nLocal && slot < declaredArgs.length; i++) {
+                frameArg(slot, local[i]);
+                slot += local[i] == LONG || local[i] == DOUBLE ? 2 : 1;
+            }
+
+            // the locals missing at the end of a frame are TOP
+            for (; slot < declaredArgs.length; slot++) {
+                frameArg(slot, TOP);
+            }
+        }
+
+        super.visitFrame(type, nLocal, local, nStack, stack);
     }
 
     @Override
     public void visitMaxs(int maxStack, int maxLocals) {
-        for (Injector injector : injectors) {
-            injector.injectAtVisitMaxs(maxStack, maxLocals);
+        // The handlers are added innermost first. Each try block then covers the handlers of the injectors which
+        // started after it, whose locals are all assigned by the time those handlers run.
+        injecting = true;
+        for (int i = injectors.size() - 1; i >= 0; i--) {
+            currentHandlerLocals = injectedLocalCounts.get(i);
+            injectors.get(i).injectAtVisitMaxs(maxStack, maxLocals);
+        }
+        currentHandlerLocals = -1;
+        injecting = false;
+
+        if (emitFrames && !handlers.isEmpty()) {
+            for (int i = 0; i < declaredArgs.length; i++) {
+                if (reassignedArgs[i] && injectedArgLoads[i]) {
+                    throw new IllegalStateException("The metrics of " + className + "." + methodName +
+                            " read local " + i + " which may hold another type than declared in the handler frames");
+                }
+            }
         }
 
         mv.visitMaxs(maxStack, maxLocals);
     }
 
+    @Override
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+        super.visitTryCatchBlock(start, end, handler, type);
+
+        if (currentHandlerLocals >= 0) {
+            handlers.put(handler, currentHandlerLocals);
+        }
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        super.visitLabel(label);
+
+        if (emitFrames && !handlers.isEmpty()) {
+            Integer handlerLocals = handlers.get(label);
+            if (handlerLocals != null) {
+                visitHandlerFrame(handlerLocals);
+            }
+        }
+    }
+
     @Override
     protected void onMethodExit(int opcode) {
+        injecting = true;
         for (Injector injector : injectors) {
             injector.injectAtMethodExit(opcode);
         }
+        injecting = false;
     }
 
     private void validateLabels() {
@@ -80,4 +236,162 @@ public class MetricAdapter extends AdviceAdapter {
             validateLabelValues(methodName, metric.getLabels(), argTypes);
         }
     }
+
+    /**
+     * @return this and the arguments at their declared types, by slot. The second slot of a long or double is TOP.
+     */
+    private Object[] declaredArgs() {
+        boolean isStatic = (access & ACC_STATIC) != 0;
+
+        List<Object> locals = new ArrayList<Object>();
+        if (!isStatic) {
+            // the try blocks of constructors start after the super constructor call
+            locals.add(className);
+        }
+
+        for (Type argType : argTypes) {
+            locals.add(frameType(argType));
+            if (argType.getSize() == 2) {
+                locals.add(TOP);
+            }
+        }
+
+        return locals.toArray();
+    }
+
+    /**
+     * Only this and the arguments are declared in the handler frames, and only if label values are read from them.
+     * They are all declared then as an outlined recording is passed this and all the arguments. Everything else, and
+     * the slots the original code may store a value of another type in, is TOP so the frame is valid at every
+     * instruction of the try block whatever the original code stores in its locals.
+     */
+    private Object[] handlerFrameArgs() {
+        Object[] locals = new Object[declaredArgs.length];
+        Arrays.fill(locals, TOP);
+
+        boolean readsArgs = false;
+        for (Metric metric : metrics.values()) {
+            readsArgs |= hasTemplatedLabelValues(metric.getLabels());
+        }
+
+        if (readsArgs) {
+            for (int i = 0; i < locals.length; i++) {
+                if (!reassignedArgs[i]) {
+                    locals[i] = declaredArgs[i];
+                }
+            }
+        }
+
+        return locals;
+    }
+
+    /**
+     * Storing a value of the declared type of the slot keeps it valid in the handler frames. A reference may be of any
+     * type so storing one always invalidates the slot, as does storing into either slot of a long or double.
+     *
+     * @param type the frame type of the stored value, null for a reference
+     */
+    private void storeArg(int slot, Object type) {
+        if (type != null && type == declaredArgs[slot]) {
+            return;
+        }
+
+        reassignedArgs[slot] = true;
+
+        if ((type == LONG || type == DOUBLE) && slot + 1 < declaredArgs.length) {
+            reassignedArgs[slot + 1] = true;
+        }
+        if (slot > 0 && (declaredArgs[slot - 1] == LONG || declaredArgs[slot - 1] == DOUBLE)) {
+            reassignedArgs[slot - 1] = true;
+        }
+    }
+
+    /**
+     * The frames before the super constructor call, where this is uninitialized, are outside the try blocks.
+     */
+    private void frameArg(int slot, Object type) {
+        if (type.equals(declaredArgs[slot]) || slot == 0 && type == UNINITIALIZED_THIS) {
+            return;
+        }
+
+        reassignedArgs[slot] = true;
+
+        if ((type == LONG || type == DOUBLE) && slot + 1 < declaredArgs.length) {
+            reassignedArgs[slot + 1] = true;
+        }
+    }
+
+    private static Object storedType(int opcode) {
+        switch (opcode) {
+            case ISTORE:
+                return INTEGER;
+            case LSTORE:
+                return LONG;
+            case FSTORE:
+                return FLOAT;
+            case DSTORE:
+                return DOUBLE;
+            default:
+                return null;
+        }
+    }
+
+    private void visitHandlerFrame(int handlerLocals) {
+        if (handlerFrameLocals == null) {
+            handlerFrameLocals = handlerFrameArgs();
+        }
+
+        int slots = handlerFrameLocals.length;
+        for (int i = 0; i < handlerLocals; i++) {
+            slots = Math.max(slots, injectedLocals.get(i) + injectedLocalTypes.get(i).getSize());
+        }
+
+        Object[] locals = Arrays.copyOf(handlerFrameLocals, slots);
+        for (int i = handlerFrameLocals.length; i < slots; i++) {
+            locals[i] = TOP;
+        }
+
+        for (int i = 0; i < handlerLocals; i++) {
+            locals[injectedLocals.get(i)] = frameType(injectedLocalTypes.get(i));
+        }
+
+        // frames take a single entry for long and double values
+        List<Object> frame = new ArrayList<Object>();
+        int last = 0;
+        for (int i = 0; i < locals.length; i++) {
+            frame.add(locals[i]);
+
+            if (locals[i] != TOP) {
+                last = frame.size();
+            }
+
+            if (locals[i] == LONG || locals[i] == DOUBLE) {
+                i++;
+            }
+        }
+
+        // bypass the LocalVariablesSorter as the locals are already in the new index space
+        mv.visitFrame(F_NEW, last, frame.subList(0, last).toArray(), 1, HANDLER_STACK);
+    }
+
+    private static Object frameType(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                return INTEGER;
+            case Type.FLOAT:
+                return FLOAT;
+            case Type.LONG:
+                return LONG;
+            case Type.DOUBLE:
+                return DOUBLE;
+            case Type.ARRAY:
+                return type.getDescriptor();
+            default:
+                return type.getInternalName();
+        }
+    }
 }
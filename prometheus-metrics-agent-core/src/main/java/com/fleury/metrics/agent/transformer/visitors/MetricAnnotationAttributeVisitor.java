@@ -34,15 +34,36 @@ public class MetricAnnotationAttributeVisitor extends AnnotationVisitor {
             metricBuilder.name(value.toString());
         } else if ("doc".equals(name)) {
             metricBuilder.doc(value.toString());
+        } else if ("sampleRate".equals(name)) {
+            metricBuilder.sampleRate((Integer) value);
+        } else if ("maxSeries".equals(name) && (Integer) value > 0) {
+            metricBuilder.maxSeries((Integer) value);
+        } else if ("buckets".equals(name)) {
+            metricBuilder.buckets(toList((double[]) value));
+        } else if ("linearBuckets".equals(name)) {
+            metricBuilder.linearBuckets(toList((double[]) value));
+        } else if ("exponentialBuckets".equals(name)) {
+            metricBuilder.exponentialBuckets(toList((double[]) value));
         }
     }
 
+    private static List<Double> toList(double[] values) {
+        List<Double> list = new ArrayList<Double>(values.length);
+        for (double value : values) {
+            list.add(value);
+        }
+
+        return list;
+    }
+
     @Override
     public void visitEnum(String name, String desc, String value) {
-        super.visit(name, value);
+        super.visitEnum(name, desc, value);
 
         if ("mode".equals(name)) {
             metricBuilder.mode(value);
+        } else if ("unit".equals(name)) {
+            metricBuilder.unit(value);
         }
     }
 
@@ -1,6 +1,7 @@
 package com.fleury.metrics.agent.transformer.visitors;
 
 import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
+import static com.fleury.metrics.agent.transformer.visitors.InstrumentedClass.fieldDescriptor;
 import static org.objectweb.asm.Opcodes.ACC_FINAL;
 import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
 import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
@@ -8,13 +9,18 @@ import static org.objectweb.asm.Opcodes.ACC_STATIC;
 import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
 import static org.objectweb.asm.Opcodes.ASM5;
 import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_6;
+import static org.objectweb.asm.Opcodes.V1_7;
 
 import com.fleury.metrics.agent.config.Configuration;
 import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.transformer.PropertyGetters;
+import com.fleury.metrics.agent.transformer.visitors.MetricMembers.Accessor;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
 
 /**
@@ -29,10 +35,55 @@ public class MetricClassVisitor extends ClassVisitor {
     private boolean visitedStaticBlock = false;
     private Configuration config;
     private List<Metric> classMetrics;
+    private final boolean preserveFrames;
+    private final InstrumentedClass loaded;
+    private final PropertyGetters getters;
+    private final InstrumentedClass instrumented = new InstrumentedClass();
+
+    // the descriptors of the static fields holding metrics of the class. Others are looked up when recorded.
+    private final Map<Metric, String> staticFieldMetrics = new HashMap<Metric, String>();
+    private MetricMembers members;
 
     public MetricClassVisitor(ClassVisitor cv, Configuration config) {
+        this(cv, config, false);
+    }
+
+    /**
+     * @param preserveFrames true if the class is written without COMPUTE_FRAMES. The original frames are kept and the
+     * frames for the injected exception handlers are emitted by the {@link MetricAdapter}.
+     */
+    public MetricClassVisitor(ClassVisitor cv, Configuration config, boolean preserveFrames) {
+        this(cv, config, preserveFrames, null);
+    }
+
+    /**
+     * @param loaded the members added when the class was loaded if the class is being retransformed, null otherwise.
+     * Fields and methods cannot be added or removed when retransforming so the loaded members are declared again and
+     * the static fields are only used for the metrics they were initialized with.
+     */
+    public MetricClassVisitor(ClassVisitor cv, Configuration config, boolean preserveFrames,
+                              InstrumentedClass loaded) {
+        this(cv, config, preserveFrames, loaded, null);
+    }
+
+    /**
+     * @param getters resolves the getters of nested label properties against the types visible to the class, null if
+     * they are read by reflection
+     */
+    public MetricClassVisitor(ClassVisitor cv, Configuration config, boolean preserveFrames,
+                              InstrumentedClass loaded, PropertyGetters getters) {
         super(ASM5, cv);
         this.config = config;
+        this.preserveFrames = preserveFrames;
+        this.loaded = loaded;
+        this.getters = getters;
+    }
+
+    /**
+     * @return the static metric fields of the rewritten class
+     */
+    public InstrumentedClass getInstrumentedClass() {
+        return instrumented;
     }
 
     @Override
@@ -44,12 +95,46 @@ public class MetricClassVisitor extends ClassVisitor {
 
         this.classMetrics = config.findMetrics(className);
 
-        // add the static final metric fields (Counter,Histogram,Gauge) to the class
+        if (loaded == null) {
+            for (Metric metric : classMetrics) {
+                instrumented.addField(staticFinalFieldName(metric),
+                        fieldDescriptor(metric, config.isLazyMetrics()), metric);
+            }
+        } else {
+            for (Map.Entry<String, String> field : loaded.getFields().entrySet()) {
+                instrumented.addField(field.getKey(), field.getValue(), loaded.getMetric(field.getKey()));
+            }
+        }
+
         for (Metric metric : classMetrics) {
-            super.visitField(
-                    ACC_PUBLIC + ACC_FINAL + ACC_STATIC,
-                    staticFinalFieldName(metric),
-                    Type.getDescriptor(metric.getType().getCoreType()), null, null).visitEnd();
+            String field = staticFinalFieldName(metric);
+            if (metric.equals(instrumented.getMetric(field))) {
+                staticFieldMetrics.put(metric, instrumented.getFields().get(field));
+            }
+        }
+
+        // methods cannot be added when retransforming so only the outlined methods of the loaded class can be used
+        this.members = new MetricMembers(staticFieldMetrics, cv, config.isOutlineMetrics() && loaded == null,
+                config.isInvokeDynamic() && (classVersion & 0xFFFF) >= V1_7,
+                getters, loaded == null && (classVersion & 0xFFFF) >= V1_6);
+        if (loaded != null) {
+            for (Map.Entry<String, String> method : loaded.getMethods().entrySet()) {
+                Accessor accessor = loaded.getAccessor(method.getKey());
+
+                if (accessor != null) {
+                    members.addLoaded(method.getKey(), method.getValue(), accessor);
+                    instrumented.addMethod(method.getKey(), method.getValue(), accessor);
+                } else {
+                    members.addLoaded(method.getKey(), method.getValue(), loaded.getOutlined(method.getKey()));
+                    instrumented.addMethod(method.getKey(), method.getValue(), loaded.getOutlined(method.getKey()));
+                }
+            }
+        }
+
+        // add the static final metric fields (Counter,Histogram,Gauge) to the class
+        for (Map.Entry<String, String> field : instrumented.getFields().entrySet()) {
+            super.visitField(ACC_PUBLIC + ACC_FINAL + ACC_STATIC, field.getKey(), field.getValue(), null, null)
+                    .visitEnd();
         }
     }
 
@@ -60,19 +145,31 @@ public class MetricClassVisitor extends ClassVisitor {
         boolean isSyntheticMethod = (access & ACC_SYNTHETIC) != 0;
         boolean isStaticMethod = (access & ACC_STATIC) != 0;
 
-        // instrument the method
+        // instrument the method. Methods without metrics are passed straight through so the ClassWriter can copy them.
         if (!isInterface && !isSyntheticMethod && mv != null) {
             List<Metric> metadata = config.findMetrics(className, name, desc);
 
-            mv = new MetricAdapter(mv, className, access, name, desc, metadata);
-            mv = new JSRInlinerAdapter(mv, access, name, desc, signature, exceptions);
+            if (!metadata.isEmpty()) {
+                boolean hasFrames = (classVersion & 0xFFFF) >= V1_6;
+
+                mv = new MetricAdapter(mv, className, access, name, desc, metadata, preserveFrames && hasFrames,
+                        members);
+
+                // JSR/RET may only appear in classes which predate stack map frames
+                if (!hasFrames) {
+                    mv = new JSRInlinerAdapter(mv, access, name, desc, signature, exceptions);
+                }
+            }
         }
 
-        // initialize static fields if the static initializer block already exists in the class
+        // initialize static fields if the static initializer block already exists in the class. It has already run
+        // when retransforming so it is left as is.
         if (name.equals("<clinit>") && isStaticMethod && mv != null) {
             visitedStaticBlock = true;
 
-            mv = new StaticInitializerMethodVisitor(mv, classMetrics, className, access, name, desc);
+            if (loaded == null) {
+                mv = new StaticInitializerMethodVisitor(mv, instrumented, className, access, name, desc);
+            }
         }
 
         return mv;
@@ -81,9 +178,12 @@ public class MetricClassVisitor extends ClassVisitor {
     @Override
     public void visitEnd() {
         // add static initializer block (method) to initialize static fields
-        if (!visitedStaticBlock) {
+        // a retransformed class has a static initializer if we added fields to it when it was loaded
+        if (!visitedStaticBlock && (loaded == null || !loaded.isEmpty())) {
             MethodVisitor mv = super.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
-            mv = new StaticInitializerMethodVisitor(mv, classMetrics, className, ACC_STATIC, "<clinit>", "()V");
+            if (loaded == null) {
+                mv = new StaticInitializerMethodVisitor(mv, instrumented, className, ACC_STATIC, "<clinit>", "()V");
+            }
 
             mv.visitCode();
             mv.visitInsn(RETURN);
@@ -91,6 +191,16 @@ public class MetricClassVisitor extends ClassVisitor {
             mv.visitEnd();
         }
 
+        members.visitEnd();
+        if (loaded == null) {
+            for (Map.Entry<String, MetricMembers.Outlined> method : members.getOutlinedMethods().entrySet()) {
+                instrumented.addMethod(method.getKey(), method.getValue().getDescriptor(), method.getValue());
+            }
+            for (Map.Entry<String, Accessor> method : members.getAccessorMethods().entrySet()) {
+                instrumented.addMethod(method.getKey(), method.getValue().getDescriptor(), method.getValue());
+            }
+        }
+
         super.visitEnd();
     }
 }
@@ -0,0 +1,347 @@
+package com.fleury.metrics.agent.transformer.visitors;
+
+import static com.fleury.metrics.agent.config.Configuration.ACCESSOR_METHOD_PREFIX;
+import static com.fleury.metrics.agent.config.Configuration.OUTLINED_METHOD_PREFIX;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
+import static org.objectweb.asm.Opcodes.RETURN;
+
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.transformer.PropertyGetters;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+/**
+ * The members of the class being rewritten which the injected code uses, i.e. the static fields holding its metrics
+ * and, when outlining, the synthetic methods which record them. An outlined method holds everything needed to record a
+ * metric (reading the metric, building the label values and calling the reporter) so the instrumented method only
+ * gains the call to it and stays small enough to be inlined by the JIT.
+ *
+ * Each distinct recording gets one outlined method however many times it is injected in the class, e.g. at every
+ * return of a timed method.
+ *
+ * Nested properties of label values are read by synthetic accessor methods which call the getters resolved when the
+ * class is transformed. An accessor checks each value it reads for null, which needs branches, and the instrumented
+ * method must not gain any as only the frames of the injected exception handlers are added to it.
+ *
+ * For the same reason the duration of a sampled Timed metric whose label values are read from the arguments is always
+ * recorded by an outlined method when methods can be added, outlining or not. It returns straight away when the call
+ * was not sampled so the label values are only read for the sampled calls.
+ *
+ * @author Will Fleury
+ */
+public class MetricMembers {
+
+    public static final int OUTLINED_METHOD_ACCESS = ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC;
+
+    private final Map<Metric, String> fields;
+    private final ClassVisitor cv;
+    private final boolean outline;
+    private final boolean invokeDynamic;
+    private final PropertyGetters getters;
+    private final boolean addAccessors;
+    private final boolean addMethods;
+
+    // includes the outlined methods the class was loaded with when it is retransformed
+    private final Map<Outlined, String> outlined = new LinkedHashMap<Outlined, String>();
+    private final Map<Accessor, String> accessors = new LinkedHashMap<Accessor, String>();
+    private final Map<String, String> descriptors = new LinkedHashMap<String, String>();
+    private final Set<String> written = new HashSet<String>();
+
+    /**
+     * @param fields the descriptors of the static fields holding metrics of the class. Others are looked up by name.
+     */
+    public MetricMembers(Map<Metric, String> fields) {
+        this(fields, null, false);
+    }
+
+    /**
+     * @param cv the visitor the outlined methods are written to
+     * @param outline true if new outlined methods may be added to the class. Methods cannot be added when it is
+     * retransformed so only the outlined methods it was loaded with are used.
+     */
+    public MetricMembers(Map<Metric, String> fields, ClassVisitor cv, boolean outline) {
+        this(fields, cv, outline, false);
+    }
+
+    /**
+     * @param invokeDynamic true if metrics are recorded through invokedynamic call sites which can be switched off,
+     * only possible in classes at version 51 (Java 7) or later
+     */
+    public MetricMembers(Map<Metric, String> fields, ClassVisitor cv, boolean outline, boolean invokeDynamic) {
+        this(fields, cv, outline, invokeDynamic, null, false);
+    }
+
+    /**
+     * @param getters resolves the getters of nested label properties, null if they are read by reflection
+     * @param addAccessors true if new accessor and sampled recording methods may be added to the class. Only the
+     * methods of the loaded class are used when it is retransformed. They declare their frames so the class must be at
+     * version 50 (Java 6) or later.
+     */
+    public MetricMembers(Map<Metric, String> fields, ClassVisitor cv, boolean outline, boolean invokeDynamic,
+                         PropertyGetters getters, boolean addAccessors) {
+        this.fields = fields;
+        this.cv = cv;
+        this.outline = outline;
+        this.invokeDynamic = invokeDynamic;
+        this.getters = getters;
+        this.addAccessors = getters != null && addAccessors;
+        this.addMethods = addAccessors;
+    }
+
+    public boolean isInvokeDynamic() {
+        return invokeDynamic;
+    }
+
+    /**
+     * @return resolves the getters of nested label properties or null if they are read by reflection
+     */
+    public PropertyGetters getGetters() {
+        return getters;
+    }
+
+    /**
+     * @return the descriptor of the static field holding the metric or null if it is looked up by name
+     */
+    public String getFieldDescriptor(Metric metric) {
+        return fields.get(metric);
+    }
+
+    /**
+     * @return the name of the outlined method for the recording or null if it must be injected inline. The body of
+     * the method must be written to {@link #visitOutlined(String)} before the class is complete.
+     */
+    public String getOutlined(Outlined recording) {
+        return getOutlined(recording, false);
+    }
+
+    /**
+     * @param sampled true if the recording only happens for sampled calls, in which case it is outlined whenever
+     * methods can be added so its outlined method can return before reading the label values of unsampled calls
+     */
+    public String getOutlined(Outlined recording, boolean sampled) {
+        String name = outlined.get(recording);
+
+        if (name == null && (outline || sampled && addMethods)) {
+            name = OUTLINED_METHOD_PREFIX + descriptors.size();
+            outlined.put(recording, name);
+            descriptors.put(name, recording.getDescriptor());
+        }
+
+        return name;
+    }
+
+    /**
+     * @return the name of the accessor method reading the nested property or null if it must be read by reflection.
+     * The body of the method must be written to {@link #visitOutlined(String)} before the class is complete.
+     */
+    public String getAccessor(Accessor accessor) {
+        String name = accessors.get(accessor);
+
+        if (name == null && addAccessors) {
+            name = ACCESSOR_METHOD_PREFIX + descriptors.size();
+            accessors.put(accessor, name);
+            descriptors.put(name, accessor.getDescriptor());
+        }
+
+        return name;
+    }
+
+    /**
+     * @return the visitor to write the body of the outlined or accessor method to or null if it has already been
+     * written
+     */
+    public MethodVisitor visitOutlined(String name) {
+        if (!written.add(name)) {
+            return null;
+        }
+
+        return cv.visitMethod(OUTLINED_METHOD_ACCESS, name, descriptors.get(name), null, null);
+    }
+
+    /**
+     * @return the outlined methods of the class by name
+     */
+    Map<String, Outlined> getOutlinedMethods() {
+        Map<String, Outlined> methods = new LinkedHashMap<String, Outlined>();
+        for (Map.Entry<Outlined, String> entry : outlined.entrySet()) {
+            methods.put(entry.getValue(), entry.getKey());
+        }
+
+        return Collections.unmodifiableMap(methods);
+    }
+
+    /**
+     * @return the accessor methods of the class by name
+     */
+    Map<String, Accessor> getAccessorMethods() {
+        Map<String, Accessor> methods = new LinkedHashMap<String, Accessor>();
+        for (Map.Entry<Accessor, String> entry : accessors.entrySet()) {
+            methods.put(entry.getValue(), entry.getKey());
+        }
+
+        return Collections.unmodifiableMap(methods);
+    }
+
+    /**
+     * Declares an outlined method of the loaded class which is being retransformed.
+     *
+     * @param recording null if what the method records is not known, in which case it is never used
+     */
+    void addLoaded(String name, String descriptor, Outlined recording) {
+        descriptors.put(name, descriptor);
+
+        if (recording != null) {
+            outlined.put(recording, name);
+        }
+    }
+
+    /**
+     * Declares an accessor method of the loaded class which is being retransformed.
+     */
+    void addLoaded(String name, String descriptor, Accessor accessor) {
+        descriptors.put(name, descriptor);
+        accessors.put(accessor, name);
+    }
+
+    /**
+     * Writes empty bodies for the outlined and accessor methods of the loaded class which are no longer used. The
+     * retransformed class must still declare them.
+     */
+    void visitEnd() {
+        for (Map.Entry<String, String> method : descriptors.entrySet()) {
+            MethodVisitor mv = visitOutlined(method.getKey());
+
+            if (mv != null) {
+                mv.visitCode();
+                if (Type.getReturnType(method.getValue()).getSort() == Type.VOID) {
+                    mv.visitInsn(RETURN);
+                } else {
+                    mv.visitInsn(ACONST_NULL);
+                    mv.visitInsn(ARETURN);
+                }
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+            }
+        }
+    }
+
+    /**
+     * What an outlined method records. Recordings with the same metric, reporter method and parameters share the same
+     * outlined method.
+     */
+    public static class Outlined {
+
+        private final Metric metric;
+        private final String method;
+        private final String signature;
+        private final String descriptor;
+        private final boolean hasThis;
+
+        /**
+         * @param method the reporter method which records the metric
+         * @param signature the signature of the reporter method
+         * @param descriptor the descriptor of the outlined method
+         * @param hasThis true if the first parameter of the outlined method is the instance of the instrumented method
+         */
+        public Outlined(Metric metric, String method, String signature, String descriptor, boolean hasThis) {
+            this.metric = metric;
+            this.method = method;
+            this.signature = signature;
+            this.descriptor = descriptor;
+            this.hasThis = hasThis;
+        }
+
+        public String getDescriptor() {
+            return descriptor;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = metric.hashCode();
+            hash = 31 * hash + method.hashCode();
+            hash = 31 * hash + signature.hashCode();
+            hash = 31 * hash + descriptor.hashCode();
+            return 31 * hash + (hasThis ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Outlined)) {
+                return false;
+            }
+
+            Outlined other = (Outlined) obj;
+            return metric.equals(other.metric) && method.equals(other.method) && signature.equals(other.signature) &&
+                    descriptor.equals(other.descriptor) && hasThis == other.hasThis;
+        }
+
+        @Override
+        public String toString() {
+            return "Outlined{" +
+                    "metric=" + metric.getName() +
+                    ", method='" + method + '\'' +
+                    ", descriptor='" + descriptor + '\'' +
+                    '}';
+        }
+    }
+
+    /**
+     * What an accessor method reads, i.e. the nested property of a value of the declared type. The method takes the
+     * value and returns the property as a label value.
+     */
+    public static class Accessor {
+
+        private final Type type;
+        private final String path;
+
+        public Accessor(Type type, String path) {
+            this.type = type;
+            this.path = path;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getDescriptor() {
+            return Type.getMethodDescriptor(Type.getType(String.class), type);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Accessor)) {
+                return false;
+            }
+
+            Accessor other = (Accessor) obj;
+            return type.equals(other.type) && path.equals(other.path);
+        }
+
+        @Override
+        public String toString() {
+            return "Accessor{" +
+                    "type=" + type.getClassName() +
+                    ", path='" + path + '\'' +
+                    '}';
+        }
+    }
+}
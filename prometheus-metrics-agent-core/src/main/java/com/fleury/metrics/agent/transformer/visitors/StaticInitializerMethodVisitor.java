@@ -1,13 +1,20 @@
 package com.fleury.metrics.agent.transformer.visitors;
 
-import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
 import static com.fleury.metrics.agent.model.LabelUtil.getLabelNames;
+import static com.fleury.metrics.agent.model.LabelUtil.getLabelValues;
 import static com.fleury.metrics.agent.transformer.util.CollectionUtil.isNotEmpty;
+import static com.fleury.metrics.agent.transformer.visitors.InstrumentedClass.LABEL_CACHE_FIELD_DESCRIPTOR;
+import static com.fleury.metrics.agent.transformer.visitors.InstrumentedClass.LAZY_FIELD_DESCRIPTOR;
+import static com.fleury.metrics.agent.transformer.visitors.InstrumentedClass.isChildField;
 
+import com.fleury.metrics.agent.model.Buckets;
 import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
 import com.fleury.metrics.agent.reporter.PrometheusMetricSystem;
 import com.fleury.metrics.agent.transformer.util.OpCodeUtil;
+import io.prometheus.client.SimpleCollector;
 import java.util.List;
+import java.util.Map;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
@@ -15,28 +22,107 @@ import org.objectweb.asm.commons.AdviceAdapter;
 
 public class StaticInitializerMethodVisitor extends AdviceAdapter {
 
-    private final List<Metric> classMetrics;
+    private final InstrumentedClass fields;
     private final String className;
 
-    public StaticInitializerMethodVisitor(MethodVisitor mv, List<Metric> classMetrics, String className, int access, String name, String desc) {
+    /**
+     * @param fields the static metric fields to initialize
+     */
+    public StaticInitializerMethodVisitor(MethodVisitor mv, InstrumentedClass fields, String className, int access, String name, String desc) {
         super(ASM5, mv, access, name, desc);
 
         this.className = className;
-        this.classMetrics = classMetrics;
+        this.fields = fields;
     }
 
     @Override
     public void visitCode() {
         super.visitCode();
 
-        for (Metric metric : classMetrics) {
-            addMetric(metric);
+        for (Map.Entry<String, String> field : fields.getFields().entrySet()) {
+            addMetric(field.getKey(), field.getValue(), fields.getMetric(field.getKey()));
         }
     }
 
-    private void addMetric(Metric metric) {
+    private void addMetric(String field, String descriptor, Metric metric) {
+        if (descriptor.equals(LAZY_FIELD_DESCRIPTOR)) {
+            // the collector is created when first recorded
+            createMetric(this, metric, "createLazy", Type.getType(descriptor));
+        } else if (isChildField(metric, descriptor)) {
+            createMetric(this, metric, "createAndRegister");
+            bindLabelValues(metric);
+        } else if (descriptor.equals(LABEL_CACHE_FIELD_DESCRIPTOR)) {
+            createMetric(this, metric, "createAndRegister");
+            visitMethodInsn(INVOKESTATIC, Type.getInternalName(PrometheusMetricSystem.class), "cacheLabels",
+                    Type.getMethodDescriptor(Type.getType(descriptor), Type.getType(SimpleCollector.class)), false);
+        } else {
+            createMetric(this, metric, "createAndRegister");
+        }
+
+        // store metric in class static field
+        super.visitFieldInsn(PUTSTATIC, className, field, descriptor);
+    }
+
+    /**
+     * Replaces the collector on the stack with its child for the constant label values of the metric.
+     */
+    private void bindLabelValues(Metric metric) {
+        List<String> labelValues = getLabelValues(metric.getLabels());
+
+        visitInsn(OpCodeUtil.getIConstOpcodeForInteger(labelValues.size()));
+        visitTypeInsn(ANEWARRAY, Type.getInternalName(String.class));
+
+        for (int i = 0; i < labelValues.size(); i++) {
+            visitInsn(DUP);
+            visitInsn(OpCodeUtil.getIConstOpcodeForInteger(i));
+            visitLdcInsn(labelValues.get(i));
+            visitInsn(AASTORE);
+        }
+
+        visitMethodInsn(INVOKESTATIC, Type.getInternalName(PrometheusMetricSystem.class), "labels",
+                Type.getMethodDescriptor(
+                        Type.getType(metric.getType().getChildType()),
+                        Type.getType(metric.getType().getCoreType()), Type.getType(String[].class)),
+                false);
+    }
+
+    /**
+     * Leaves the metric returned by the PrometheusMetricSystem factory method (e.g. createAndRegisterCounted) with the
+     * given prefix on the stack.
+     */
+    public static void createMetric(MethodVisitor mv, Metric metric, String factoryMethodPrefix) {
+        createMetric(mv, metric, factoryMethodPrefix, Type.getType(metric.getType().getCoreType()));
+    }
+
+    /**
+     * @param returnType the type returned by the factory method
+     */
+    public static void createMetric(MethodVisitor mv, Metric metric, String factoryMethodPrefix, Type returnType) {
+        // the limit applies to the collector when it is created, whether now or when first recorded
+        if (metric.getMaxSeries() != null && isNotEmpty(metric.getLabels())) {
+            mv.visitLdcInsn(metric.getName());
+            mv.visitLdcInsn(metric.getMaxSeries());
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(PrometheusMetricSystem.class), "limitSeries",
+                    Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(String.class), Type.INT_TYPE), false);
+        }
+
+        // the buckets are constants so nothing is built each time a metric added at runtime is looked up
+        if (metric.getType() == MetricType.Timed && metric.hasTimerOptions()) {
+            mv.visitLdcInsn(metric.getName());
+            if (metric.getBuckets() != null) {
+                mv.visitLdcInsn(Buckets.encode(metric.getBuckets()));
+            } else {
+                mv.visitInsn(ACONST_NULL);
+            }
+            mv.visitLdcInsn(metric.getUnit().name());
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(PrometheusMetricSystem.class), "timerOptions",
+                    Type.getMethodDescriptor(Type.VOID_TYPE,
+                            Type.getType(String.class), Type.getType(String.class), Type.getType(String.class)),
+                    false);
+        }
+
         // load name
-        super.visitLdcInsn(metric.getName());
+        mv.visitLdcInsn(metric.getName());
 
         // load labels
         if (isNotEmpty(metric.getLabels())) {
@@ -45,35 +131,31 @@ public class StaticInitializerMethodVisitor extends AdviceAdapter {
                         + metric.getName() + " has " + metric.getLabels().size());
             }
 
-            super.visitInsn(OpCodeUtil.getIConstOpcodeForInteger(metric.getLabels().size()));
-            super.visitTypeInsn(ANEWARRAY, Type.getInternalName(String.class));
+            mv.visitInsn(OpCodeUtil.getIConstOpcodeForInteger(metric.getLabels().size()));
+            mv.visitTypeInsn(ANEWARRAY, Type.getInternalName(String.class));
 
             List<String> labelNames = getLabelNames(metric.getLabels());
             for (int i = 0; i < labelNames.size(); i++) {
-                super.visitInsn(DUP);
-                super.visitInsn(OpCodeUtil.getIConstOpcodeForInteger(i));
-                super.visitLdcInsn(labelNames.get(i));
-                super.visitInsn(AASTORE);
+                mv.visitInsn(DUP);
+                mv.visitInsn(OpCodeUtil.getIConstOpcodeForInteger(i));
+                mv.visitLdcInsn(labelNames.get(i));
+                mv.visitInsn(AASTORE);
             }
         }
         // or null if non labels
         else {
-            super.visitInsn(ACONST_NULL);
+            mv.visitInsn(ACONST_NULL);
         }
 
         // load doc
-        super.visitLdcInsn(metric.getDoc() == null ? "empty doc" : metric.getDoc());
+        mv.visitLdcInsn(metric.getDoc() == null ? "empty doc" : metric.getDoc());
 
         // call PrometheusMetricSystem.createAndRegisterCounted/Timed/Gauged(...)
-        super.visitMethodInsn(INVOKESTATIC, Type.getInternalName(PrometheusMetricSystem.class),
-                "createAndRegister" + metric.getType().name(),
+        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(PrometheusMetricSystem.class),
+                factoryMethodPrefix + metric.getType().name(),
                 Type.getMethodDescriptor(
-                        Type.getType(metric.getType().getCoreType()),
+                        returnType,
                         Type.getType(String.class), Type.getType(String[].class), Type.getType(String.class)),
                 false);
-
-        // store metric in class static field
-        super.visitFieldInsn(PUTSTATIC, className, staticFinalFieldName(metric),
-                Type.getDescriptor(metric.getType().getCoreType()));
     }
 }
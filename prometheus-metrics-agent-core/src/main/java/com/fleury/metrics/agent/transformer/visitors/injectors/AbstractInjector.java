@@ -1,22 +1,45 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
+import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
 import static com.fleury.metrics.agent.model.LabelUtil.getLabelVarIndex;
 import static com.fleury.metrics.agent.model.LabelUtil.getNestedLabelVar;
+import static com.fleury.metrics.agent.model.LabelUtil.hasTemplatedLabelValues;
 import static com.fleury.metrics.agent.model.LabelUtil.isLabelVarNested;
 import static com.fleury.metrics.agent.model.LabelUtil.isTemplatedLabelValue;
 import static com.fleury.metrics.agent.model.LabelUtil.isThis;
+import static com.fleury.metrics.agent.model.LabelUtil.normalizationKey;
+import static com.fleury.metrics.agent.model.MetricType.Counted;
+import static com.fleury.metrics.agent.model.MetricType.Timed;
 import static com.fleury.metrics.agent.transformer.util.CollectionUtil.isNotEmpty;
+import static com.fleury.metrics.agent.transformer.visitors.InstrumentedClass.LABEL_CACHE_FIELD_DESCRIPTOR;
+import static com.fleury.metrics.agent.transformer.visitors.InstrumentedClass.LAZY_FIELD_DESCRIPTOR;
+import static com.fleury.metrics.agent.transformer.visitors.InstrumentedClass.isChildField;
 
-import com.fleury.metrics.agent.introspector.GenericClassIntrospector;
 import com.fleury.metrics.agent.model.LabelUtil;
 import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.reporter.LabelCache;
+import com.fleury.metrics.agent.reporter.LazyMetric;
 import com.fleury.metrics.agent.reporter.PrometheusMetricSystem;
+import com.fleury.metrics.agent.reporter.PropertyReader;
+import com.fleury.metrics.agent.transformer.PropertyGetters;
+import com.fleury.metrics.agent.transformer.PropertyGetters.Getter;
 import com.fleury.metrics.agent.transformer.util.OpCodeUtil;
+import com.fleury.metrics.agent.transformer.visitors.StaticInitializerMethodVisitor;
+import com.fleury.metrics.agent.transformer.visitors.MetricMembers;
+import com.fleury.metrics.agent.transformer.visitors.MetricMembers.Accessor;
+import com.fleury.metrics.agent.transformer.visitors.MetricMembers.Outlined;
+import io.prometheus.client.Collector;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import org.apache.commons.beanutils.PropertyUtils;
+import java.util.Map;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
+import org.objectweb.asm.commons.GeneratorAdapter;
 
 /**
  *
@@ -25,21 +48,52 @@ import org.objectweb.asm.commons.AdviceAdapter;
 public abstract class AbstractInjector implements Injector, Opcodes {
 
     public static final String METRIC_REPORTER_CLASSNAME = Type.getInternalName(PrometheusMetricSystem.class);
+    public static final String LAZY_METRIC_CLASSNAME = Type.getInternalName(LazyMetric.class);
+    public static final String LABEL_CACHE_CLASSNAME = Type.getInternalName(LabelCache.class);
+    public static final String PROPERTY_READER_CLASSNAME = Type.getInternalName(PropertyReader.class);
 
-    static {
-        PropertyUtils.addBeanIntrospector(new GenericClassIntrospector());
-    }
+    private static final String COUNT_METHOD = "recordCount";
+    private static final String COUNT_SIGNATURE = Type.getMethodDescriptor(
+            Type.VOID_TYPE,
+            Type.getType(Counted.getCoreType()), Type.getType(String[].class));
+
+    private static final String TIMER_METHOD = "recordTime";
+    private static final String SAMPLED_TIMER_METHOD = "recordSampledTime";
+    private static final String TIMER_SIGNATURE = Type.getMethodDescriptor(
+            Type.VOID_TYPE,
+            Type.getType(Timed.getCoreType()), Type.getType(String[].class), Type.LONG_TYPE);
+
+    // referenced by name as MetricSwitches needs Java 7
+    private static final Handle SWITCH_BOOTSTRAP = new Handle(H_INVOKESTATIC,
+            "com/fleury/metrics/agent/reporter/MetricSwitches", "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;)" +
+                    "Ljava/lang/invoke/CallSite;");
+
+    private static final String SAMPLED_START_METHOD = "startSampledTime";
+    private static final String SAMPLED_START_SIGNATURE = Type.getMethodDescriptor(Type.LONG_TYPE, Type.INT_TYPE);
+
+    private static final String READ_PROPERTY_SIGNATURE = Type.getMethodDescriptor(
+            Type.getType(Object.class),
+            Type.getType(Object.class), Type.getType(String.class));
+
+    private static final String NORMALIZE_LABEL_SIGNATURE = Type.getMethodDescriptor(
+            Type.getType(String.class),
+            Type.getType(String.class), Type.getType(String.class));
+
+    private static final Object[] NULL_PROPERTY_STACK = {"java/lang/Object"};
 
     protected final AdviceAdapter aa;
     protected final Type[] argTypes;
     protected final int access;
     protected final String className;
+    protected final MetricMembers members;
 
-    public AbstractInjector(AdviceAdapter aa, String className, Type[] argTypes, int access) {
+    public AbstractInjector(AdviceAdapter aa, String className, Type[] argTypes, int access, MetricMembers members) {
         this.aa = aa;
         this.className = className;
         this.argTypes = argTypes;
         this.access = access;
+        this.members = members;
     }
 
     @Override
@@ -54,74 +108,433 @@ public abstract class AbstractInjector implements Injector, Opcodes {
     public void injectAtMethodExit(int opcode) {
     }
 
-    protected void injectLabelsToStack(Metric metric) {
+    /**
+     * Records the metric with the given PrometheusMetricSystem method which takes the metric and its label values.
+     */
+    protected void record(Metric metric, String method, String signature) {
+        record(metric, method, signature, -1, false, false);
+    }
+
+    /**
+     * Records the time since the start time local with the given PrometheusMetricSystem method which takes the metric,
+     * its label values and the duration.
+     */
+    protected void recordDuration(Metric metric, String method, String signature, int startTimeVar) {
+        record(metric, method, signature, startTimeVar, true, false);
+    }
+
+    /**
+     * Stores the start time of the timer in a new local. Only one in sampleRate calls of a sampled timer read the
+     * clock, the choice is made by PrometheusMetricSystem so the injected code does not branch.
+     *
+     * @return the start time local
+     */
+    protected int startTimer(Metric timer) {
+        int startTimeVar = aa.newLocal(Type.LONG_TYPE);
+
+        if (timer.isSampled()) {
+            aa.push(timer.getSampleRate());
+            aa.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, SAMPLED_START_METHOD, SAMPLED_START_SIGNATURE,
+                    false);
+        } else {
+            aa.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        }
+        aa.storeLocal(startTimeVar);
+
+        return startTimeVar;
+    }
+
+    /**
+     * Records the duration of the call. A sampled timer passes the start time which PrometheusMetricSystem ignores
+     * when the call was not sampled, and counts every call. Its label values read from the arguments are read by its
+     * outlined method only once it has checked the call was sampled.
+     */
+    protected void recordTimer(Metric timer, int startTimeVar) {
+        if (timer.isSampled()) {
+            record(timer.getSampledCalls(), COUNT_METHOD, COUNT_SIGNATURE);
+            record(timer, SAMPLED_TIMER_METHOD, TIMER_SIGNATURE, startTimeVar, false, true);
+        } else {
+            recordDuration(timer, TIMER_METHOD, TIMER_SIGNATURE, startTimeVar);
+        }
+    }
+
+    /**
+     * @param elapsed true to pass the time since the start time local rather than the start time itself
+     * @param sampled true if the start time is {@link PrometheusMetricSystem#NOT_SAMPLED} for the calls which are not
+     * recorded
+     */
+    private void record(Metric metric, String method, String signature, int startTimeVar, boolean elapsed,
+                        boolean sampled) {
+        boolean hasDuration = startTimeVar >= 0;
+
+        if (isBound(metric)) {
+            signature = boundSignature(metric, signature);
+        }
+
+        // the outlined method takes this and all the arguments if it reads any so the label values read the same slots
+        boolean passArgs = hasTemplatedLabelValues(metric.getLabels());
+        boolean hasThis = passArgs && (access & ACC_STATIC) == 0;
+
+        List<Type> params = new ArrayList<Type>();
+        if (hasThis) {
+            params.add(Type.getObjectType(className));
+        }
+        if (passArgs) {
+            params.addAll(Arrays.asList(argTypes));
+        }
+        if (hasDuration) {
+            params.add(Type.LONG_TYPE);
+        }
+        String descriptor = Type.getMethodDescriptor(Type.VOID_TYPE, params.toArray(new Type[params.size()]));
+
+        // the outlined method of a sampled recording only reads the label values of the sampled calls
+        boolean skipUnsampled = sampled && passArgs;
+        String outlined = members.getOutlined(new Outlined(metric, method, signature, descriptor, hasThis),
+                skipUnsampled);
+
+        if (outlined == null) {
+            injectMetricToStack(aa, metric);
+            if (hasDuration) {
+                injectDurationToStack(startTimeVar, elapsed);
+            }
+            invokeReporter(aa, metric, method, signature);
+            return;
+        }
+
+        writeOutlined(outlined, descriptor, metric, method, signature, hasDuration, skipUnsampled);
+
+        if (hasThis) {
+            aa.visitVarInsn(ALOAD, 0);
+        }
+        if (passArgs) {
+            for (int i = 0; i < argTypes.length; i++) {
+                aa.visitVarInsn(argTypes[i].getOpcode(ILOAD), getStackIndex(i));
+            }
+        }
+        if (hasDuration) {
+            injectDurationToStack(startTimeVar, elapsed);
+        }
+        aa.visitMethodInsn(INVOKESTATIC, className, outlined, descriptor, false);
+    }
+
+    /**
+     * The parameters of the outlined method have the same slots as this and the arguments of the instrumented method
+     * so the label values are read the same way. The duration is the last parameter.
+     *
+     * @param skipUnsampled true to return without recording when the duration parameter is the start time of a call
+     * which was not sampled
+     */
+    private void writeOutlined(String name, String descriptor, Metric metric, String method, String signature,
+                               boolean hasDuration, boolean skipUnsampled) {
+        MethodVisitor mv = members.visitOutlined(name);
+        if (mv == null) {
+            return;
+        }
+
+        GeneratorAdapter ga = new GeneratorAdapter(mv, MetricMembers.OUTLINED_METHOD_ACCESS, name, descriptor);
+        ga.visitCode();
+
+        // written to the method visitor as the adapter only accepts expanded frames. The locals are still the
+        // parameters at the frame.
+        if (skipUnsampled) {
+            Label sampledCall = new Label();
+
+            mv.visitVarInsn(LLOAD, (Type.getArgumentsAndReturnSizes(descriptor) >> 2) - 3);
+            mv.visitLdcInsn(PrometheusMetricSystem.NOT_SAMPLED);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFNE, sampledCall);
+            mv.visitInsn(RETURN);
+
+            mv.visitLabel(sampledCall);
+            mv.visitFrame(F_SAME, 0, null, 0, null);
+        }
+
+        injectMetricToStack(ga, metric);
+        if (hasDuration) {
+            ga.visitVarInsn(LLOAD, (Type.getArgumentsAndReturnSizes(descriptor) >> 2) - 3);
+        }
+        invokeReporter(ga, metric, method, signature);
+
+        ga.visitInsn(RETURN);
+        ga.visitMaxs(0, 0);
+        ga.visitEnd();
+    }
+
+    /**
+     * Calls the PrometheusMetricSystem method directly or through a call site of the metric which is linked to a no-op
+     * while the metric is disabled.
+     */
+    private void invokeReporter(MethodVisitor mv, Metric metric, String method, String signature) {
+        if (members.isInvokeDynamic()) {
+            mv.visitInvokeDynamicInsn(method, signature, SWITCH_BOOTSTRAP, metric.getName());
+        } else {
+            mv.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, method, signature, false);
+        }
+    }
+
+    private void injectDurationToStack(int startTimeVar, boolean elapsed) {
+        if (!elapsed) {
+            aa.loadLocal(startTimeVar);
+            return;
+        }
+
+        aa.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        aa.loadLocal(startTimeVar);
+        aa.visitInsn(LSUB);
+    }
+
+    /**
+     * Leaves the arguments identifying what to record on the stack, i.e. the metric and its label values or only the
+     * child of the metric for its label values if it is held in a field or found in the {@link LabelCache} held in the
+     * field. The label values are passed to the cache one by one so no array is built when the child is cached.
+     */
+    private void injectMetricToStack(GeneratorAdapter ga, Metric metric) {
+        loadMetric(ga, metric);
+
+        if (LABEL_CACHE_FIELD_DESCRIPTOR.equals(members.getFieldDescriptor(metric))) {
+            Map<String, String> labels = LabelUtil.splitLabelNameAndValue(metric.getLabels());
+
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                injectLabelValueToStack(ga, metric, label.getKey(), label.getValue());
+            }
+
+            Type[] valueTypes = new Type[labels.size()];
+            Arrays.fill(valueTypes, Type.getType(String.class));
+
+            ga.visitMethodInsn(INVOKEVIRTUAL, LABEL_CACHE_CLASSNAME, "labels",
+                    Type.getMethodDescriptor(Type.getType(Object.class), valueTypes), false);
+            ga.visitTypeInsn(CHECKCAST, Type.getInternalName(metric.getType().getChildType()));
+        } else if (!isBound(metric)) {
+            injectLabelsToStack(ga, metric);
+        }
+    }
+
+    /**
+     * @return true if the child of the collector of the metric is recorded rather than the collector and the label
+     * values, i.e. its static field holds the child or a cache of them
+     */
+    private boolean isBound(Metric metric) {
+        String descriptor = members.getFieldDescriptor(metric);
+        return isChildField(metric, descriptor) || LABEL_CACHE_FIELD_DESCRIPTOR.equals(descriptor);
+    }
+
+    /**
+     * @return the signature of the PrometheusMetricSystem method which records the child rather than the metric and
+     * its label values
+     */
+    private static String boundSignature(Metric metric, String signature) {
+        Type[] args = Type.getArgumentTypes(signature);
+
+        Type[] bound = new Type[args.length - 1];
+        bound[0] = Type.getType(metric.getType().getChildType());
+        System.arraycopy(args, 2, bound, 1, args.length - 2);
+
+        return Type.getMethodDescriptor(Type.getReturnType(signature), bound);
+    }
+
+    /**
+     * Leaves the metric on the stack. It is read from its static field unless the class was retransformed after the
+     * metric was added, in which case it is looked up by name as fields cannot be added when retransforming. A lazy
+     * field holds a {@link LazyMetric} which creates the collector the first time it is read. The field of a metric
+     * with constant label values holds the child for them instead and that of a metric with label values read from
+     * the arguments holds a {@link LabelCache}.
+     */
+    private void loadMetric(GeneratorAdapter ga, Metric metric) {
+        String descriptor = members.getFieldDescriptor(metric);
+
+        if (descriptor == null) {
+            StaticInitializerMethodVisitor.createMetric(ga, metric, "getOrCreate");
+        } else if (descriptor.equals(LAZY_FIELD_DESCRIPTOR)) {
+            ga.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), descriptor);
+            ga.visitMethodInsn(INVOKEVIRTUAL, LAZY_METRIC_CLASSNAME, "get",
+                    Type.getMethodDescriptor(Type.getType(Collector.class)), false);
+            ga.visitTypeInsn(CHECKCAST, Type.getInternalName(metric.getType().getCoreType()));
+        } else {
+            ga.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), descriptor);
+        }
+    }
+
+    private void injectLabelsToStack(GeneratorAdapter ga, Metric metric) {
+        List<String> labelNames = LabelUtil.getLabelNames(metric.getLabels());
         List<String> labelValues = LabelUtil.getLabelValues(metric.getLabels());
 
         if (isNotEmpty(labelValues)) {
-            aa.visitInsn(OpCodeUtil.getIConstOpcodeForInteger(labelValues.size()));
-            aa.visitTypeInsn(ANEWARRAY, Type.getInternalName(String.class));
+            ga.visitInsn(OpCodeUtil.getIConstOpcodeForInteger(labelValues.size()));
+            ga.visitTypeInsn(ANEWARRAY, Type.getInternalName(String.class));
 
             for (int i = 0; i < labelValues.size(); i++) {
-                aa.visitInsn(DUP);
-                aa.visitInsn(OpCodeUtil.getIConstOpcodeForInteger(i));
-                injectLabelValueToStack(labelValues.get(i));
+                ga.visitInsn(DUP);
+                ga.visitInsn(OpCodeUtil.getIConstOpcodeForInteger(i));
+                injectLabelValueToStack(ga, metric, labelNames.get(i), labelValues.get(i));
+                ga.visitInsn(AASTORE);
             }
 
         } else {
-            aa.visitInsn(ACONST_NULL);
+            ga.visitInsn(ACONST_NULL);
         }
     }
 
-    private void injectLabelValueToStack(String labelValue) {
+    /**
+     * Leaves the value of the label on the stack, normalized by PrometheusMetricSystem if the metric configures a
+     * normalization of the label. Constant values are recorded as they are.
+     */
+    private void injectLabelValueToStack(GeneratorAdapter ga, Metric metric, String labelName, String labelValue) {
         if (!isTemplatedLabelValue(labelValue)) {
-            aa.visitLdcInsn(labelValue);
-        } 
-        else {
-            if (isThis(labelValue)) {
-                aa.visitVarInsn(ALOAD, 0); //aa.loadThis();
-            }
-            
-            else {
-                int argIndex = getLabelVarIndex(labelValue);
+            ga.visitLdcInsn(labelValue);
+            return;
+        }
+
+        injectTemplatedLabelValueToStack(ga, labelValue);
+
+        if (metric.getNormalize().containsKey(labelName)) {
+            ga.visitLdcInsn(normalizationKey(metric.getName(), labelName));
+            ga.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, "normalizeLabel", NORMALIZE_LABEL_SIGNATURE,
+                    false);
+        }
+    }
+
+    /**
+     * A nested property is read by the accessor method calling its getters when the declared type of the value
+     * resolves at least its first property. Otherwise it is read by reflection.
+     */
+    private void injectTemplatedLabelValueToStack(GeneratorAdapter ga, String labelValue) {
+
+        Type type;
+        if (isThis(labelValue)) {
+            ga.visitVarInsn(ALOAD, 0); //ga.loadThis();
+            type = Type.getObjectType(className);
+        } else {
+            int argIndex = getLabelVarIndex(labelValue);
+
+            boxParameterAndLoad(ga, argIndex);
+            type = argTypes[argIndex];
+        }
+
+        if (isLabelVarNested(labelValue)) {
+            String path = getNestedLabelVar(labelValue);
 
-                boxParameterAndLoad(argIndex);
+            String accessor = getAccessor(type, path);
+            if (accessor != null) {
+                ga.visitMethodInsn(INVOKESTATIC, className, accessor, new Accessor(type, path).getDescriptor(), false);
+                return;
             }
 
-            if (isLabelVarNested(labelValue)) {
-                aa.visitLdcInsn(getNestedLabelVar(labelValue));
+            ga.visitLdcInsn(path);
+            ga.visitMethodInsn(INVOKESTATIC, PROPERTY_READER_CLASSNAME, "read", READ_PROPERTY_SIGNATURE, false);
+        }
+
+        ga.visitMethodInsn(INVOKESTATIC, Type.getInternalName(String.class),
+                "valueOf",
+                Type.getMethodDescriptor(
+                        Type.getType(String.class),
+                        Type.getType(Object.class)),
+                false);
+    }
+
+    /**
+     * @return the name of the accessor method reading the nested property of a value of the declared type or null if
+     * the type does not resolve the first property or the method cannot be added to the class
+     */
+    private String getAccessor(Type type, String path) {
+        PropertyGetters getters = members.getGetters();
+        if (getters == null || type.getSort() != Type.OBJECT) {
+            return null;
+        }
+
+        List<Getter> resolved = getters.resolve(className, type, path);
+        if (resolved.isEmpty()) {
+            return null;
+        }
+
+        Accessor accessor = new Accessor(type, path);
+
+        String name = members.getAccessor(accessor);
+        if (name != null) {
+            writeAccessor(name, accessor, resolved);
+        }
+
+        return name;
+    }
+
+    /**
+     * The accessor calls the getters one after the other and returns "null" as soon as a value is null. The properties
+     * following the resolved getters are read by reflection.
+     */
+    private void writeAccessor(String name, Accessor accessor, List<Getter> getters) {
+        MethodVisitor mv = members.visitOutlined(name);
+        if (mv == null) {
+            return;
+        }
+
+        Label isNull = new Label();
+
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+
+        for (Getter getter : getters) {
+            mv.visitInsn(DUP);
+            mv.visitJumpInsn(IFNULL, isNull);
+            getter.invoke(mv);
+        }
+
+        Type type = getters.get(getters.size() - 1).getReturnType();
 
-                aa.visitMethodInsn(INVOKESTATIC, Type.getInternalName(PropertyUtils.class),
-                        "getNestedProperty",
-                        Type.getMethodDescriptor(
-                                Type.getType(Object.class),
-                                Type.getType(Object.class), Type.getType(String.class)),
-                        false);
+        String[] properties = accessor.getPath().split("\\.");
+        if (getters.size() < properties.length) {
+            StringBuilder remaining = new StringBuilder();
+            for (int i = getters.size(); i < properties.length; i++) {
+                remaining.append(remaining.length() == 0 ? "" : ".").append(properties[i]);
             }
 
-            aa.visitMethodInsn(INVOKESTATIC, Type.getInternalName(String.class),
-                    "valueOf",
-                    Type.getMethodDescriptor(
-                            Type.getType(String.class),
-                            Type.getType(Object.class)),
-                    false);
+            mv.visitLdcInsn(remaining.toString());
+            mv.visitMethodInsn(INVOKESTATIC, PROPERTY_READER_CLASSNAME, "read", READ_PROPERTY_SIGNATURE, false);
+            type = Type.getType(Object.class);
+        }
+
+        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(String.class), "valueOf",
+                Type.getMethodDescriptor(Type.getType(String.class), valueOfType(type)), false);
+        mv.visitInsn(ARETURN);
+
+        // every value checked is an object, the accessor only declares its parameter
+        mv.visitLabel(isNull);
+        mv.visitFrame(F_FULL, 1, new Object[] {accessor.getType().getInternalName()}, 1, NULL_PROPERTY_STACK);
+        mv.visitInsn(POP);
+        mv.visitLdcInsn("null");
+        mv.visitInsn(ARETURN);
+
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * @return the parameter type of the String.valueOf method converting a value of the given type
+     */
+    private static Type valueOfType(Type type) {
+        switch (type.getSort()) {
+            case Type.BYTE:
+            case Type.SHORT:
+                return Type.INT_TYPE;
+            case Type.ARRAY:
+            case Type.OBJECT:
+                return Type.getType(Object.class);
+            default:
+                return type;
         }
-       
-        aa.visitInsn(AASTORE);
     }
 
-    private void boxParameterAndLoad(int argIndex) {
+    private void boxParameterAndLoad(GeneratorAdapter ga, int argIndex) {
         Type type = argTypes[argIndex];
         int stackIndex = getStackIndex(argIndex);
         
         switch (type.getSort()) {
             case Type.OBJECT: //no need to box Object
-                aa.visitVarInsn(ALOAD, stackIndex);  
+                ga.visitVarInsn(ALOAD, stackIndex);  
                 break;
                 
             default:
-                // aa.loadArg(argIndex); //doesn't work...
-                aa.visitVarInsn(type.getOpcode(Opcodes.ILOAD), stackIndex);
-                aa.valueOf(type);
+                // ga.loadArg(argIndex); //doesn't work...
+                ga.visitVarInsn(type.getOpcode(Opcodes.ILOAD), stackIndex);
+                ga.valueOf(type);
                 break;
         }
     }
@@ -1,9 +1,9 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
-import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
 import static com.fleury.metrics.agent.model.MetricType.Counted;
 
 import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.transformer.visitors.MetricMembers;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
 
@@ -37,17 +37,15 @@ public class CounterInjector extends AbstractInjector {
     
     private final Metric metric;
 
-    public CounterInjector(Metric metric, AdviceAdapter aa, String className, Type[] argTypes, int access) {
-        super(aa, className, argTypes, access);
+    public CounterInjector(Metric metric, AdviceAdapter aa, String className, Type[] argTypes, int access,
+            MetricMembers members) {
+        super(aa, className, argTypes, access, members);
         this.metric = metric;
     }
 
     @Override
     public void injectAtMethodEnter() {
-        aa.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), Type.getDescriptor(Counted.getCoreType()));
-        injectLabelsToStack(metric);
-
-        aa.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, METHOD, SIGNATURE, false);
+        record(metric, METHOD, SIGNATURE);
     }
 
 }
@@ -1,9 +1,9 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
-import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
 import static com.fleury.metrics.agent.model.MetricType.Counted;
 
 import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.transformer.visitors.MetricMembers;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
@@ -45,8 +45,9 @@ public class ExceptionCounterInjector extends AbstractInjector {
     
     private Label startFinally;
 
-    public ExceptionCounterInjector(Metric metric, AdviceAdapter aa, String className, Type[] argTypes, int access) {
-        super(aa, className, argTypes, access);
+    public ExceptionCounterInjector(Metric metric, AdviceAdapter aa, String className, Type[] argTypes, int access,
+            MetricMembers members) {
+        super(aa, className, argTypes, access, members);
         this.metric = metric;
     }
 
@@ -62,10 +63,8 @@ public class ExceptionCounterInjector extends AbstractInjector {
         aa.visitTryCatchBlock(startFinally, endFinally, endFinally, null);
         aa.visitLabel(endFinally);
 
-        aa.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), Type.getDescriptor(Counted.getCoreType()));
-        injectLabelsToStack(metric);
-        aa.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, METHOD, SIGNATURE, false);
-        
+        record(metric, METHOD, SIGNATURE);
+
         aa.visitInsn(ATHROW);
     }
 }
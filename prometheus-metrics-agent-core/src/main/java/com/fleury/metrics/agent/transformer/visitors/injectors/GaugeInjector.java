@@ -1,9 +1,9 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
-import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
 import static com.fleury.metrics.agent.model.MetricType.Gauged;
 
 import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.transformer.visitors.MetricMembers;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
@@ -47,8 +47,9 @@ public class GaugeInjector extends AbstractInjector {
 
     private Label startFinally;
     
-    public GaugeInjector(Metric metric, AdviceAdapter aa, String className, Type[] argTypes, int access) {
-        super(aa, className, argTypes, access);
+    public GaugeInjector(Metric metric, AdviceAdapter aa, String className, Type[] argTypes, int access,
+            MetricMembers members) {
+        super(aa, className, argTypes, access, members);
         this.metric = metric;
     }
 
@@ -57,10 +58,7 @@ public class GaugeInjector extends AbstractInjector {
         startFinally = new Label();
         aa.visitLabel(startFinally);
 
-        aa.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), Type.getDescriptor(Gauged.getCoreType()));
-        injectLabelsToStack(metric);
-
-        aa.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, INC_METHOD, SIGNATURE, false);
+        record(metric, INC_METHOD, SIGNATURE);
     }
 
     @Override
@@ -81,9 +79,6 @@ public class GaugeInjector extends AbstractInjector {
     }
 
     private void onFinally(int opcode) {
-        aa.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), Type.getDescriptor(Gauged.getCoreType()));
-        injectLabelsToStack(metric);
-
-        aa.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, DEC_METHOD, SIGNATURE, false);
+        record(metric, DEC_METHOD, SIGNATURE);
     }
 }
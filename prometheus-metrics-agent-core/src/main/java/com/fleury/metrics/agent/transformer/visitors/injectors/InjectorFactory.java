@@ -2,12 +2,15 @@ package com.fleury.metrics.agent.transformer.visitors.injectors;
 
 import com.fleury.metrics.agent.model.Metric;
 import com.fleury.metrics.agent.model.MetricType;
+import com.fleury.metrics.agent.transformer.visitors.MetricMembers;
 
 import static com.fleury.metrics.agent.model.MetricType.ExceptionCounted;
+import static com.fleury.metrics.agent.transformer.visitors.InstrumentedClass.fieldDescriptors;
 import static com.fleury.metrics.agent.model.MetricType.Timed;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
 
@@ -18,6 +21,13 @@ import org.objectweb.asm.commons.AdviceAdapter;
 public class InjectorFactory {
     
     public static List<Injector> createInjectors(Map<MetricType, Metric> metrics, AdviceAdapter adviceAdapter, String className, Type[] argTypes, int access) {
+        return createInjectors(metrics, adviceAdapter, className, argTypes, access, new MetricMembers(fieldDescriptors(metrics.values())));
+    }
+
+    /**
+     * @param members the static metric fields and outlined methods of the class
+     */
+    public static List<Injector> createInjectors(Map<MetricType, Metric> metrics, AdviceAdapter adviceAdapter, String className, Type[] argTypes, int access, MetricMembers members) {
         List<Injector> injectors = new ArrayList<Injector>();
         
         //handle special case for both exception counter and timer (try catch finally)
@@ -25,32 +35,32 @@ public class InjectorFactory {
             injectors.add(new TimedExceptionCountedInjector(
                     metrics.get(Timed), 
                     metrics.get(ExceptionCounted), 
-                    adviceAdapter, className, argTypes, access));
+                    adviceAdapter, className, argTypes, access, members));
             
             metrics.remove(Timed);
             metrics.remove(ExceptionCounted);
         }
         
         for (Metric metric : metrics.values()) {
-            injectors.add(createInjector(metric, adviceAdapter, className, argTypes, access));
+            injectors.add(createInjector(metric, adviceAdapter, className, argTypes, access, members));
         }
         
         return injectors;
     }
 
-    public static Injector createInjector(Metric metric, AdviceAdapter adviceAdapter, String className, Type[] argTypes, int access) {
+    public static Injector createInjector(Metric metric, AdviceAdapter adviceAdapter, String className, Type[] argTypes, int access, MetricMembers members) {
         switch (metric.getType()) {
             case Counted:
-                return new CounterInjector(metric, adviceAdapter, className, argTypes, access);
+                return new CounterInjector(metric, adviceAdapter, className, argTypes, access, members);
 
             case Gauged:
-                return new GaugeInjector(metric, adviceAdapter, className, argTypes, access);
+                return new GaugeInjector(metric, adviceAdapter, className, argTypes, access, members);
 
             case ExceptionCounted:
-                return new ExceptionCounterInjector(metric, adviceAdapter, className, argTypes, access);
+                return new ExceptionCounterInjector(metric, adviceAdapter, className, argTypes, access, members);
 
             case Timed:
-                return new TimerInjector(metric, adviceAdapter, className, argTypes, access);
+                return new TimerInjector(metric, adviceAdapter, className, argTypes, access, members);
 
             default:
                 throw new IllegalStateException("unknown metric type: " + metric.getType());
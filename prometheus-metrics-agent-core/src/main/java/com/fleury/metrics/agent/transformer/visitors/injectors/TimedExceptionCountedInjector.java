@@ -1,10 +1,9 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
-import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
 import static com.fleury.metrics.agent.model.MetricType.Counted;
-import static com.fleury.metrics.agent.model.MetricType.Timed;
 
 import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.transformer.visitors.MetricMembers;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
@@ -45,11 +44,6 @@ public class TimedExceptionCountedInjector extends AbstractInjector {
             Type.VOID_TYPE,
             Type.getType(Counted.getCoreType()), Type.getType(String[].class));
     
-    private static final String TIMER_METHOD = "recordTime";
-    private static final String TIMER_SIGNATURE = Type.getMethodDescriptor(
-            Type.VOID_TYPE,
-            Type.getType(Timed.getCoreType()), Type.getType(String[].class), Type.LONG_TYPE);
-    
     private final Metric timerMetric;
     private final Metric exceptionMetric;
     
@@ -57,8 +51,8 @@ public class TimedExceptionCountedInjector extends AbstractInjector {
     private Label startFinally;
     
     public TimedExceptionCountedInjector(Metric timerMetric, Metric exceptionMetric, AdviceAdapter aa,
-                                         String className, Type[] argTypes, int access) {
-        super(aa, className, argTypes, access);
+                                         String className, Type[] argTypes, int access, MetricMembers members) {
+        super(aa, className, argTypes, access, members);
         this.timerMetric = timerMetric;
         this.exceptionMetric = exceptionMetric;
     }
@@ -66,9 +60,7 @@ public class TimedExceptionCountedInjector extends AbstractInjector {
     @Override
     public void injectAtMethodEnter() {
         startFinally = new Label();
-        startTimeVar = aa.newLocal(Type.LONG_TYPE);
-        aa.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
-        aa.visitVarInsn(LSTORE, startTimeVar);
+        startTimeVar = startTimer(timerMetric);
         aa.visitLabel(startFinally);
     }
 
@@ -78,11 +70,8 @@ public class TimedExceptionCountedInjector extends AbstractInjector {
         aa.visitTryCatchBlock(startFinally, endFinally, endFinally, null);
         aa.visitLabel(endFinally);
 
-        aa.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(exceptionMetric), Type.getDescriptor(Counted.getCoreType()));
-        injectLabelsToStack(exceptionMetric);
-        aa.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, EXCEPTION_COUNT_METHOD, 
-                EXCEPTION_COUNT_SIGNATURE, false);
-        
+        record(exceptionMetric, EXCEPTION_COUNT_METHOD, EXCEPTION_COUNT_SIGNATURE);
+
         onFinally(ATHROW);
         aa.visitInsn(ATHROW);
     }
@@ -95,12 +84,6 @@ public class TimedExceptionCountedInjector extends AbstractInjector {
     }
 
     private void onFinally(int opcode) {
-        aa.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(timerMetric), Type.getDescriptor(Timed.getCoreType()));
-        injectLabelsToStack(timerMetric);
-
-        aa.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
-        aa.visitVarInsn(LLOAD, startTimeVar);
-        aa.visitInsn(LSUB);
-        aa.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, TIMER_METHOD, TIMER_SIGNATURE, false);
+        recordTimer(timerMetric, startTimeVar);
     }
 }
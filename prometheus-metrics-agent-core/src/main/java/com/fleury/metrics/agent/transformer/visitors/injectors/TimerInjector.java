@@ -1,9 +1,7 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
-import static com.fleury.metrics.agent.config.Configuration.staticFinalFieldName;
-import static com.fleury.metrics.agent.model.MetricType.Timed;
-
 import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.transformer.visitors.MetricMembers;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
@@ -32,31 +30,41 @@ import org.objectweb.asm.commons.AdviceAdapter;
  * }
  * </pre>
  *
+ * A sampled timer records the time of one in sampleRate calls and counts every call
+ *
+ * <pre>
+ * public void someMethod() {
+ *     long startTimer = PrometheusMetricSystem.startSampledTime(sampleRate);
+ *     try {
+ *
+ *         //original method code
+ *
+ *     } finally {
+ *         PrometheusMetricSystem.recordCount(CALLS, labels);
+ *         PrometheusMetricSystem.recordSampledTime(TIMER, labels, startTimer);
+ *     }
+ * }
+ * </pre>
+ *
  * @author Will Fleury
  */
 public class TimerInjector extends AbstractInjector {
 
-    private static final String METHOD = "recordTime";
-    private static final String SIGNATURE = Type.getMethodDescriptor(
-            Type.VOID_TYPE,
-            Type.getType(Timed.getCoreType()), Type.getType(String[].class), Type.LONG_TYPE);
-
     private final Metric metric;
     
     private int startTimeVar;
     private Label startFinally;
 
-    public TimerInjector(Metric metric, AdviceAdapter aa, String className, Type[] argTypes, int access) {
-        super(aa, className, argTypes, access);
+    public TimerInjector(Metric metric, AdviceAdapter aa, String className, Type[] argTypes, int access,
+            MetricMembers members) {
+        super(aa, className, argTypes, access, members);
         this.metric = metric;
     }
 
     @Override
     public void injectAtMethodEnter() {
         startFinally = new Label();
-        startTimeVar = aa.newLocal(Type.LONG_TYPE);
-        aa.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
-        aa.visitVarInsn(LSTORE, startTimeVar);
+        startTimeVar = startTimer(metric);
         aa.visitLabel(startFinally);
     }
 
@@ -78,12 +86,6 @@ public class TimerInjector extends AbstractInjector {
     }
 
     private void onFinally(int opcode) {
-        aa.visitFieldInsn(GETSTATIC, className, staticFinalFieldName(metric), Type.getDescriptor(Timed.getCoreType()));
-        injectLabelsToStack(metric);
-
-        aa.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
-        aa.visitVarInsn(LLOAD, startTimeVar);
-        aa.visitInsn(LSUB);
-        aa.visitMethodInsn(INVOKESTATIC, METRIC_REPORTER_CLASSNAME, METHOD, SIGNATURE, false);
+        recordTimer(metric, startTimeVar);
     }
 }
@@ -0,0 +1,124 @@
+package com.fleury.metrics.agent.benchmark;
+
+import static com.fleury.metrics.agent.config.Configuration.emptyConfiguration;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import java.io.ByteArrayInputStream;
+
+/**
+ * Measures the {@link Configuration} lookups made for every loaded class with a large number of configured metrics
+ * and method selectors. Most loaded classes have no configured metrics so lookups are mostly misses. This is not a unit test and is not run
+ * as part of the build.
+ *
+ * Run from the project root with
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=/tmp/cp.txt
+ * cd prometheus-metrics-agent-core
+ * java -cp target/classes:target/test-classes:$(cat /tmp/cp.txt) com.fleury.metrics.agent.benchmark.ConfigurationBenchmark
+ * </pre>
+ *
+ * @author Will Fleury
+ */
+public class ConfigurationBenchmark {
+
+    private static final int CONFIGURED_CLASSES = 1000;
+    private static final int CONFIGURED_METHODS = 10;
+    private static final int CONFIGURED_SELECTORS = 5000;
+
+    // one in ten looked up classes has metrics
+    private static final int LOOKED_UP_CLASSES = CONFIGURED_CLASSES * 10;
+
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int MEASURED_ROUNDS = 1000;
+
+    public static void main(String[] args) {
+        Configuration config = emptyConfiguration();
+        for (int i = 0; i < CONFIGURED_CLASSES; i++) {
+            for (int j = 0; j < CONFIGURED_METHODS; j++) {
+                config.addMetric(new Configuration.Key(className(i * 10), "method" + j, "()V"),
+                        Metric.builder().type(MetricType.Counted).name("counted_" + i + "_" + j).createMetric());
+            }
+        }
+
+        String[] classNames = new String[LOOKED_UP_CLASSES];
+        for (int i = 0; i < classNames.length; i++) {
+            classNames[i] = className(i);
+        }
+
+        run(config, classNames, WARMUP_ROUNDS);
+
+        long start = System.nanoTime();
+        int found = run(config, classNames, MEASURED_ROUNDS);
+        long elapsed = System.nanoTime() - start;
+
+        long lookups = (long) MEASURED_ROUNDS * classNames.length;
+        System.out.printf("%d keys: %d class lookups (%d metrics found) in %d ms: %.0f lookups/s%n",
+                CONFIGURED_CLASSES * CONFIGURED_METHODS, lookups, found, elapsed / 1000000, lookups / (elapsed / 1e9));
+
+        Configuration selectors = selectorConfiguration();
+
+        runSelectors(selectors, classNames, WARMUP_ROUNDS);
+
+        start = System.nanoTime();
+        found = runSelectors(selectors, classNames, MEASURED_ROUNDS);
+        elapsed = System.nanoTime() - start;
+
+        System.out.printf("%d selectors: %d class lookups (%d classes selected) in %d ms: %.0f lookups/s%n",
+                CONFIGURED_SELECTORS, lookups, found, elapsed / 1000000, lookups / (elapsed / 1e9));
+    }
+
+    /**
+     * Selectors with a class name glob in every package, half of them with a method name glob.
+     */
+    private static Configuration selectorConfiguration() {
+        StringBuilder yaml = new StringBuilder("metrics:\n");
+        for (int i = 0; i < CONFIGURED_SELECTORS; i++) {
+            yaml.append("  public com/fleury/benchmark/package").append(i % 100).append("/Class").append(i)
+                    .append("*.").append(i % 2 == 0 ? "find*" : "method" + i).append(":\n")
+                    .append("    - type: Counted\n")
+                    .append("      name: selected_").append(i).append("\n");
+        }
+
+        return Configuration.createConfig(new ByteArrayInputStream(yaml.toString().getBytes()));
+    }
+
+    /**
+     * Mirrors the transformer which checks whether a selector matches a class and then finds the selectors of the
+     * class to match its methods against.
+     */
+    private static int runSelectors(Configuration config, String[] classNames, int rounds) {
+        int found = 0;
+        for (int i = 0; i < rounds; i++) {
+            for (String className : classNames) {
+                if (config.isSelected(className) && config.findSelectors(className) != null) {
+                    found++;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Mirrors the transformer which checks whether a class has metrics and then finds the metrics of the class.
+     */
+    private static int run(Configuration config, String[] classNames, int rounds) {
+        int found = 0;
+        for (int i = 0; i < rounds; i++) {
+            for (String className : classNames) {
+                if (config.isMetric(className)) {
+                    found += config.findMetrics(className).size();
+                }
+            }
+        }
+
+        return found;
+    }
+
+    private static String className(int i) {
+        return "com/fleury/benchmark/package" + (i % 100) + "/Class" + i;
+    }
+}
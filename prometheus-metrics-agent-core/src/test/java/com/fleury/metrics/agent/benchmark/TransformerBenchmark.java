@@ -0,0 +1,101 @@
+package com.fleury.metrics.agent.benchmark;
+
+import static com.fleury.metrics.agent.config.Configuration.emptyConfiguration;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import com.fleury.metrics.agent.transformer.AnnotatedMetricClassTransformer;
+import com.fleury.metrics.agent.transformer.visitors.injectors.CounterInjectorTest;
+import com.fleury.metrics.agent.transformer.visitors.injectors.GaugeInjectorTest;
+import com.fleury.metrics.agent.transformer.visitors.injectors.LabelsTest;
+import com.fleury.metrics.agent.transformer.visitors.injectors.MixedInjectorTest;
+import com.fleury.metrics.agent.transformer.visitors.injectors.TimerInjectorTest;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Measures the number of classes per second pushed through {@link AnnotatedMetricClassTransformer} for classes which
+ * actually get rewritten (annotated and configured). This is not a unit test and is not run as part of the build.
+ *
+ * Run from the project root with
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=/tmp/cp.txt
+ * cd prometheus-metrics-agent-core
+ * java -cp target/classes:target/test-classes:$(cat /tmp/cp.txt) com.fleury.metrics.agent.benchmark.TransformerBenchmark
+ * </pre>
+ *
+ * @author Will Fleury
+ */
+public class TransformerBenchmark {
+
+    private static final Class<?>[] ANNOTATED_CLASSES = {
+            CounterInjectorTest.CountedMethodWithParametersAndReturnClass.class,
+            GaugeInjectorTest.GaugedMethodClass.class,
+            LabelsTest.CountedConstructorWithDynamicNestedLabelValueClass.class,
+            MixedInjectorTest.MixedMetricMethodClassWithException.class,
+            TimerInjectorTest.TimedMethodClass.class
+    };
+
+    private static final Class<?> CONFIGURED_CLASS = ClassReader.class;
+
+    private static final int WARMUP_ROUNDS = 5000;
+    private static final int MEASURED_ROUNDS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        List<byte[]> annotated = new ArrayList<byte[]>();
+        for (Class<?> clazz : ANNOTATED_CLASSES) {
+            annotated.add(bytes(clazz));
+        }
+        byte[] configured = bytes(CONFIGURED_CLASS);
+
+        run(annotated, configured, WARMUP_ROUNDS);
+
+        long start = System.nanoTime();
+        int classes = run(annotated, configured, MEASURED_ROUNDS);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("transformed %d classes in %d ms: %.0f classes/s%n",
+                classes, elapsed / 1000000, classes / (elapsed / 1e9));
+    }
+
+    private static int run(List<byte[]> annotated, byte[] configured, int rounds) throws Exception {
+        int classes = 0;
+        for (int i = 0; i < rounds; i++) {
+            for (int j = 0; j < annotated.size(); j++) {
+                transform(emptyConfiguration(), ANNOTATED_CLASSES[j], annotated.get(j));
+                classes++;
+            }
+
+            transform(configuredClassConfig(), CONFIGURED_CLASS, configured);
+            classes++;
+        }
+
+        return classes;
+    }
+
+    private static void transform(Configuration config, Class<?> clazz, byte[] bytes) throws Exception {
+        new AnnotatedMetricClassTransformer(config, true)
+                .transform(clazz.getClassLoader(), internalName(clazz), null, null, bytes);
+    }
+
+    private static Configuration configuredClassConfig() {
+        Configuration config = emptyConfiguration();
+        config.addMetric(
+                new Configuration.Key(internalName(CONFIGURED_CLASS), "readUTF8", "(I[C)Ljava/lang/String;"),
+                Metric.builder().type(MetricType.Timed).name("read_utf8").createMetric());
+
+        return config;
+    }
+
+    private static String internalName(Class<?> clazz) {
+        return clazz.getName().replace('.', '/');
+    }
+
+    private static byte[] bytes(Class<?> clazz) throws Exception {
+        return IOUtils.toByteArray(clazz.getClassLoader().getResourceAsStream(internalName(clazz) + ".class"));
+    }
+}
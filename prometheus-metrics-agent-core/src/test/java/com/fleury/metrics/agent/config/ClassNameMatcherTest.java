@@ -0,0 +1,62 @@
+package com.fleury.metrics.agent.config;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import org.junit.Test;
+
+/**
+ * @author Will Fleury
+ */
+public class ClassNameMatcherTest {
+
+    @Test
+    public void shouldMatchPrefixes() {
+        ClassNameMatcher matcher = new ClassNameMatcher(asList("com/fleury/sample/", "com/fleury/Engine", "org/test"));
+
+        assertTrue(matcher.matches("com/fleury/sample/Engine"));
+        assertTrue(matcher.matches("com/fleury/Engine"));
+        assertTrue(matcher.matches("com/fleury/Engine$Inner"));
+        assertTrue(matcher.matches("org/testing/Sample"));
+
+        assertFalse(matcher.matches("com/fleury/Sample"));
+        assertFalse(matcher.matches("com/fleury/samples/Engine"));
+        assertFalse(matcher.matches("org/tes"));
+    }
+
+    @Test
+    public void shouldMatchSingleStarWithinName() {
+        ClassNameMatcher matcher = new ClassNameMatcher(asList("com/*/internal/", "org/*Test"));
+
+        assertTrue(matcher.matches("com/fleury/internal/Sample"));
+        assertTrue(matcher.matches("com//internal/Sample"));
+        assertTrue(matcher.matches("org/SampleTest"));
+        assertTrue(matcher.matches("org/Test"));
+
+        assertFalse(matcher.matches("com/fleury/sample/internal/Sample"));
+        assertFalse(matcher.matches("org/sample/SampleTest"));
+    }
+
+    @Test
+    public void shouldMatchDoubleStarAcrossPackages() {
+        ClassNameMatcher matcher = new ClassNameMatcher(asList("com/**/internal/", "**/Test"));
+
+        assertTrue(matcher.matches("com/fleury/internal/Sample"));
+        assertTrue(matcher.matches("com/fleury/sample/internal/Sample"));
+        assertTrue(matcher.matches("org/fleury/TestSample"));
+        assertTrue(matcher.matches("/Test"));
+
+        assertFalse(matcher.matches("com/fleury/Sample"));
+        assertFalse(matcher.matches("org/fleury/SampleTest"));
+    }
+
+    @Test
+    public void shouldMatchNothingWhenEmpty() {
+        ClassNameMatcher matcher = new ClassNameMatcher(Collections.<String>emptyList());
+
+        assertTrue(matcher.isEmpty());
+        assertFalse(matcher.matches("com/fleury/Sample"));
+    }
+}
@@ -4,11 +4,15 @@ import static com.fleury.metrics.agent.model.MetricType.Counted;
 import static com.fleury.metrics.agent.model.MetricType.Timed;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.fleury.metrics.agent.model.Metric;
 import com.fleury.metrics.agent.model.MetricType;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import org.junit.Test;
 
@@ -44,6 +48,27 @@ public class ConfigurationTest {
         assertEquals(labels, metric.getLabels());
     }
 
+    @Test
+    public void testFindAddedMetrics() {
+        Configuration config = Configuration.emptyConfiguration();
+        assertFalse(config.isMetric("com/fleury/sample/Engine"));
+
+        Metric counted = Metric.builder().type(Counted).name("count").createMetric();
+        Metric timed = Metric.builder().type(Timed).name("timer").createMetric();
+        config.addMetric(new Configuration.Key("com/fleury/sample/Engine", "sampleMethod", "(I)J"), counted);
+        config.addMetric(new Configuration.Key("com/fleury/sample/Engine", "sampleMethod", "(I)J"), timed);
+        config.addMetric(new Configuration.Key("com/fleury/sample/Engine", "sampleMethod", "(J)J"), counted);
+
+        assertTrue(config.isMetric("com/fleury/sample/Engine"));
+        assertFalse(config.isMetric("com/fleury/sample/Other"));
+
+        assertEquals(Arrays.asList(counted, timed), config.findMetrics("com/fleury/sample/Engine", "sampleMethod", "(I)J"));
+        assertEquals(Arrays.asList(counted), config.findMetrics("com/fleury/sample/Engine", "sampleMethod", "(J)J"));
+        assertTrue(config.findMetrics("com/fleury/sample/Engine", "otherMethod", "(I)J").isEmpty());
+        assertEquals(3, config.findMetrics("com/fleury/sample/Engine").size());
+        assertTrue(config.findMetrics("com/fleury/sample/Other").isEmpty());
+    }
+
     @Test
     public void testParseMetricSystemConfig() {
         InputStream is = this.getClass().getResourceAsStream("/config/sample.yaml");
@@ -52,5 +77,27 @@ public class ConfigurationTest {
         assertFalse(config.getSystem().isEmpty());
     }
 
+    @Test
+    public void testChangedClasses() {
+        InputStream is = this.getClass().getResourceAsStream("/config/sample.yaml");
+        Configuration config = Configuration.createConfig(is);
+
+        Configuration updated = Configuration.createConfig(new ByteArrayInputStream((
+                "metrics:\n" +
+                "  com/fleury/sample/Engine.sampleMethod(I)J:\n" +
+                "    - type: Counted\n" +
+                "      name: count\n" +
+                "      doc: trying to count\n" +
+                "      labels: ['name1:value1', 'name2:value2']\n" +
+                "  com/test/Added.sampleMethod()V:\n" +
+                "    - type: Counted\n" +
+                "      name: added\n").getBytes()));
+
+        assertEquals(new HashSet<String>(Arrays.asList("com/fleury/sample/Engine", "com/test/Special", "com/test/Added")),
+                config.getChangedClasses(updated));
+        assertEquals(Collections.<String>emptySet(), config.getChangedClasses(Configuration.createConfig(
+                this.getClass().getResourceAsStream("/config/sample.yaml"))));
+    }
+
 
 }
@@ -0,0 +1,113 @@
+package com.fleury.metrics.agent.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * @author Will Fleury
+ */
+public class MethodSelectorTest {
+
+    @Test
+    public void shouldParseSelectors() {
+        assertFalse(MethodSelector.isSelector("com/acme/dao/UserDao.find(J)Ljava/lang/Object;"));
+        assertTrue(MethodSelector.isSelector("com/acme/dao/*.find*(*)"));
+        assertTrue(MethodSelector.isSelector("public com/acme/dao/UserDao.find(J)V"));
+        assertTrue(MethodSelector.isSelector("com/acme/dao/UserDao.find"));
+
+        MethodSelector selector = MethodSelector.parse("public !static com.acme.dao.*.find*(*)");
+        assertEquals("com/acme/dao/*", selector.getClassName());
+        assertEquals("find*", selector.getMethod());
+        assertEquals("(*)*", selector.getDescriptor());
+
+        assertEquals("*", MethodSelector.parse("com/acme/dao/UserDao.find").getDescriptor());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownModifier() {
+        MethodSelector.parse("pubic com/acme/dao/*.find*(*)");
+    }
+
+    @Test
+    public void shouldMatchMethods() {
+        MethodSelector selector = MethodSelector.parse("public !static com/acme/dao/*.find*(J*)");
+
+        assertTrue(selector.matches(ACC_PUBLIC, "findById", "(J)Ljava/lang/Object;"));
+        assertTrue(selector.matches(ACC_PUBLIC, "find", "(JLjava/lang/String;)V"));
+        assertFalse(selector.matches(ACC_PUBLIC, "save", "(J)V"));
+        assertFalse(selector.matches(ACC_PUBLIC, "findByName", "(Ljava/lang/String;)V"));
+        assertFalse(selector.matches(ACC_PRIVATE, "findById", "(J)V"));
+        assertFalse(selector.matches(ACC_PUBLIC | ACC_STATIC, "findById", "(J)V"));
+        assertFalse(selector.matches(ACC_PUBLIC | ACC_ABSTRACT, "findById", "(J)V"));
+
+        assertFalse(MethodSelector.parse("com/acme/dao/*.*").matches(ACC_PUBLIC, "<init>", "()V"));
+        assertTrue(MethodSelector.parse("com/acme/dao/*.<init>").matches(ACC_PUBLIC, "<init>", "()V"));
+    }
+
+    @Test
+    public void shouldSelectClassesAndFindMetrics() {
+        Metric find = metric("find");
+        Metric all = metric("all");
+        Metric exact = metric("exact");
+
+        Map<MethodSelector, List<Metric>> metrics = new LinkedHashMap<MethodSelector, List<Metric>>();
+        metrics.put(MethodSelector.parse("com/acme/dao/*.find*(*)"), Arrays.asList(find));
+        metrics.put(MethodSelector.parse("com/acme/**.*"), Arrays.asList(all));
+        metrics.put(MethodSelector.parse("com/acme/dao/UserDao.save"), Arrays.asList(exact));
+
+        MethodSelectors selectors = new MethodSelectors(metrics);
+
+        assertTrue(selectors.matchesClass("com/acme/dao/UserDao"));
+        assertTrue(selectors.matchesClass("com/acme/service/internal/UserService"));
+        assertFalse(selectors.matchesClass("com/other/dao/UserDao"));
+        assertNull(selectors.select("com/other/dao/UserDao"));
+
+        MethodSelectors.ClassSelectors userDao = selectors.select("com/acme/dao/UserDao");
+        assertEquals(Arrays.asList(find, all), userDao.findMetrics(ACC_PUBLIC, "findById", "(J)V"));
+        assertEquals(Arrays.asList(exact, all), userDao.findMetrics(ACC_PUBLIC, "save", "(J)V"));
+
+        // a single * does not match package separators
+        MethodSelectors.ClassSelectors nested = selectors.select("com/acme/dao/jdbc/UserDao");
+        assertEquals(Arrays.asList(all), nested.findMetrics(ACC_PUBLIC, "findById", "(J)V"));
+
+        assertEquals(Collections.<Metric>emptyList(),
+                new MethodSelectors(metrics).select("com/acme/Service").findMetrics(ACC_PUBLIC, "<init>", "()V"));
+    }
+
+    @Test
+    public void shouldResolveSelectedMethodsFromConfiguration() {
+        Configuration config = Configuration.createConfig(new ByteArrayInputStream((
+                "imports:\n" +
+                "  - com/acme/dao/UserDao\n" +
+                "metrics:\n" +
+                "  public UserDao.find*:\n" +
+                "    - type: Timed\n" +
+                "      name: dao_find\n").getBytes()));
+
+        assertFalse(config.isMetric("com/acme/dao/UserDao"));
+        assertTrue(config.isSelected("com/acme/dao/UserDao"));
+
+        MethodSelectors.ClassSelectors selectors = config.findSelectors("com/acme/dao/UserDao");
+        assertEquals("dao_find", selectors.findMetrics(ACC_PUBLIC, "findAll", "()Ljava/util/List;").get(0).getName());
+    }
+
+    private static Metric metric(String name) {
+        return Metric.builder().type(MetricType.Counted).name(name).createMetric();
+    }
+}
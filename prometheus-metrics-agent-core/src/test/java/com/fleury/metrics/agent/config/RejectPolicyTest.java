@@ -0,0 +1,75 @@
+package com.fleury.metrics.agent.config;
+
+import static com.fleury.metrics.agent.config.RejectPolicy.REJECTED_ANONYMOUS;
+import static com.fleury.metrics.agent.config.RejectPolicy.REJECTED_BOOTSTRAP;
+import static com.fleury.metrics.agent.config.RejectPolicy.REJECTED_GENERATED;
+import static com.fleury.metrics.agent.config.RejectPolicy.REJECTED_NO_CODE_SOURCE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * @author Will Fleury
+ */
+public class RejectPolicyTest {
+
+    private final ClassLoader loader = getClass().getClassLoader();
+
+    @Test
+    public void shouldRejectGeneratedClassesByDefault() {
+        RejectPolicy policy = RejectPolicy.defaultPolicy();
+
+        assertEquals(REJECTED_GENERATED, policy.reject("com/sun/proxy/$Proxy12", loader, null));
+        assertEquals(REJECTED_GENERATED, policy.reject("com/fleury/Service$$Lambda$14/1234", loader, null));
+        assertEquals(REJECTED_GENERATED, policy.reject("com/fleury/Service$$EnhancerBySpringCGLIB$$1a2b", loader, null));
+        assertEquals(REJECTED_GENERATED, policy.reject("com/fleury/Service$ByteBuddy$abc", loader, null));
+        assertEquals(REJECTED_GENERATED, policy.reject("org/apache/jsp/index_jsp", loader, null));
+        assertEquals(REJECTED_GENERATED, policy.reject("jdk/internal/misc/Unsafe", loader, null));
+        assertEquals(REJECTED_ANONYMOUS, policy.reject(null, loader, null));
+
+        assertNull(policy.reject("com/fleury/Service", loader, null));
+        assertNull(policy.reject("com/fleury/Service$Inner", loader, null));
+    }
+
+    @Test
+    public void shouldRejectByLoaderAndProtectionDomain() throws Exception {
+        RejectPolicy policy = RejectPolicy.defaultPolicy();
+
+        assertEquals(REJECTED_BOOTSTRAP, policy.reject("com/fleury/Service", null, null));
+        assertNull(policy.reject("com/fleury/Service", loader, domain(null)));
+        assertNull(policy.reject("com/fleury/Service", loader, domain(new URL("file:/app/service.jar"))));
+
+        policy = new RejectPolicy(null, false, true);
+
+        assertNull(policy.reject("com/fleury/Service", null, null));
+        assertEquals(REJECTED_NO_CODE_SOURCE, policy.reject("com/fleury/Service", loader, domain(null)));
+        assertNull(policy.reject("com/fleury/Service", loader, domain(new URL("file:/app/service.jar"))));
+    }
+
+    @Test
+    public void shouldParseConfiguredPolicy() {
+        Configuration config = Configuration.createConfig(new ByteArrayInputStream((
+                "reject:\n" +
+                "  classes: ['com/fleury/generated/']\n" +
+                "  bootstrapClasses: false\n" +
+                "  withoutCodeSource: true\n").getBytes()));
+
+        RejectPolicy policy = config.getRejectPolicy();
+        assertEquals(Arrays.asList("com/fleury/generated/"), policy.getClasses());
+
+        assertEquals(REJECTED_GENERATED, policy.reject("com/fleury/generated/Service", loader, null));
+        assertNull(policy.reject("com/sun/proxy/$Proxy12", null, null));
+        assertEquals(REJECTED_NO_CODE_SOURCE, policy.reject("com/fleury/Service", loader, domain(null)));
+    }
+
+    private static ProtectionDomain domain(URL location) {
+        return new ProtectionDomain(new CodeSource(location, (Certificate[]) null), null);
+    }
+}
@@ -0,0 +1,61 @@
+package com.fleury.metrics.agent.reporter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.fleury.metrics.agent.model.Buckets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * @author Will Fleury
+ */
+public class TimerHistogramTest {
+
+    @Test
+    public void shouldFindSameBucketAsLinearScan() {
+        List<Double> exponential = Buckets.exponential(0.001, 1.5, 40);
+
+        double[] buckets = new double[exponential.size()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = exponential.get(i);
+        }
+
+        TimerHistogram histogram = TimerHistogram.build().name("exponential").help("doc").buckets(buckets).create();
+        TimerHistogram.Child child = histogram.labels();
+        double[] bounds = histogram.getUpperBounds();
+
+        for (double value : new double[] {0, 0.001, 0.0011, 0.5, 1.5, 2, 1e6, 1e9, Double.MAX_VALUE}) {
+            int expected = 0;
+            while (value > bounds[expected]) {
+                expected++;
+            }
+
+            assertEquals("bucket of " + value, expected, child.bucket(value));
+        }
+    }
+
+    @Test
+    public void shouldConvertDefaultBucketsToUnit() {
+        TimerHistogram histogram = TimerHistogram.build().name("millis").help("doc")
+                .unit(TimeUnit.MILLISECONDS).create();
+
+        double[] bounds = histogram.getUpperBounds();
+        assertEquals(TimerHistogram.DEFAULT_BUCKETS.length + 1, bounds.length);
+        assertEquals(5, bounds[0], 1e-9);
+        assertEquals(10000, bounds[bounds.length - 2], 1e-9);
+        assertEquals(Double.POSITIVE_INFINITY, bounds[bounds.length - 1], 0);
+    }
+
+    @Test
+    public void shouldRecordNanosecondsInUnit() {
+        TimerHistogram histogram = TimerHistogram.build().name("seconds").help("doc").buckets(0.1, 1).create();
+
+        histogram.observeNanos(TimeUnit.MILLISECONDS.toNanos(500));
+
+        TimerHistogram.Child child = histogram.labels();
+        assertArrayEquals(new double[] {0, 1, 1}, child.getCumulativeCounts(), 0);
+        assertEquals(0.5, child.getSum(), 1e-9);
+    }
+}
@@ -0,0 +1,133 @@
+package com.fleury.metrics.agent.transformer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.transformer.ClassHierarchyCache.TypeInfo;
+import com.fleury.metrics.agent.transformer.ClassHierarchyCache.Types;
+import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * @author Will Fleury
+ */
+public class ClassHierarchyCacheTest {
+
+    private static final String CHILD = "com/fleury/metrics/agent/transformer/ClassHierarchyCacheTest$Child";
+
+    @Test
+    public void shouldReadTypeFromClassFile() {
+        // a fresh loader has not loaded the class so it must be read from the class file
+        ClassLoader loader = new URLClassLoader(new URL[] {classesLocation()}, null);
+
+        assertChild(ClassHierarchyCache.INSTANCE.forLoader(loader).get(CHILD));
+    }
+
+    @Test
+    public void shouldReadTypeFromLoadedClass() {
+        assertTrue(Serializable.class.isAssignableFrom(Child.class));
+
+        assertChild(ClassHierarchyCache.INSTANCE.forLoader(getClass().getClassLoader()).get(CHILD));
+    }
+
+    @Test
+    public void shouldCacheTypesPerLoader() {
+        Types types = ClassHierarchyCache.INSTANCE.forLoader(getClass().getClassLoader());
+
+        assertSame(types, ClassHierarchyCache.INSTANCE.forLoader(getClass().getClassLoader()));
+        assertSame(types.get(CHILD), types.get(CHILD));
+        assertNull(types.get("does/not/Exist"));
+    }
+
+    @Test
+    public void shouldReadBootstrapTypes() {
+        TypeInfo type = ClassHierarchyCache.INSTANCE.forLoader(null).get("java/lang/Runnable");
+
+        assertTrue(type.isInterface());
+        assertEquals("java/lang/Object", type.getSuperName());
+    }
+
+    @Test
+    public void shouldFindInterfacesOfSuperTypes() {
+        Types types = ClassHierarchyCache.INSTANCE.forLoader(getClass().getClassLoader());
+        TypeInfo type = types.get("com/fleury/metrics/agent/transformer/ClassHierarchyCacheTest$RunnableChild");
+
+        assertEquals(new HashSet<String>(Arrays.asList("java/lang/Runnable", "java/io/Serializable")),
+                new HashSet<String>(Arrays.asList(types.getAllInterfaces(type))));
+        assertSame(types.getAllInterfaces(type), types.getAllInterfaces(type));
+    }
+
+    @Test
+    public void shouldRecordTypesBeforeTheyAreLoaded() {
+        Types types = ClassHierarchyCache.INSTANCE.forLoader(new URLClassLoader(new URL[0], null));
+
+        TypeInfo type = types.put("com/acme/Recorded", "java/lang/Object", new String[] {"java/lang/Runnable"}, 0);
+
+        assertSame(type, types.get("com/acme/Recorded"));
+        assertArrayEquals(new String[] {"java/lang/Runnable"}, types.getAllInterfaces(type));
+    }
+
+    @Test
+    public void shouldNotDecodeClassesWhenOnlyClassesAreConfigured() throws Exception {
+        ClassLoader loader = new URLClassLoader(new URL[] {classesLocation()}, null);
+
+        transform(loader, "com/fleury/metrics/agent/transformer/ClassHierarchyCacheTest$Parent.hashCode()I", CHILD);
+
+        assertFalse(ClassHierarchyCache.INSTANCE.forLoader(loader).contains(CHILD));
+    }
+
+    @Test
+    public void shouldDecodeClassesWhenInterfacesAreConfigured() throws Exception {
+        ClassLoader loader = new URLClassLoader(new URL[] {classesLocation()}, null);
+
+        transform(loader, "java/lang/Runnable.run()V", CHILD);
+
+        assertTrue(ClassHierarchyCache.INSTANCE.forLoader(loader).contains(CHILD));
+    }
+
+    private void transform(ClassLoader loader, String key, String className) throws Exception {
+        Configuration config = Configuration.createConfig(new ByteArrayInputStream((
+                "metrics:\n" +
+                "  " + key + ":\n" +
+                "    - type: Counted\n" +
+                "      name: configured\n").getBytes()));
+
+        byte[] bytes = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(className + ".class"));
+        new AnnotatedMetricClassTransformer(config, true).transform(loader, className, null, null, bytes);
+    }
+
+    private void assertChild(TypeInfo type) {
+        assertEquals(CHILD, type.getName());
+        assertEquals("com/fleury/metrics/agent/transformer/ClassHierarchyCacheTest$Parent", type.getSuperName());
+        assertArrayEquals(new String[] {"java/io/Serializable"}, type.getInterfaces());
+        assertFalse(type.isInterface());
+    }
+
+    private URL classesLocation() {
+        return getClass().getProtectionDomain().getCodeSource().getLocation();
+    }
+
+    public static class Parent {
+    }
+
+    public static class Child extends Parent implements Serializable {
+    }
+
+    public static class RunnableChild extends Child implements Runnable {
+
+        @Override
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.fleury.metrics.agent.transformer;
+
+import static com.fleury.metrics.agent.config.Configuration.emptyConfiguration;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.annotation.Timed;
+import com.fleury.metrics.agent.transformer.MethodSizes.MethodGrowth;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+/**
+ * @author Will Fleury
+ */
+public class MethodSizesTest {
+
+    private static final String CLASS_NAME = Type.getInternalName(TimedClass.class);
+
+    @Test
+    public void shouldReportOnlyChangedMethods() throws Exception {
+        byte[] original = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(CLASS_NAME + ".class"));
+        byte[] transformed = new AnnotatedMetricClassTransformer(emptyConfiguration(), true)
+                .transform(getClass().getClassLoader(), CLASS_NAME, null, null, original);
+
+        List<MethodGrowth> changed = MethodSizes.compare(original, transformed);
+
+        assertEquals(1, changed.size());
+
+        MethodGrowth growth = changed.get(0);
+        assertEquals("timed()V", growth.getMethod());
+        assertTrue(growth.getLength() > growth.getOriginalLength());
+        assertEquals(1, growth.getAddedHandlers());
+        assertTrue(growth.getAddedLocals() > 0);
+    }
+
+    @Test
+    public void shouldOnlyReportLimitsCrossed() {
+        assertEquals(0, growth(10, 20).getLimitsCrossed().size());
+        assertEquals(0, growth(40, 300).getLimitsCrossed().size());
+        assertEquals(1, growth(35, 36).getLimitsCrossed().size());
+        assertEquals(2, growth(30, 330).getLimitsCrossed().size());
+        assertEquals(1, growth(8000, 8001).getLimitsCrossed().size());
+    }
+
+    private static MethodGrowth growth(int originalLength, int length) {
+        return new MethodGrowth("method()V", new MethodSizes.CodeSize(originalLength, 0, 1),
+                new MethodSizes.CodeSize(length, 0, 1));
+    }
+
+    public static class TimedClass {
+
+        @Timed(name = "method_sizes_timed")
+        public void timed() {
+        }
+
+        public void untouched() {
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.fleury.metrics.agent.transformer;
+
+import static com.fleury.metrics.agent.config.Configuration.emptyConfiguration;
+import static org.junit.Assert.assertEquals;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import com.fleury.metrics.agent.reporter.TestMetricReader;
+import com.fleury.metrics.agent.transformer.visitors.injectors.BaseMetricTest.ByteCodeClassLoader;
+import io.prometheus.client.CollectorRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * The JVM only allows method bodies to change when retransforming so the retransformed class must keep the members
+ * added when it was loaded and metrics added at runtime cannot use static fields.
+ *
+ * @author Will Fleury
+ */
+public class RetransformationTest {
+
+    private static final String CLASS_NAME = Type.getInternalName(RetransformedClass.class);
+
+    private TestMetricReader metrics;
+    private byte[] original;
+
+    @Before
+    public void setup() throws Exception {
+        metrics = new TestMetricReader(CollectorRegistry.defaultRegistry);
+        metrics.reset();
+
+        original = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(CLASS_NAME + ".class"));
+    }
+
+    @Test
+    public void shouldKeepMembersAndLookUpMetricsAddedAtRuntime() throws Exception {
+        AnnotatedMetricClassTransformer transformer = new AnnotatedMetricClassTransformer(
+                config(metric("first", MetricType.Counted, "retransform_loaded_counted")), true);
+
+        byte[] loaded = transformer.transform(getClass().getClassLoader(), CLASS_NAME, null, null, original);
+        Class<?> loadedClass = define(loaded);
+
+        invoke(loadedClass, "first");
+        assertEquals(1, metrics.getCount("retransform_loaded_counted"));
+
+        transformer.setConfiguration(config(
+                metric("first", MetricType.Counted, "retransform_loaded_counted"),
+                metric("second", MetricType.Counted, "retransform_added_counted")));
+
+        byte[] retransformed = transformer.transform(getClass().getClassLoader(), CLASS_NAME, loadedClass, null,
+                original);
+
+        assertEquals(members(loaded), members(retransformed));
+
+        // the static fields of a class defined from the retransformed bytes are never initialized, unlike those of a
+        // retransformed class, so only the metric looked up by name can be recorded
+        invoke(define(retransformed), "second");
+        assertEquals(1, metrics.getCount("retransform_added_counted"));
+    }
+
+    @Test
+    public void shouldKeepMembersWhenMetricsAreRemoved() throws Exception {
+        AnnotatedMetricClassTransformer transformer = new AnnotatedMetricClassTransformer(
+                config(metric("first", MetricType.Counted, "retransform_removed_counted")), true);
+
+        byte[] loaded = transformer.transform(getClass().getClassLoader(), CLASS_NAME, null, null, original);
+        Class<?> loadedClass = define(loaded);
+
+        transformer.setConfiguration(emptyConfiguration());
+
+        byte[] retransformed = transformer.transform(getClass().getClassLoader(), CLASS_NAME, loadedClass, null,
+                original);
+
+        assertEquals(members(loaded), members(retransformed));
+
+        invoke(define(retransformed), "first");
+        assertEquals(0, metrics.getCount("retransform_removed_counted"));
+    }
+
+    @Test
+    public void shouldKeepMembersOfClassesNotRecordedWhenLoaded() throws Exception {
+        byte[] loaded = new AnnotatedMetricClassTransformer(
+                config(metric("first", MetricType.Timed, "retransform_unrecorded_timed")), true)
+                .transform(getClass().getClassLoader(), CLASS_NAME, null, null, original);
+
+        AnnotatedMetricClassTransformer transformer = new AnnotatedMetricClassTransformer(emptyConfiguration(), true);
+        byte[] retransformed = transformer.transform(getClass().getClassLoader(), CLASS_NAME, define(loaded), null,
+                original);
+
+        assertEquals(members(loaded), members(retransformed));
+    }
+
+    @Test
+    public void shouldKeepOutlinedMethods() throws Exception {
+        AnnotatedMetricClassTransformer transformer = new AnnotatedMetricClassTransformer(
+                config(true, metric("first", MetricType.Timed, "retransform_outlined_timed")), true);
+
+        byte[] loaded = transformer.transform(getClass().getClassLoader(), CLASS_NAME, null, null, original);
+        Class<?> loadedClass = define(loaded);
+
+        transformer.setConfiguration(config(true,
+                metric("first", MetricType.Timed, "retransform_outlined_timed"),
+                metric("second", MetricType.Counted, "retransform_outlined_counted")));
+
+        byte[] retransformed = transformer.transform(getClass().getClassLoader(), CLASS_NAME, loadedClass, null,
+                original);
+
+        assertEquals(members(loaded), members(retransformed));
+
+        // the outlined method of the loaded class is reused, the metric added at runtime is recorded inline
+        invoke(define(retransformed), "second");
+        assertEquals(1, metrics.getCount("retransform_outlined_counted"));
+    }
+
+    private static Configuration config(Object[]... metrics) {
+        return config(false, metrics);
+    }
+
+    private static Configuration config(boolean outline, Object[]... metrics) {
+        Configuration config = new Configuration(null, null, null, null, null, null, null, outline, null);
+        for (Object[] metric : metrics) {
+            config.addMetric(new Configuration.Key(CLASS_NAME, (String) metric[0], "()V"), (Metric) metric[1]);
+        }
+
+        return config;
+    }
+
+    private static Object[] metric(String method, MetricType type, String name) {
+        return new Object[] {method, Metric.builder().type(type).name(name).createMetric()};
+    }
+
+    private static Class<?> define(byte[] bytes) {
+        return new ByteCodeClassLoader().defineClass(RetransformedClass.class.getName(), bytes);
+    }
+
+    private static void invoke(Class<?> clazz, String method) throws Exception {
+        Object obj = clazz.newInstance();
+        clazz.getMethod(method).invoke(obj);
+    }
+
+    private static List<String> members(byte[] bytes) {
+        final List<String> members = new ArrayList<String>();
+
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                members.add(access + " " + name + " " + desc);
+                return null;
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                members.add(access + " " + name + desc);
+                return null;
+            }
+        }, ClassReader.SKIP_CODE);
+
+        return members;
+    }
+
+    public static class RetransformedClass {
+
+        public void first() {
+        }
+
+        public void second() {
+        }
+    }
+}
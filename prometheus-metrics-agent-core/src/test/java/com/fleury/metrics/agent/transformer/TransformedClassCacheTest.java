@@ -0,0 +1,183 @@
+package com.fleury.metrics.agent.transformer;
+
+import static com.fleury.metrics.agent.config.Configuration.emptyConfiguration;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+/**
+ * @author Will Fleury
+ */
+public class TransformedClassCacheTest {
+
+    private static final String PLAIN = "com/fleury/metrics/agent/transformer/TransformedClassCacheTest$Plain";
+
+    private File directory;
+    private ProtectionDomain jarDomain;
+
+    @Before
+    public void setup() throws Exception {
+        directory = File.createTempFile("cache", "");
+        directory.delete();
+        directory.mkdirs();
+
+        File jar = new File(directory, "app.jar");
+        FileUtils.writeStringToFile(jar, "not really a jar", "UTF-8");
+
+        jarDomain = new ProtectionDomain(new CodeSource(jar.toURI().toURL(), (Certificate[]) null), null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void shouldServeTransformedClassAcrossRestarts() {
+        byte[] original = {1, 2, 3};
+        byte[] transformed = {4, 5, 6, 7};
+
+        TransformedClassCache cache = new TransformedClassCache(directory, emptyConfiguration());
+        String key = cache.key(original);
+        assertNull(cache.get(key));
+
+        cache.put(key, transformed);
+
+        TransformedClassCache restarted = new TransformedClassCache(directory, emptyConfiguration());
+        assertArrayEquals(transformed, restarted.get(restarted.key(original)));
+    }
+
+    @Test
+    public void shouldNotServeTransformedClassForDifferentConfiguration() {
+        byte[] original = {1, 2, 3};
+
+        TransformedClassCache cache = new TransformedClassCache(directory, emptyConfiguration());
+        cache.put(cache.key(original), new byte[] {4, 5, 6});
+
+        Configuration config = emptyConfiguration();
+        config.addMetric(new Configuration.Key("a/B", "c", "()V"),
+                Metric.builder().type(MetricType.Counted).name("c").createMetric());
+
+        TransformedClassCache changed = new TransformedClassCache(directory, config);
+        assertNull(changed.get(changed.key(original)));
+    }
+
+    @Test
+    public void shouldPersistUninstrumentedClassesPerJar() {
+        TransformedClassCache cache = new TransformedClassCache(directory, emptyConfiguration());
+        assertFalse(cache.isUninstrumented(jarDomain, "a/B"));
+
+        cache.markUninstrumented(jarDomain, "a/B");
+        assertTrue(cache.isUninstrumented(jarDomain, "a/B"));
+
+        cache.persist();
+
+        TransformedClassCache restarted = new TransformedClassCache(directory, emptyConfiguration());
+        assertTrue(restarted.isUninstrumented(jarDomain, "a/B"));
+        assertFalse(restarted.isUninstrumented(jarDomain, "a/C"));
+    }
+
+    @Test
+    public void shouldOnlyTrackClassesLoadedFromJars() throws Exception {
+        ProtectionDomain directoryDomain = new ProtectionDomain(
+                new CodeSource(directory.toURI().toURL(), (Certificate[]) null), null);
+
+        TransformedClassCache cache = new TransformedClassCache(directory, emptyConfiguration());
+        cache.markUninstrumented(directoryDomain, "a/B");
+
+        assertFalse(cache.isUninstrumented(directoryDomain, "a/B"));
+    }
+
+    @Test
+    public void shouldNotTrackClassesWhichMayInheritInterfaceMetrics() throws Exception {
+        TransformedClassCache cache = new TransformedClassCache(directory, emptyConfiguration());
+
+        transform(cache, "a/B.c()V");
+        assertTrue(cache.isUninstrumented(jarDomain, PLAIN));
+
+        cache = new TransformedClassCache(directory, emptyConfiguration());
+
+        // whether the class implements the interface depends on the class files of its super types
+        transform(cache, "java/lang/Runnable.run()V");
+        assertFalse(cache.isUninstrumented(jarDomain, PLAIN));
+    }
+
+    @Test
+    public void shouldNotCacheClassesCallingGettersOfOtherClasses() throws Exception {
+        TransformedClassCache cache = new TransformedClassCache(directory, emptyConfiguration());
+
+        byte[] argument = transform(cache, ArgumentLabelClass.class);
+        assertNotNull(cache.get(cache.key(argument)));
+
+        // the accessor calls the getter resolved from the class file of Request
+        byte[] property = transform(cache, PropertyLabelClass.class);
+        assertNull(cache.get(cache.key(property)));
+    }
+
+    private void transform(TransformedClassCache cache, String key) throws Exception {
+        Configuration config = Configuration.createConfig(new ByteArrayInputStream((
+                "metrics:\n" +
+                "  " + key + ":\n" +
+                "    - type: Counted\n" +
+                "      name: configured\n").getBytes()));
+
+        byte[] bytes = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(PLAIN + ".class"));
+
+        new AnnotatedMetricClassTransformer(config, true, cache)
+                .transform(new URLClassLoader(new URL[0], null), PLAIN, null, jarDomain, bytes);
+    }
+
+    private byte[] transform(TransformedClassCache cache, Class<?> clazz) throws Exception {
+        String className = Type.getInternalName(clazz);
+        byte[] bytes = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(className + ".class"));
+
+        new AnnotatedMetricClassTransformer(emptyConfiguration(), true, cache)
+                .transform(getClass().getClassLoader(), className, null, jarDomain, bytes);
+
+        return bytes;
+    }
+
+    public static class Plain {
+    }
+
+    public static class ArgumentLabelClass {
+
+        @Counted(name = "argument_label", labels = {"path:$0"})
+        public void counted(String path) {
+        }
+    }
+
+    public static class PropertyLabelClass {
+
+        @Counted(name = "property_label", labels = {"path:$0.path"})
+        public void counted(Request request) {
+        }
+    }
+
+    public static class Request {
+
+        public String getPath() {
+            return "/request";
+        }
+    }
+}
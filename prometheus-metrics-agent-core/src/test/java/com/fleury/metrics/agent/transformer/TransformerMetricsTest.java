@@ -0,0 +1,137 @@
+package com.fleury.metrics.agent.transformer;
+
+import static com.fleury.metrics.agent.config.Configuration.emptyConfiguration;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.config.RejectPolicy;
+import com.fleury.metrics.agent.model.Metric;
+import com.fleury.metrics.agent.model.MetricType;
+import io.prometheus.client.CollectorRegistry;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+/**
+ * @author Will Fleury
+ */
+public class TransformerMetricsTest {
+
+    private CollectorRegistry registry;
+    private TransformerMetrics metrics;
+
+    @Before
+    public void setup() {
+        registry = new CollectorRegistry();
+        metrics = new TransformerMetrics();
+        metrics.register(registry);
+    }
+
+    @Test
+    public void shouldRecordRewrittenClass() throws Exception {
+        byte[] original = bytes(CountedClass.class);
+        byte[] transformed = transform(emptyConfiguration(), CountedClass.class, original);
+
+        assertEquals(1, value("metrics_agent_classes_scanned_total"), 0);
+        assertEquals(1, value("metrics_agent_classes_rewritten_total"), 0);
+        assertEquals(transformed.length - original.length, value("metrics_agent_bytecode_added_bytes_total"), 0);
+        assertEquals(1, value("metrics_agent_transform_seconds_count"), 0);
+        assertTrue(value("metrics_agent_transform_seconds_sum") > 0);
+        assertEquals(1, value("metrics_agent_methods_instrumented_total"), 0);
+    }
+
+    @Test
+    public void shouldRecordMethodsPushedOverSizeLimits() {
+        metrics.recordMethodInstrumented(growth(30, 40));
+        metrics.recordMethodInstrumented(growth(300, 8100));
+        metrics.recordMethodInstrumented(growth(400, 450));
+
+        assertEquals(3, value("metrics_agent_methods_instrumented_total"), 0);
+        assertEquals(1, value("metrics_agent_methods_over_limit_total", "limit", MethodSizes.LIMIT_MAX_INLINE_SIZE), 0);
+        assertEquals(1, value("metrics_agent_methods_over_limit_total", "limit", MethodSizes.LIMIT_FREQ_INLINE_SIZE), 0);
+        assertEquals(1, value("metrics_agent_methods_over_limit_total", "limit", MethodSizes.LIMIT_HUGE_METHOD), 0);
+    }
+
+    @Test
+    public void shouldRecordClassesSkippedByWhiteAndBlackList() throws Exception {
+        String className = Type.getInternalName(CountedClass.class);
+
+        transform(new Configuration(null, null, null, singletonList("not/white/Listed"), null),
+                CountedClass.class, bytes(CountedClass.class));
+        transform(new Configuration(null, null, null, null, singletonList(className)),
+                CountedClass.class, bytes(CountedClass.class));
+
+        assertEquals(2, value("metrics_agent_classes_scanned_total"), 0);
+        assertEquals(0, value("metrics_agent_classes_rewritten_total"), 0);
+        assertEquals(1, value("metrics_agent_classes_skipped_total", TransformerMetrics.SKIPPED_WHITE_LIST), 0);
+        assertEquals(1, value("metrics_agent_classes_skipped_total", TransformerMetrics.SKIPPED_BLACK_LIST), 0);
+    }
+
+    @Test
+    public void shouldRecordRejectedClassesUnlessConfigured() throws Exception {
+        AnnotatedMetricClassTransformer transformer = new AnnotatedMetricClassTransformer(emptyConfiguration(), false,
+                null, metrics);
+
+        byte[] original = bytes(CountedClass.class);
+        String className = Type.getInternalName(CountedClass.class);
+
+        assertSame(original, transformer.transform(null, className, null, null, original));
+        assertEquals(1, value("metrics_agent_classes_skipped_total", RejectPolicy.REJECTED_BOOTSTRAP), 0);
+
+        Configuration config = emptyConfiguration();
+        config.addMetric(new Configuration.Key(className, "counted", "()V"),
+                Metric.builder().type(MetricType.Counted).name("configured").createMetric());
+        transformer.setConfiguration(config);
+
+        assertNotSame(original, transformer.transform(null, className, null, null, original));
+        assertEquals(1, value("metrics_agent_classes_rewritten_total"), 0);
+    }
+
+    @Test
+    public void shouldRecordFailedClass() throws Exception {
+        transform(emptyConfiguration(), CountedClass.class, new byte[] {(byte) 0xCA, (byte) 0xFE});
+
+        assertEquals(1, value("metrics_agent_classes_failed_total"), 0);
+    }
+
+    private byte[] transform(Configuration config, Class<?> clazz, byte[] bytes) throws Exception {
+        AnnotatedMetricClassTransformer transformer = new AnnotatedMetricClassTransformer(config, false, null, metrics);
+        return transformer.transform(clazz.getClassLoader(), Type.getInternalName(clazz), null, null, bytes);
+    }
+
+    private double value(String name) {
+        Double value = registry.getSampleValue(name);
+        return value == null ? 0 : value;
+    }
+
+    private double value(String name, String reason) {
+        return value(name, "reason", reason);
+    }
+
+    private double value(String name, String label, String labelValue) {
+        Double value = registry.getSampleValue(name, new String[] {label}, new String[] {labelValue});
+        return value == null ? 0 : value;
+    }
+
+    private static MethodSizes.MethodGrowth growth(int originalLength, int length) {
+        return new MethodSizes.MethodGrowth("method()V", new MethodSizes.CodeSize(originalLength, 0, 1),
+                new MethodSizes.CodeSize(length, 1, 3));
+    }
+
+    private static byte[] bytes(Class<?> clazz) throws Exception {
+        return IOUtils.toByteArray(clazz.getClassLoader().getResourceAsStream(Type.getInternalName(clazz) + ".class"));
+    }
+
+    public static class CountedClass {
+
+        @Counted(name = "counted")
+        public void counted() {
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.fleury.metrics.agent.transformer.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.annotation.ExceptionCounted;
+import com.fleury.metrics.agent.annotation.Timed;
+import java.io.IOException;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ *
+ * @author Will Fleury
+ */
+public class ConstantPoolScannerTest {
+
+    @Test
+    public void shouldFindMetricAnnotation() throws Exception {
+        assertTrue(ConstantPoolScanner.containsMetricAnnotation(bytes(TimedClass.class)));
+        assertTrue(ConstantPoolScanner.containsMetricAnnotation(bytes(ExceptionCountedClass.class)));
+    }
+
+    @Test
+    public void shouldNotFindMetricAnnotation() throws Exception {
+        assertFalse(ConstantPoolScanner.containsMetricAnnotation(bytes(PlainClass.class)));
+    }
+
+    @Test
+    public void shouldSkipWideConstants() throws Exception {
+        assertTrue(ConstantPoolScanner.containsMetricAnnotation(bytes(WideConstantsClass.class)));
+    }
+
+    @Test
+    public void shouldFallBackOnTruncatedClassFile() throws Exception {
+        byte[] bytes = bytes(PlainClass.class);
+        byte[] truncated = new byte[20];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        assertTrue(ConstantPoolScanner.containsMetricAnnotation(truncated));
+    }
+
+    private static byte[] bytes(Class<?> clazz) throws IOException {
+        return IOUtils.toByteArray(clazz.getClassLoader().getResourceAsStream(clazz.getName().replace('.', '/') + ".class"));
+    }
+
+    public static class PlainClass {
+
+        public String hello() {
+            return "hello";
+        }
+    }
+
+    public static class TimedClass {
+
+        @Timed(name = "timed")
+        public void timed() {
+        }
+    }
+
+    public static class ExceptionCountedClass {
+
+        @ExceptionCounted(name = "exceptions")
+        public void exceptions() {
+        }
+    }
+
+    public static class WideConstantsClass {
+
+        private long value = 123456789012345L;
+        private double other = 12345.6789;
+
+        @Timed(name = "timed")
+        public double timed() {
+            return value * other;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.fleury.metrics.agent.transformer.visitors.injectors;
 
 import static com.fleury.metrics.agent.config.Configuration.dotToSlash;
 import static com.fleury.metrics.agent.config.Configuration.emptyConfiguration;
+import static org.objectweb.asm.Opcodes.V1_7;
 
 import com.fleury.metrics.agent.config.Configuration;
 import com.fleury.metrics.agent.reporter.TestMetricReader;
@@ -9,6 +10,9 @@ import com.fleury.metrics.agent.transformer.AnnotatedMetricClassTransformer;
 import io.prometheus.client.CollectorRegistry;
 import java.io.PrintWriter;
 import java.lang.instrument.ClassFileTransformer;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
@@ -24,6 +28,7 @@ import org.objectweb.asm.util.TraceClassVisitor;
 public abstract class BaseMetricTest {
 
     private static final Logger LOGGER = Logger.getLogger(BaseMetricTest.class.getName());
+    private static final Logger TRANSFORMER_LOGGER = Logger.getLogger(AnnotatedMetricClassTransformer.class.getName());
 
     protected TestMetricReader metrics;
 
@@ -44,24 +49,55 @@ public abstract class BaseMetricTest {
         return execute(clazz, emptyConfiguration());
     }
 
+    @SuppressWarnings("unchecked")
     protected <T> Class<T> execute(Class<T> clazz, Configuration config) throws Exception {
         String className = dotToSlash(clazz.getName());
         String classAsPath = className + ".class";
 
-        ClassFileTransformer cft = new AnnotatedMetricClassTransformer(config, true);
-        byte[] classfileBuffer = cft.transform(
-                clazz.getClassLoader(),
-                className,
-                null,
-                null,
-                IOUtils.toByteArray(clazz.getClassLoader().getResourceAsStream(classAsPath)));
+        byte[] original = IOUtils.toByteArray(clazz.getClassLoader().getResourceAsStream(classAsPath));
+
+        return (Class<T>) execute(className, original, config, true);
+    }
+
+    /**
+     * @param preserveFrames true if the frames of the class must be preserved, false if they must be computed
+     */
+    protected Class<?> execute(String className, byte[] original, Configuration config, boolean preserveFrames)
+            throws Exception {
+        // Java 7 class files have no fall back to the old verifier so any injected frames are checked when loaded
+        original = original.clone();
+        setClassVersion(original, V1_7);
+
+        FallbackRecorder fallbacks = new FallbackRecorder();
+        TRANSFORMER_LOGGER.addHandler(fallbacks);
+        TRANSFORMER_LOGGER.setLevel(Level.FINE);
+
+        byte[] classfileBuffer;
+        try {
+            ClassFileTransformer cft = new AnnotatedMetricClassTransformer(config, true);
+            classfileBuffer = cft.transform(getClass().getClassLoader(), className, null, null, original);
+        } finally {
+            TRANSFORMER_LOGGER.removeHandler(fallbacks);
+        }
+
+        if (preserveFrames && fallbacks.thrown != null) {
+            throw new AssertionError("Frames were recomputed: " + fallbacks.thrown);
+        }
+        if (!preserveFrames && fallbacks.thrown == null) {
+            throw new AssertionError("Frames were preserved");
+        }
 
         traceBytecode(classfileBuffer);
         verifyBytecode(classfileBuffer);
 
-        return getClassFromBytes(clazz, classfileBuffer);
+        return loader.defineClass(className.replace('/', '.'), classfileBuffer);
     }
     
+    private static void setClassVersion(byte[] bytes, int version) {
+        bytes[6] = (byte) (version >>> 8);
+        bytes[7] = (byte) version;
+    }
+
     private void traceBytecode(byte[] bytecode) {
         ClassReader cr = new ClassReader(bytecode);
         ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
@@ -74,6 +110,29 @@ public abstract class BaseMetricTest {
         cr.accept(new CheckClassAdapter(cw), 0);
     }
 
+    /**
+     * Records when the transformer had to fall back to computing frames.
+     */
+    private static class FallbackRecorder extends Handler {
+
+        private Throwable thrown;
+
+        @Override
+        public void publish(LogRecord record) {
+            if (record.getThrown() != null) {
+                thrown = record.getThrown();
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
     public static class ByteCodeClassLoader extends ClassLoader {
 
         public Class defineClass(String name, byte[] bytes) {
@@ -0,0 +1,129 @@
+package com.fleury.metrics.agent.transformer.visitors.injectors;
+
+import static org.junit.Assert.assertEquals;
+
+import com.fleury.metrics.agent.config.Configuration;
+import java.io.ByteArrayInputStream;
+import org.junit.Test;
+
+/**
+ * @author Will Fleury
+ */
+public class InterfaceMetricsTest extends BaseMetricTest {
+
+    @Test
+    public void shouldRecordMethodsImplementingInterfaceMethods() throws Exception {
+        Configuration config = Configuration.createConfig(new ByteArrayInputStream((
+                "metrics:\n" +
+                "  com/fleury/metrics/agent/transformer/visitors/injectors/InterfaceMetricsTest$Service.call(I)V:\n" +
+                "    - type: Counted\n" +
+                "      name: interface_call\n" +
+                "  com/fleury/metrics/agent/transformer/visitors/injectors/InterfaceMetricsTest$Service.find*:\n" +
+                "    - type: Counted\n" +
+                "      name: interface_find\n").getBytes()));
+
+        Class<ServiceImpl> clazz = execute(ServiceImpl.class, config);
+
+        Object obj = clazz.newInstance();
+        obj.getClass().getMethod("call", int.class).invoke(obj, 1);
+        obj.getClass().getMethod("call", long.class).invoke(obj, 1L);
+        obj.getClass().getMethod("findAll").invoke(obj);
+
+        assertEquals(1, metrics.getCount("interface_call"));
+        assertEquals(1, metrics.getCount("interface_find"));
+    }
+
+    @Test
+    public void shouldRecordMethodsImplementingInterfaceMethodsOfSuperClass() throws Exception {
+        Configuration config = Configuration.createConfig(new ByteArrayInputStream((
+                "metrics:\n" +
+                "  com/fleury/metrics/agent/transformer/visitors/injectors/InterfaceMetricsTest$Service.call(I)V:\n" +
+                "    - type: Counted\n" +
+                "      name: interface_inherited_call\n").getBytes()));
+
+        Class<ServiceSubclass> clazz = execute(ServiceSubclass.class, config);
+
+        Object obj = clazz.newInstance();
+        obj.getClass().getMethod("call", int.class).invoke(obj, 1);
+
+        assertEquals(1, metrics.getCount("interface_inherited_call"));
+    }
+
+    @Test
+    public void shouldRecordMethodsSelectedByInterfacesOfSuperClass() throws Exception {
+        Configuration config = Configuration.createConfig(new ByteArrayInputStream((
+                "metrics:\n" +
+                "  com/fleury/metrics/agent/transformer/visitors/injectors/InterfaceMetricsTest$Service.find*:\n" +
+                "    - type: Counted\n" +
+                "      name: interface_inherited_find\n").getBytes()));
+
+        Class<ServiceSubclass> clazz = execute(ServiceSubclass.class, config);
+
+        Object obj = clazz.newInstance();
+        obj.getClass().getMethod("findAll").invoke(obj);
+
+        assertEquals(1, metrics.getCount("interface_inherited_find"));
+    }
+
+    @Test
+    public void shouldRecordMethodsSelectedBySuperInterfaces() throws Exception {
+        Configuration config = Configuration.createConfig(new ByteArrayInputStream((
+                "metrics:\n" +
+                "  com/fleury/metrics/agent/transformer/visitors/injectors/InterfaceMetricsTest$Service.find*:\n" +
+                "    - type: Counted\n" +
+                "      name: super_interface_find\n").getBytes()));
+
+        Class<ExtendedServiceImpl> clazz = execute(ExtendedServiceImpl.class, config);
+
+        Object obj = clazz.newInstance();
+        obj.getClass().getMethod("findAll").invoke(obj);
+
+        assertEquals(1, metrics.getCount("super_interface_find"));
+    }
+
+    public interface Service {
+
+        void call(int id);
+
+        void findAll();
+    }
+
+    public static class ServiceImpl implements Service {
+
+        @Override
+        public void call(int id) {
+        }
+
+        public void call(long id) {
+        }
+
+        @Override
+        public void findAll() {
+        }
+    }
+
+    public static class ServiceSubclass extends ServiceImpl {
+
+        @Override
+        public void call(int id) {
+        }
+
+        @Override
+        public void findAll() {
+        }
+    }
+
+    public interface ExtendedService extends Service {
+    }
+
+    public static class ExtendedServiceImpl implements ExtendedService {
+
+        @Override
+        public void call(int id) {
+        }
+
+        @Override
+        public void findAll() {
+        }
+    }
+}
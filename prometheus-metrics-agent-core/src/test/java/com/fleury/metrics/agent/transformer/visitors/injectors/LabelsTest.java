@@ -1,9 +1,24 @@
 package com.fleury.metrics.agent.transformer.visitors.injectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.annotation.Timed;
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.reporter.LabelCache;
+import com.fleury.metrics.agent.reporter.PrometheusMetricSystem;
+import io.prometheus.client.Counter;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 
 /**
  *
@@ -16,6 +31,83 @@ public class LabelsTest extends BaseMetricTest {
         testInvocation(CountedConstructorWithLabelsClass.class, new String[] {"name1", "name2"}, new String[]{"value1", "value2"});
     }
 
+    @Test
+    public void shouldHoldChildOfMetricWithConstantLabelValues() throws Exception {
+        Class<?> clazz = execute(CountedConstructorWithLabelsClass.class);
+
+        clazz.newInstance();
+        clazz.newInstance();
+
+        assertEquals(Counter.Child.class, clazz.getField("METRICS$CONSTRUCTOR$COUNTED").getType());
+        assertEquals(2, metrics.getCount("constructor", new String[] {"name1", "name2"}, new String[]{"value1", "value2"}));
+    }
+
+    @Test
+    public void shouldCacheChildrenOfMetricWithDynamicLabelValues() throws Exception {
+        Class<?> clazz = execute(CountedConstructorWithDynamicStringLabelValueClass.class);
+
+        assertEquals(LabelCache.class, clazz.getField("METRICS$CONSTRUCTOR$COUNTED").getType());
+
+        // more distinct values than cache entries so some are looked up again after being evicted
+        for (int i = 0; i < 3; i++) {
+            for (String value : new String[] {"a", "b", "c", "d", "e", "f"}) {
+                clazz.getConstructor(String.class).newInstance(value);
+            }
+        }
+
+        for (String value : new String[] {"a", "b", "c", "d", "e", "f"}) {
+            assertEquals(3, metrics.getCount("constructor", new String[] {"name1"}, new String[] {value}));
+        }
+    }
+
+    @Test
+    public void shouldRecordLabelValuesOverMaxSeriesAsOverflow() throws Exception {
+        Class<?> clazz = execute(CountedMethodWithMaxSeriesClass.class);
+        Object obj = clazz.newInstance();
+
+        Method method = clazz.getMethod("handle", String.class);
+        for (String value : new String[] {"a", "b", "c", "d", "a", "c"}) {
+            method.invoke(obj, value);
+        }
+
+        assertEquals(2, metrics.getCount("limited", new String[] {"name1"}, new String[] {"a"}));
+        assertEquals(1, metrics.getCount("limited", new String[] {"name1"}, new String[] {"b"}));
+        assertEquals(0, metrics.getCount("limited", new String[] {"name1"}, new String[] {"c"}));
+        assertEquals(3, metrics.getCount("limited", new String[] {"name1"}, new String[] {"__overflow__"}));
+        assertEquals(3, metrics.getCount("metrics_agent_series_dropped_total",
+                new String[] {"metric"}, new String[] {"limited"}));
+    }
+
+    @Test
+    public void shouldRecordNormalizedLabelValues() throws Exception {
+        Configuration config = Configuration.createConfig(new ByteArrayInputStream((
+                "metrics:\n" +
+                "  com/fleury/metrics/agent/transformer/visitors/injectors/LabelsTest$NormalizedLabelClass.handle(Ljava/lang/String;)V:\n" +
+                "    - type: Counted\n" +
+                "      name: normalized\n" +
+                "      labels: ['path:$0']\n" +
+                "      normalize:\n" +
+                "        path:\n" +
+                "          lowerCase: true\n" +
+                "          replace:\n" +
+                "            '/[0-9]+(/|$)': '/{id}$1'\n" +
+                "          maxLength: 24\n").getBytes()));
+        PrometheusMetricSystem.setLabelNormalizations(config.getLabelNormalizations());
+
+        Class<?> clazz = execute(NormalizedLabelClass.class, config);
+        Object obj = clazz.newInstance();
+
+        Method method = clazz.getMethod("handle", String.class);
+        for (String path : new String[] {"/Users/123/orders", "/users/456/orders", "/users/123/orders/7",
+                "/users/123/orders/7/items/and/more"}) {
+            method.invoke(obj, path);
+        }
+
+        assertEquals(2, metrics.getCount("normalized", new String[] {"path"}, new String[] {"/users/{id}/orders"}));
+        assertEquals(1, metrics.getCount("normalized", new String[] {"path"}, new String[] {"/users/{id}/orders/{id}"}));
+        assertEquals(1, metrics.getCount("normalized", new String[] {"path"}, new String[] {"/users/{id}/orders/{id}/"}));
+    }
+
     @Test
     public void shouldCountConstructorInvocationWithoutLabels() throws Exception {
         testInvocation(CountedConstructorWithoutLabelsClass.class, new String[] {}, new String[] {});
@@ -60,6 +152,35 @@ public class LabelsTest extends BaseMetricTest {
                 new Object[]{new CountedConstructorWithDynamicNestedNonJavaBeanLabelValueClass.Nester()}, new String[]{"hello"});
     }
 
+    @Test
+    public void shouldReadNestedValueThroughAccessorOfDeclaredType() throws Exception {
+        Class<?> clazz = execute(CountedMethodWithDeepNestedLabelValueClass.class);
+        Object obj = clazz.newInstance();
+
+        Method method = clazz.getMethod("handle", CountedMethodWithDeepNestedLabelValueClass.Request.class);
+        method.invoke(obj, new CountedMethodWithDeepNestedLabelValueClass.Request("/path"));
+        method.invoke(obj, new CountedMethodWithDeepNestedLabelValueClass.Request(null));
+        method.invoke(obj, (Object) null);
+
+        assertTrue(hasAccessor(clazz));
+        assertEquals(1, metrics.getCount("nested", new String[] {"path"}, new String[] {"/path"}));
+        assertEquals(2, metrics.getCount("nested", new String[] {"path"}, new String[] {"null"}));
+    }
+
+    @Test
+    public void shouldReadNestedValueOfUndeclaredTypeByReflection() throws Exception {
+        Class<?> clazz = execute(CountedMethodWithUndeclaredNestedLabelValueClass.class);
+        Object obj = clazz.newInstance();
+
+        clazz.getMethod("handle", Object.class).invoke(obj, new CountedConstructorWithDynamicNestedLabelValueClass.Nester());
+        clazz.getMethod("handleHeld", CountedMethodWithUndeclaredNestedLabelValueClass.Holder.class).invoke(obj,
+                new CountedMethodWithUndeclaredNestedLabelValueClass.Holder<Object>(
+                        new CountedConstructorWithDynamicNestedNonJavaBeanLabelValueClass.Nester()));
+
+        assertEquals(1, metrics.getCount("undeclared", new String[] {"name1"}, new String[] {"hello"}));
+        assertEquals(1, metrics.getCount("held", new String[] {"name1"}, new String[] {"hello"}));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void shouldThrowExceptionWhenInvalidParamIndexLabelValue() throws Exception {
         testInvocationWithArgs(CountedConstructorWithInvalidParamIndexLabelValueClass.class,
@@ -72,6 +193,113 @@ public class LabelsTest extends BaseMetricTest {
                 new Object[]{5}, new String[]{"5"});
     }
 
+    @Test
+    public void shouldPreserveFramesWhenUnreadArgumentIsReassigned() throws Exception {
+        String className = "com/fleury/metrics/agent/transformer/visitors/injectors/ReassignedArgumentClass";
+
+        // stores an int in the slot of the second argument, which javac never does but other compilers may
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, className, null, "java/lang/Object", null);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "timed", "(Ljava/lang/String;Ljava/lang/String;)V", null, null);
+        AnnotationVisitor av = mv.visitAnnotation(Type.getDescriptor(Timed.class), true);
+        av.visit("name", "reassigned_unread");
+        AnnotationVisitor labels = av.visitArray("labels");
+        labels.visit(null, "name:$0");
+        labels.visitEnd();
+        av.visitEnd();
+        mv.visitCode();
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, 2);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+
+        Class<?> clazz = execute(className, cw.toByteArray(), Configuration.emptyConfiguration(), true);
+
+        Object obj = clazz.newInstance();
+        clazz.getMethod("timed", String.class, String.class).invoke(obj, "a", "b");
+
+        assertEquals(1, metrics.getTimes("reassigned_unread", new String[] {"name"}, new String[] {"a"}).count);
+    }
+
+    @Test
+    public void shouldComputeFramesWhenReadArgumentIsReassigned() throws Exception {
+        Class<?> clazz = execute(Type.getInternalName(ReassignedLabelClass.class),
+                IOUtils.toByteArray(getClass().getResourceAsStream("LabelsTest$ReassignedLabelClass.class")),
+                Configuration.emptyConfiguration(), false);
+
+        Object obj = clazz.newInstance();
+        clazz.getMethod("timed", String.class).invoke(obj, " a ");
+
+        // recorded when the method exits
+        assertEquals(1, metrics.getTimes("reassigned_read", new String[] {"name"}, new String[] {"a"}).count);
+    }
+
+    @Test
+    public void shouldComputeFramesWhenFramesMarkReadArgumentAsTop() throws Exception {
+        String className = "com/fleury/metrics/agent/transformer/visitors/injectors/DeadArgumentClass";
+
+        // the frame after the branch marks the argument as TOP although it is never stored to, as some bytecode
+        // tools do once an argument is dead
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, className, null, "java/lang/Object", null);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "timed", "(Ljava/lang/String;)V", null, null);
+        AnnotationVisitor av = mv.visitAnnotation(Type.getDescriptor(Timed.class), true);
+        av.visit("name", "dead_argument");
+        AnnotationVisitor labels = av.visitArray("labels");
+        labels.visit(null, "name:$0");
+        labels.visitEnd();
+        av.visitEnd();
+        mv.visitCode();
+        Label dead = new Label();
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitJumpInsn(Opcodes.IFNONNULL, dead);
+        mv.visitLabel(dead);
+        mv.visitFrame(Opcodes.F_NEW, 1, new Object[] {className}, 0, new Object[0]);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+
+        Class<?> clazz = execute(className, cw.toByteArray(), Configuration.emptyConfiguration(), false);
+
+        Object obj = clazz.newInstance();
+        clazz.getMethod("timed", String.class).invoke(obj, "a");
+
+        assertEquals(1, metrics.getTimes("dead_argument", new String[] {"name"}, new String[] {"a"}).count);
+    }
+
+    private static boolean hasAccessor(Class<?> clazz) {
+        for (Method method : clazz.getDeclaredMethods()) {
+            if (method.getName().startsWith(Configuration.ACCESSOR_METHOD_PREFIX)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     private void testInvocation(Class instrumentClazz, String[] labelNames, String[] labelValues) throws Exception {
         Class<?> clazz = execute(instrumentClazz);
 
@@ -203,4 +431,88 @@ public class LabelsTest extends BaseMetricTest {
             BaseMetricTest.performBasicTask();
         }
     }
+
+    public static class CountedMethodWithDeepNestedLabelValueClass {
+
+        public interface Uri {
+            String path();
+        }
+
+        public static class Request {
+
+            private final String path;
+
+            public Request(String path) {
+                this.path = path;
+            }
+
+            public Uri getUri() {
+                if (path == null) {
+                    return null;
+                }
+
+                return new Uri() {
+                    @Override
+                    public String path() {
+                        return path;
+                    }
+                };
+            }
+        }
+
+        @Counted(name = "nested", labels = {"path:$0.uri.path"})
+        public void handle(Request request) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class CountedMethodWithUndeclaredNestedLabelValueClass {
+
+        public static class Holder<T> {
+
+            private final T value;
+
+            public Holder(T value) {
+                this.value = value;
+            }
+
+            public T getValue() {
+                return value;
+            }
+        }
+
+        @Counted(name = "undeclared", labels = {"name1:$0.hello"})
+        public void handle(Object nester) {
+            BaseMetricTest.performBasicTask();
+        }
+
+        @Counted(name = "held", labels = {"name1:$0.value.hello"})
+        public void handleHeld(Holder<?> holder) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class CountedMethodWithMaxSeriesClass {
+
+        @Counted(name = "limited", labels = {"name1:$0"}, maxSeries = 2)
+        public void handle(String value) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class NormalizedLabelClass {
+
+        public void handle(String path) {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class ReassignedLabelClass {
+
+        @Timed(name = "reassigned_read", labels = {"name:$0"})
+        public void timed(String name) {
+            name = name.trim();
+            BaseMetricTest.performBasicTask();
+        }
+    }
 }
@@ -0,0 +1,55 @@
+package com.fleury.metrics.agent.transformer.visitors.injectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.reporter.LazyMetric;
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayInputStream;
+import org.junit.Test;
+
+/**
+ * @author Will Fleury
+ */
+public class LazyMetricsTest extends BaseMetricTest {
+
+    @Test
+    public void shouldRegisterMetricsWhenFirstRecorded() throws Exception {
+        Configuration config = Configuration.createConfig(new ByteArrayInputStream((
+                "lazyMetrics: true\n" +
+                "metrics:\n" +
+                "  com/fleury/metrics/agent/transformer/visitors/injectors/LazyMetricsTest$LazyClass.called()V:\n" +
+                "    - type: Counted\n" +
+                "      name: lazy_called\n" +
+                "    - type: Timed\n" +
+                "      name: lazy_called_timed\n" +
+                "  com/fleury/metrics/agent/transformer/visitors/injectors/LazyMetricsTest$LazyClass.uncalled()V:\n" +
+                "    - type: Timed\n" +
+                "      name: lazy_uncalled_timed\n").getBytes()));
+
+        Class<LazyClass> clazz = execute(LazyClass.class, config);
+
+        Object obj = clazz.newInstance();
+        assertEquals(LazyMetric.class, clazz.getField("METRICS$LAZY_CALLED$COUNTED").getType());
+        assertNull(CollectorRegistry.defaultRegistry.getSampleValue("lazy_called"));
+
+        obj.getClass().getMethod("called").invoke(obj);
+        obj.getClass().getMethod("called").invoke(obj);
+
+        assertEquals(2, metrics.getCount("lazy_called"));
+        assertEquals(2, metrics.getTimes("lazy_called_timed").count);
+        assertNull(CollectorRegistry.defaultRegistry.getSampleValue("lazy_uncalled_timed_count"));
+    }
+
+    public static class LazyClass {
+
+        public void called() {
+            BaseMetricTest.performBasicTask();
+        }
+
+        public void uncalled() {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+}
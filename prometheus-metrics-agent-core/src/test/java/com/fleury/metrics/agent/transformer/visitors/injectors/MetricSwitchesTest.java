@@ -0,0 +1,73 @@
+package com.fleury.metrics.agent.transformer.visitors.injectors;
+
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.annotation.Timed;
+import com.fleury.metrics.agent.reporter.PrometheusMetricSystem;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The test classes are Java 7 class files so their metrics are recorded through invokedynamic call sites.
+ *
+ * @author Will Fleury
+ */
+public class MetricSwitchesTest extends BaseMetricTest {
+
+    @After
+    public void enableMetrics() {
+        PrometheusMetricSystem.setDisabledMetrics(Collections.<String>emptySet());
+    }
+
+    @Test
+    public void shouldNotRecordDisabledMetricsUntilEnabled() throws Exception {
+        Class<SwitchedClass> clazz = execute(SwitchedClass.class);
+
+        Object obj = clazz.newInstance();
+        obj.getClass().getMethod("switched").invoke(obj);
+
+        PrometheusMetricSystem.setDisabledMetrics(singleton("switched_counted"));
+        obj.getClass().getMethod("switched").invoke(obj);
+
+        assertEquals(1, metrics.getCount("switched_counted"));
+        assertEquals(2, metrics.getTimes("switched_timed").count);
+
+        PrometheusMetricSystem.setDisabledMetrics(Collections.<String>emptySet());
+        obj.getClass().getMethod("switched").invoke(obj);
+
+        assertEquals(2, metrics.getCount("switched_counted"));
+        assertEquals(3, metrics.getTimes("switched_timed").count);
+    }
+
+    @Test
+    public void shouldLinkCallSitesOfDisabledMetricsToNoop() throws Exception {
+        PrometheusMetricSystem.setDisabledMetrics(singleton("initially_disabled_counted"));
+
+        Class<InitiallyDisabledClass> clazz = execute(InitiallyDisabledClass.class);
+
+        Object obj = clazz.newInstance();
+        obj.getClass().getMethod("disabled").invoke(obj);
+
+        assertEquals(0, metrics.getCount("initially_disabled_counted"));
+    }
+
+    public static class SwitchedClass {
+
+        @Counted(name = "switched_counted")
+        @Timed(name = "switched_timed")
+        public void switched() {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+
+    public static class InitiallyDisabledClass {
+
+        @Counted(name = "initially_disabled_counted")
+        public void disabled() {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+}
@@ -6,8 +6,11 @@ import static com.fleury.metrics.agent.reporter.TestMetricReader.TimerResult;
 
 import com.fleury.metrics.agent.annotation.Counted;
 import com.fleury.metrics.agent.annotation.ExceptionCounted;
+import com.fleury.metrics.agent.annotation.Gauged;
 import com.fleury.metrics.agent.annotation.Timed;
+import com.fleury.metrics.agent.config.Configuration;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 
@@ -71,6 +74,38 @@ public class MixedInjectorTest extends BaseMetricTest {
         assertEquals(1, metrics.getCount("timed_count", new String[] {"type"}, new String[]{"counted"}));
     }
 
+    @Test
+    public void shouldRecordMethodInvocationWhenFramesAreComputed() throws Exception {
+        Configuration config = new Configuration(null, null,
+                Collections.<String, Object>singletonMap("computeFrames", "true"), null, null);
+
+        Class<MixedMetricMethodClassWithException> clazz = execute(MixedMetricMethodClassWithException.class, config);
+
+        Object obj = clazz.newInstance();
+
+        try {
+            obj.getClass().getMethod("timed").invoke(obj);
+        }
+        catch (InvocationTargetException e) {
+        }
+
+        assertEquals(1, metrics.getTimes("timed_timed", new String[] {"type"}, new String[]{"timed"}).count);
+        assertEquals(1, metrics.getCount("timed_exceptions", new String[] {"type"}, new String[]{"exception"}));
+    }
+
+    @Test
+    public void shouldRecordMethodWithBranchesAndLongArgumentLabel() throws Exception {
+        Class<GaugedAndTimedMethodWithBranchesClass> clazz = execute(GaugedAndTimedMethodWithBranchesClass.class);
+
+        Object obj = clazz.newInstance();
+
+        Object sum = obj.getClass().getMethod("sum", int[].class, long.class).invoke(obj, new int[] {1, -2, 3}, 5L);
+
+        assertEquals(9L, sum);
+        assertEquals(1, metrics.getTimes("sum_timed", new String[] {"offset"}, new String[]{"5"}).count);
+        assertEquals(0, metrics.getCount("sum_in_flight"));
+    }
+
     public static class MixedMetricConstructorClass {
 
         @Timed(name = "constructor_timed", labels = {"type:timed"})
@@ -118,4 +153,19 @@ public class MixedInjectorTest extends BaseMetricTest {
             throw new RuntimeException();
         }
     }
+
+    public static class GaugedAndTimedMethodWithBranchesClass {
+
+        @Gauged(name = "sum_in_flight")
+        @Timed(name = "sum_timed", labels = {"offset:$1"})
+        public long sum(int[] values, long offset) {
+            long sum = offset;
+            for (int value : values) {
+                if (value > 0) {
+                    sum += value;
+                }
+            }
+            return sum;
+        }
+    }
 }
@@ -0,0 +1,75 @@
+package com.fleury.metrics.agent.transformer.visitors.injectors;
+
+import static com.fleury.metrics.agent.config.Configuration.OUTLINED_METHOD_PREFIX;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.config.Configuration;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import org.junit.Test;
+
+/**
+ * @author Will Fleury
+ */
+public class OutlinedMetricsTest extends BaseMetricTest {
+
+    @Test
+    public void shouldRecordMetricsInOutlinedMethods() throws Exception {
+        Configuration config = Configuration.createConfig(new ByteArrayInputStream((
+                "outlineMetrics: true\n" +
+                "metrics:\n" +
+                "  com/fleury/metrics/agent/transformer/visitors/injectors/OutlinedMetricsTest$OutlinedClass.find(ILjava/lang/String;)Ljava/lang/String;:\n" +
+                "    - type: Counted\n" +
+                "      name: outlined_counted\n" +
+                "      labels: ['id:$0', 'name:$1']\n" +
+                "    - type: Timed\n" +
+                "      name: outlined_timed\n" +
+                "    - type: ExceptionCounted\n" +
+                "      name: outlined_exceptions\n" +
+                "  com/fleury/metrics/agent/transformer/visitors/injectors/OutlinedMetricsTest$OutlinedClass.gauged()V:\n" +
+                "    - type: Gauged\n" +
+                "      name: outlined_gauged\n").getBytes()));
+
+        Class<OutlinedClass> clazz = execute(OutlinedClass.class, config);
+
+        Object obj = clazz.newInstance();
+        Method find = clazz.getMethod("find", int.class, String.class);
+        assertEquals("a", find.invoke(obj, 1, "a"));
+        assertEquals(null, find.invoke(obj, -1, "b"));
+        clazz.getMethod("gauged").invoke(obj);
+
+        assertEquals(1, metrics.getCount("outlined_counted", new String[] {"id", "name"}, new String[] {"1", "a"}));
+        assertEquals(1, metrics.getCount("outlined_counted", new String[] {"id", "name"}, new String[] {"-1", "b"}));
+        assertEquals(2, metrics.getTimes("outlined_timed").count);
+        assertEquals(0, metrics.getCount("outlined_exceptions"));
+        assertEquals(0, metrics.getCount("outlined_gauged"));
+
+        // counted, timed (shared by both returns and the exception handler), exception counted, gauge inc and dec
+        int outlined = 0;
+        for (Method method : clazz.getDeclaredMethods()) {
+            if (method.getName().startsWith(OUTLINED_METHOD_PREFIX)) {
+                assertTrue(method.isSynthetic());
+                assertTrue(Modifier.isStatic(method.getModifiers()));
+                outlined++;
+            }
+        }
+        assertEquals(5, outlined);
+    }
+
+    public static class OutlinedClass {
+
+        public String find(int id, String name) {
+            if (id < 0) {
+                return null;
+            }
+
+            return name;
+        }
+
+        public void gauged() {
+            BaseMetricTest.performBasicTask();
+        }
+    }
+}
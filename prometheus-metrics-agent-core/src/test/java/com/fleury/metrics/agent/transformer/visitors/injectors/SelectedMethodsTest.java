@@ -0,0 +1,52 @@
+package com.fleury.metrics.agent.transformer.visitors.injectors;
+
+import static org.junit.Assert.assertEquals;
+
+import com.fleury.metrics.agent.config.Configuration;
+import java.io.ByteArrayInputStream;
+import org.junit.Test;
+
+/**
+ * @author Will Fleury
+ */
+public class SelectedMethodsTest extends BaseMetricTest {
+
+    @Test
+    public void shouldRecordMethodsMatchedBySelectors() throws Exception {
+        Configuration config = Configuration.createConfig(new ByteArrayInputStream((
+                "metrics:\n" +
+                "  public !static com/fleury/metrics/agent/transformer/visitors/injectors/*$SelectedClass.find*(*):\n" +
+                "    - type: Counted\n" +
+                "      name: selected_find\n" +
+                "  com/fleury/metrics/agent/transformer/visitors/injectors/SelectedMethodsTest$SelectedClass.save(I)V:\n" +
+                "    - type: Counted\n" +
+                "      name: selected_save\n").getBytes()));
+
+        Class<SelectedClass> clazz = execute(SelectedClass.class, config);
+
+        Object obj = clazz.newInstance();
+        obj.getClass().getMethod("findById", int.class).invoke(obj, 1);
+        obj.getClass().getMethod("findAll").invoke(obj);
+        obj.getClass().getMethod("findStatic").invoke(null);
+        obj.getClass().getMethod("save", int.class).invoke(obj, 1);
+
+        assertEquals(2, metrics.getCount("selected_find"));
+        assertEquals(1, metrics.getCount("selected_save"));
+    }
+
+    public static class SelectedClass {
+
+        public Object findById(int id) {
+            return id;
+        }
+
+        public void findAll() {
+        }
+
+        public static void findStatic() {
+        }
+
+        public void save(int id) {
+        }
+    }
+}
@@ -4,8 +4,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static com.fleury.metrics.agent.reporter.TestMetricReader.TimerResult;
 
+import com.fleury.metrics.agent.annotation.Gauged;
 import com.fleury.metrics.agent.annotation.Timed;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 
@@ -73,6 +75,71 @@ public class TimerInjectorTest extends BaseMetricTest {
         assertTrue(value.sum >= TimeUnit.NANOSECONDS.toMillis(10L));
     }
 
+    @Test
+    public void shouldTimeSampleOfInvocationsAndCountAll() throws Exception {
+        Class<SampledTimedMethodClass> clazz = execute(SampledTimedMethodClass.class);
+
+        Object obj = clazz.newInstance();
+
+        for (int i = 0; i < 1000; i++) {
+            obj.getClass().getMethod("timed", String.class).invoke(obj, "value1");
+        }
+
+        String[] names = {"name1"};
+        String[] values = {"value1"};
+        assertEquals(1000, metrics.getCount("sampled_calls", names, values));
+
+        long sampled = metrics.getTimes("sampled", names, values).count;
+        assertTrue(sampled > 0 && sampled < 1000);
+    }
+
+    @Test
+    public void shouldNotReadLabelValuesOfUnsampledInvocations() throws Exception {
+        Class<RarelySampledTimedMethodClass> clazz = execute(RarelySampledTimedMethodClass.class);
+
+        Object obj = clazz.newInstance();
+        Method method = clazz.getMethod("timed", Request.class);
+
+        Request request = new Request();
+        for (int i = 0; i < 100; i++) {
+            method.invoke(obj, request);
+        }
+
+        String[] names = {"path"};
+        String[] values = {"/request"};
+        assertEquals(100, metrics.getCount("rarely_sampled_calls", names, values));
+
+        // only the calls counter reads the label value of the calls which were not timed
+        long sampled = metrics.getTimes("rarely_sampled", names, values).count;
+        assertEquals(100 + sampled, request.reads);
+    }
+
+    @Test
+    public void shouldKeepEnumValuesOfAnnotations() throws Exception {
+        Class<TimedAndGaugedClass> clazz = execute(TimedAndGaugedClass.class);
+
+        Method method = clazz.getMethod("timed");
+        assertEquals(TimeUnit.MILLISECONDS, method.getAnnotation(Timed.class).unit());
+        assertEquals(Gauged.mode.in_flight, method.getAnnotation(Gauged.class).mode());
+    }
+
+    @Test
+    public void shouldRecordDurationInUnitIntoBuckets() throws Exception {
+        Class<TimedInMillisecondsClass> clazz = execute(TimedInMillisecondsClass.class);
+
+        Object obj = clazz.newInstance();
+
+        obj.getClass().getMethod("timed").invoke(obj);
+
+        String[] le = {"le"};
+        assertEquals(0, metrics.getCount("millis_bucket", le, new String[] {"1.0"}));
+        assertEquals(1, metrics.getCount("millis_bucket", le, new String[] {"1000.0"}));
+        assertEquals(1, metrics.getCount("millis_bucket", le, new String[] {"+Inf"}));
+
+        TimerResult value = metrics.getTimes("millis");
+        assertTrue(value.sum >= 2 && value.sum < 1000);
+    }
+
     public static class TimedConstructorClass {
 
         @Timed(name = "constructor")
@@ -126,4 +193,44 @@ public class TimerInjectorTest extends BaseMetricTest {
             throw new RuntimeException();
         }
     }
+
+    public static class TimedAndGaugedClass {
+
+        @Timed(name = "enum_timed", unit = TimeUnit.MILLISECONDS)
+        @Gauged(name = "enum_gauged", mode = Gauged.mode.in_flight)
+        public void timed() {
+        }
+    }
+
+    public static class TimedInMillisecondsClass {
+
+        @Timed(name = "millis", unit = TimeUnit.MILLISECONDS, buckets = {1, 1000})
+        public void timed() throws InterruptedException {
+            Thread.sleep(2L);
+        }
+    }
+
+    public static class SampledTimedMethodClass {
+
+        @Timed(name = "sampled", labels = {"name1:$0"}, sampleRate = 10)
+        public void timed(String value) {
+        }
+    }
+
+    public static class RarelySampledTimedMethodClass {
+
+        @Timed(name = "rarely_sampled", labels = {"path:$0.path"}, sampleRate = Integer.MAX_VALUE)
+        public void timed(Request request) {
+        }
+    }
+
+    public static class Request {
+
+        private int reads;
+
+        public String getPath() {
+            reads++;
+            return "/request";
+        }
+    }
 }
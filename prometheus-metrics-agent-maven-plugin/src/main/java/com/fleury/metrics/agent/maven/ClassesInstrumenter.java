@@ -0,0 +1,195 @@
+package com.fleury.metrics.agent.maven;
+
+import static com.fleury.metrics.agent.config.Configuration.STATIC_FIELD_PREFIX;
+import static com.fleury.metrics.agent.transformer.util.ConstantPoolScanner.containsUtf8StartingWith;
+import static org.objectweb.asm.ClassReader.SKIP_CODE;
+import static org.objectweb.asm.ClassReader.SKIP_DEBUG;
+import static org.objectweb.asm.ClassReader.SKIP_FRAMES;
+import static org.objectweb.asm.Opcodes.ASM5;
+
+import com.fleury.metrics.agent.config.Configuration;
+import com.fleury.metrics.agent.transformer.AnnotatedMetricClassTransformer;
+import com.fleury.metrics.agent.transformer.PreInstrumentedClasses;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+
+/**
+ * Runs the same transformation pipeline as the agent over class files on disk. Instrumented classes are written to the
+ * output directory together with a manifest listing them (see {@link PreInstrumentedClasses}) so the agent knows not
+ * to touch them again at runtime.
+ *
+ * @author Will Fleury
+ */
+public class ClassesInstrumenter {
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final ClassFileTransformer transformer;
+    private final ClassLoader loader;
+    private final File outputDirectory;
+
+    private final Set<String> instrumented = new TreeSet<String>();
+
+    /**
+     * @param loader used to resolve super classes when computing stack map frames. It should see the project classes
+     * and all of its runtime dependencies.
+     */
+    public ClassesInstrumenter(Configuration config, ClassLoader loader, File outputDirectory, boolean failOnError) {
+        this.transformer = new AnnotatedMetricClassTransformer(config, failOnError);
+        this.loader = loader;
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Instruments the class files in the output directory in place. Class files which were already instrumented by a
+     * previous run (e.g. not recompiled in an incremental build) are left alone.
+     */
+    public void instrumentOutputDirectory() throws IOException {
+        // a stale manifest would make the transformer skip classes which have since been recompiled
+        File manifest = new File(outputDirectory, PreInstrumentedClasses.MANIFEST);
+        if (manifest.exists() && !manifest.delete()) {
+            throw new IOException("Unable to delete stale manifest " + manifest);
+        }
+
+        instrumentDirectory(outputDirectory, "");
+    }
+
+    private void instrumentDirectory(File directory, String packagePath) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                instrumentDirectory(file, packagePath + file.getName() + "/");
+            }
+            else if (file.getName().endsWith(CLASS_SUFFIX)) {
+                String className = packagePath + file.getName().substring(0, file.getName().length() - CLASS_SUFFIX.length());
+                byte[] bytes = readFully(new FileInputStream(file));
+
+                if (hasMetricFields(bytes)) {
+                    instrumented.add(className);
+                    continue;
+                }
+
+                instrument(className, bytes);
+            }
+        }
+    }
+
+    /**
+     * Instruments the classes of a dependency jar. Rewritten classes are written to the output directory where they
+     * shadow the original class in the jar.
+     */
+    public void instrumentJar(File jar) throws IOException {
+        JarFile jarFile = new JarFile(jar);
+        try {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+
+                if (entry.isDirectory() || !name.endsWith(CLASS_SUFFIX) || name.startsWith("META-INF/")
+                        || name.endsWith("module-info.class")) {
+                    continue;
+                }
+
+                String className = name.substring(0, name.length() - CLASS_SUFFIX.length());
+                instrument(className, readFully(jarFile.getInputStream(entry)));
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    public Set<String> getInstrumented() {
+        return instrumented;
+    }
+
+    public void writeManifest() throws IOException {
+        if (!instrumented.isEmpty()) {
+            PreInstrumentedClasses.write(outputDirectory, instrumented);
+        }
+    }
+
+    private void instrument(String className, byte[] bytes) throws IOException {
+        byte[] transformed;
+        try {
+            transformed = transformer.transform(loader, className, null, null, bytes);
+        } catch (IllegalClassFormatException e) {
+            throw new IOException("Unable to instrument " + className, e);
+        }
+
+        // the transformer hands back the original buffer when there is nothing to do
+        if (transformed == null || transformed == bytes) {
+            return;
+        }
+
+        File target = new File(outputDirectory, className + CLASS_SUFFIX);
+        if (!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs()) {
+            throw new IOException("Unable to create directory for " + target);
+        }
+
+        OutputStream out = new FileOutputStream(target);
+        try {
+            out.write(transformed);
+        } finally {
+            out.close();
+        }
+
+        instrumented.add(className);
+    }
+
+    /**
+     * The constant pool is scanned first so only the few classes with a constant starting with the prefix are decoded.
+     * A constant alone proves nothing, e.g. it may be a string literal, so the names in the fields table are checked.
+     */
+    private static boolean hasMetricFields(byte[] bytes) {
+        if (!containsUtf8StartingWith(bytes, STATIC_FIELD_PREFIX)) {
+            return false;
+        }
+
+        final boolean[] found = {false};
+        new ClassReader(bytes).accept(new ClassVisitor(ASM5) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                found[0] |= name.startsWith(STATIC_FIELD_PREFIX);
+                return null;
+            }
+        }, SKIP_CODE | SKIP_DEBUG | SKIP_FRAMES);
+
+        return found[0];
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.fleury.metrics.agent.maven;
+
+import com.fleury.metrics.agent.config.Configuration;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Instruments the compiled classes of a project (and optionally its dependency jars) at build time so the agent does
+ * not need to transform anything when the application starts. Run the agent with the {@code pre-instrumented:true}
+ * argument to only start the metric system and skip class transformation entirely.
+ *
+ * @author Will Fleury
+ */
+@Mojo(name = "instrument", defaultPhase = LifecyclePhase.PROCESS_CLASSES,
+        requiresDependencyResolution = ResolutionScope.RUNTIME, threadSafe = true)
+public class InstrumentMojo extends AbstractMojo {
+
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File classesDirectory;
+
+    /**
+     * The agent configuration file. Only annotations are instrumented if not set.
+     */
+    @Parameter(property = "metrics.agent.config")
+    private File configFile;
+
+    /**
+     * Also instrument matching classes of runtime dependency jars. Instrumented copies are written to the classes
+     * directory where they shadow the original classes.
+     */
+    @Parameter(property = "metrics.agent.instrumentDependencies", defaultValue = "false")
+    private boolean instrumentDependencies;
+
+    @Parameter(property = "metrics.agent.failOnError", defaultValue = "true")
+    private boolean failOnError;
+
+    @Parameter(property = "metrics.agent.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip || !classesDirectory.isDirectory()) {
+            getLog().info("Skipping metrics instrumentation");
+            return;
+        }
+
+        Configuration config = Configuration.createConfig(configFile == null ? null : configFile.getAbsolutePath());
+
+        try {
+            List<String> classpath = project.getRuntimeClasspathElements();
+
+            ClassesInstrumenter instrumenter = new ClassesInstrumenter(
+                    config, createClassLoader(classpath), classesDirectory, failOnError);
+
+            instrumenter.instrumentOutputDirectory();
+
+            if (instrumentDependencies) {
+                for (String element : classpath) {
+                    File file = new File(element);
+                    if (file.isFile() && file.getName().endsWith(".jar")) {
+                        instrumenter.instrumentJar(file);
+                    }
+                }
+            }
+
+            instrumenter.writeManifest();
+
+            getLog().info("Instrumented " + instrumenter.getInstrumented().size() + " classes");
+
+        } catch (DependencyResolutionRequiredException e) {
+            throw new MojoExecutionException("Unable to resolve the runtime classpath", e);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to instrument classes", e);
+        } catch (RuntimeException e) {
+            throw new MojoExecutionException("Unable to instrument classes", e);
+        }
+    }
+
+    private ClassLoader createClassLoader(List<String> classpath) throws MalformedURLException {
+        URL[] urls = new URL[classpath.size()];
+        for (int i = 0; i < classpath.size(); i++) {
+            urls[i] = new File(classpath.get(i)).toURI().toURL();
+        }
+
+        // only used to read class files for frame computation. The parent is the bootstrap loader so the plugins own
+        // dependencies do not leak into super class resolution.
+        return new URLClassLoader(urls, null);
+    }
+}
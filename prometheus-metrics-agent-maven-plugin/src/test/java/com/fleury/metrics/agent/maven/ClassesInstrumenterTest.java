@@ -0,0 +1,139 @@
+package com.fleury.metrics.agent.maven;
+
+import static com.fleury.metrics.agent.config.Configuration.emptyConfiguration;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.fleury.metrics.agent.annotation.Counted;
+import com.fleury.metrics.agent.transformer.PreInstrumentedClasses;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Will Fleury
+ */
+public class ClassesInstrumenterTest {
+
+    private static final String ANNOTATED = internalName(CountedMethodClass.class);
+    private static final String PLAIN = internalName(PlainClass.class);
+    private static final String PREFIXED_LITERAL = internalName(PrefixedLiteralClass.class);
+
+    private File classesDirectory;
+
+    @Before
+    public void setup() throws Exception {
+        classesDirectory = File.createTempFile("classes", "");
+        classesDirectory.delete();
+        classesDirectory.mkdirs();
+
+        copyClass(CountedMethodClass.class);
+        copyClass(PlainClass.class);
+        copyClass(PrefixedLiteralClass.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(classesDirectory);
+    }
+
+    @Test
+    public void shouldInstrumentAnnotatedClassesAndWriteManifest() throws Exception {
+        byte[] plain = classFile(PLAIN);
+
+        instrument();
+
+        assertEquals(new TreeSet<String>(Arrays.asList(ANNOTATED, PREFIXED_LITERAL)), manifest());
+        assertArrayEquals(plain, classFile(PLAIN));
+    }
+
+    @Test
+    public void shouldNotInstrumentClassesTwice() throws Exception {
+        instrument();
+        byte[] instrumented = classFile(ANNOTATED);
+
+        instrument();
+
+        assertArrayEquals(instrumented, classFile(ANNOTATED));
+        assertEquals(new TreeSet<String>(Arrays.asList(ANNOTATED, PREFIXED_LITERAL)), manifest());
+    }
+
+    @Test
+    public void shouldInstrumentClassesWithConstantsLikeMetricFields() throws Exception {
+        byte[] original = classFile(PREFIXED_LITERAL);
+
+        instrument();
+
+        assertTrue(manifest().contains(PREFIXED_LITERAL));
+        assertFalse(Arrays.equals(original, classFile(PREFIXED_LITERAL)));
+    }
+
+    private void instrument() throws Exception {
+        ClassesInstrumenter instrumenter = new ClassesInstrumenter(
+                emptyConfiguration(), getClass().getClassLoader(), classesDirectory, true);
+
+        instrumenter.instrumentOutputDirectory();
+        instrumenter.writeManifest();
+    }
+
+    private Set<String> manifest() throws Exception {
+        File manifest = new File(classesDirectory, PreInstrumentedClasses.MANIFEST);
+        assertTrue(manifest.isFile());
+
+        return PreInstrumentedClasses.read(new FileInputStream(manifest));
+    }
+
+    private byte[] classFile(String className) throws Exception {
+        return FileUtils.readFileToByteArray(new File(classesDirectory, className + ".class"));
+    }
+
+    private void copyClass(Class<?> clazz) throws Exception {
+        File target = new File(classesDirectory, internalName(clazz) + ".class");
+        target.getParentFile().mkdirs();
+
+        InputStream in = clazz.getClassLoader().getResourceAsStream(internalName(clazz) + ".class");
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static String internalName(Class<?> clazz) {
+        return clazz.getName().replace('.', '/');
+    }
+
+    public static class CountedMethodClass {
+
+        @Counted(name = "counted")
+        public void count() {
+        }
+    }
+
+    public static class PrefixedLiteralClass {
+
+        @Counted(name = "prefixed_literal")
+        public String count() {
+            return "METRICS$NOT_A_FIELD";
+        }
+    }
+
+    public static class PlainClass {
+
+        public void count() {
+        }
+    }
+}